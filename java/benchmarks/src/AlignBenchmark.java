@@ -0,0 +1,66 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import net.sf.samtools.*;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Align.align on forward and reverse strand reads in nucleotide and color space,
+ * by default with the HEAP engine (-p engine=BEAM,DP for the others).
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AlignBenchmark {
+
+    private static final int REFERENCE_LENGTH = 5000;
+
+    @Param({"FORWARD", "REVERSE"})
+        public BenchmarkFixtures.Strand strand;
+    @Param({"NTSPACE", "COLORSPACE"})
+        public SRMAUtil.Space space;
+    @Param({"30"})
+        public int depth;
+    @Param({"0.05"})
+        public double indelRate;
+    @Param({"HEAP"})
+        public Align.Engine engine;
+
+    private BenchmarkFixtures fixtures = null;
+    private List<SAMRecord> records = null;
+    private AlignStatistics stats = new AlignStatistics();
+
+    @Setup(Level.Trial)
+    public void setupTrial()
+        throws Exception
+    {
+        this.fixtures = new BenchmarkFixtures(REFERENCE_LENGTH, this.depth, this.indelRate, SRMAUtil.Space.COLORSPACE == this.space, this.strand, BenchmarkFixtures.SEED);
+        this.fixtures.freezeGraph(100);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation()
+        throws Exception
+    {
+        // re-alignment modifies the records
+        this.records = this.fixtures.copyRecords();
+    }
+
+    @Benchmark
+    public List<SAMRecord> align()
+        throws Exception
+    {
+        int i;
+        for(i=0;i<this.records.size();i++) {
+            this.fixtures.align(this.records.get(i), i, this.engine, 8192, 64, this.stats);
+        }
+        return this.records;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import net.sf.samtools.*;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Alignment.leftJustify on indel-containing reads.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AlignmentBenchmark {
+
+    private static final int REFERENCE_LENGTH = 20000;
+
+    private List<Alignment> alignments = null;
+    private List<byte[]> reads = null;
+    private List<byte[]> references = null;
+
+    @Setup(Level.Trial)
+    public void setup()
+        throws Exception
+    {
+        BenchmarkFixtures fixtures = new BenchmarkFixtures(REFERENCE_LENGTH, 10, 1.0, false, BenchmarkFixtures.Strand.BOTH, BenchmarkFixtures.SEED);
+        ListIterator<SAMRecord> iter = fixtures.records.listIterator();
+
+        this.alignments = new ArrayList<Alignment>();
+        this.reads = new ArrayList<byte[]>();
+        this.references = new ArrayList<byte[]>();
+        while(iter.hasNext()) {
+            Alignment alignment = new Alignment(iter.next(), fixtures.sequence);
+            this.alignments.add(alignment);
+            this.reads.add(alignment.read.clone());
+            this.references.add(alignment.reference.clone());
+        }
+    }
+
+    @Benchmark
+    public List<Alignment> leftJustify()
+    {
+        int i;
+        for(i=0;i<this.alignments.size();i++) {
+            Alignment alignment = this.alignments.get(i);
+            // restore the un-justified alignment
+            System.arraycopy(this.reads.get(i), 0, alignment.read, 0, alignment.length);
+            System.arraycopy(this.references.get(i), 0, alignment.reference, 0, alignment.length);
+            alignment.leftJustify();
+        }
+        return this.alignments;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import net.sf.samtools.*;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Align.align with the BEAM engine, counting the reads whose alignment
+ * differs from that of the exhaustive HEAP engine (the "diverged" counter,
+ * out of "reads").  Only the reads the HEAP engine re-aligns are compared,
+ * since the others are left as they are by either engine.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BeamBenchmark {
+
+    private static final int REFERENCE_LENGTH = 5000;
+    private static final int EXHAUSTIVE_HEAP_SIZE = 1 << 20;
+    private static final int MAXIMUM_TOTAL_COVERAGE = 1000;
+
+    @Param({"4", "16", "64"})
+        public int beamWidth;
+    @Param({"30", "100"})
+        public int depth;
+    @Param({"0.05", "0.2"})
+        public double indelRate;
+
+    private BenchmarkFixtures fixtures = null;
+    private List<SAMRecord> records = null;
+    private List<String> exhaustive = null; // the HEAP alignment of each record, or null if not re-aligned
+    private AlignStatistics stats = new AlignStatistics();
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Divergence {
+        public long reads;
+        public long diverged;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            this.reads = this.diverged = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setupTrial()
+        throws Exception
+    {
+        int i;
+
+        this.fixtures = new BenchmarkFixtures(REFERENCE_LENGTH, this.depth, this.indelRate, false, BenchmarkFixtures.Strand.BOTH, BenchmarkFixtures.SEED);
+        this.fixtures.freezeGraph(MAXIMUM_TOTAL_COVERAGE);
+
+        this.records = this.fixtures.copyRecords();
+        this.exhaustive = new ArrayList<String>();
+        for(i=0;i<this.records.size();i++) {
+            this.align(i, Align.Engine.HEAP, EXHAUSTIVE_HEAP_SIZE);
+            if(AlignStatistics.OUTCOME_REALIGNED == this.stats.outcome) {
+                this.exhaustive.add(BeamBenchmark.toString(this.records.get(i)));
+            }
+            else {
+                this.exhaustive.add(null);
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation()
+        throws Exception
+    {
+        // re-alignment modifies the records
+        this.records = this.fixtures.copyRecords();
+    }
+
+    @Benchmark
+    public List<SAMRecord> align(Divergence divergence)
+        throws Exception
+    {
+        int i;
+        for(i=0;i<this.records.size();i++) {
+            this.align(i, Align.Engine.BEAM, EXHAUSTIVE_HEAP_SIZE);
+            if(null == this.exhaustive.get(i)) {
+                continue;
+            }
+            divergence.reads++;
+            if(!this.exhaustive.get(i).equals(BeamBenchmark.toString(this.records.get(i)))) {
+                divergence.diverged++;
+            }
+        }
+        return this.records;
+    }
+
+    private void align(int i, Align.Engine engine, int maxHeapSize)
+        throws Exception
+    {
+        this.fixtures.align(this.records.get(i), i, engine, maxHeapSize, this.beamWidth, this.stats);
+    }
+
+    private static String toString(SAMRecord rec)
+    {
+        return rec.getAlignmentStart() + ":" + rec.getCigarString();
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.io.*;
+import java.util.*;
+import net.sf.samtools.*;
+import net.sf.picard.reference.*;
+
+/*
+ * Deterministic synthetic inputs for the benchmarks.  Everything is derived
+ * from a fixed seed so that numbers are comparable between two builds.
+ * */
+public class BenchmarkFixtures {
+
+    public enum Strand { FORWARD, REVERSE, BOTH }
+
+    public static final long SEED = 13L;
+    public static final String CONTIG = "chr1";
+    public static final int READ_LENGTH = 100;
+    public static final int MAX_INDEL_LENGTH = 5;
+    public static final int OFFSET = 20; // for re-alignment
+    private static final double ERROR_RATE = 0.005;
+
+    public SAMFileHeader header = null;
+    public ReferenceSequence sequence = null;
+    public List<SAMRecord> records = null; // co-ordinate sorted
+    // set by freezeGraph
+    public GraphSnapshot graph = null;
+    public List<Node> nodes = null; // the start node of each record
+    public SAMProgramRecord programRecord = null;
+    public AlleleCoverageCutoffs alleleCoverageCutoffs = null;
+    public int maximumTotalCoverage;
+
+    /*
+     * @param referenceLength The length of the synthetic contig.
+     * @param depth The average read depth.
+     * @param indelRate The fraction of reads that carry an indel.
+     * @param colorSpace Add CS/CQ tags to each read.
+     * @param strand The strand of the reads.
+     * @param seed The seed for the generator.
+     * */
+    public BenchmarkFixtures(int referenceLength, int depth, double indelRate, boolean colorSpace, Strand strand, long seed)
+        throws Exception
+    {
+        Random random = new Random(seed);
+        byte bases[] = new byte[referenceLength];
+        int i, numReads;
+        int starts[];
+
+        for(i=0;i<referenceLength;i++) {
+            bases[i] = (byte)SRMAUtil.DNA[random.nextInt(4)];
+        }
+        this.sequence = new ReferenceSequence(CONTIG, 0, bases);
+
+        this.header = new SAMFileHeader();
+        this.header.setSequenceDictionary(new SAMSequenceDictionary(Arrays.asList(new SAMSequenceRecord(CONTIG, referenceLength))));
+        this.header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+
+        numReads = (int)(((long)depth * referenceLength) / READ_LENGTH);
+        starts = new int[numReads];
+        for(i=0;i<numReads;i++) {
+            starts[i] = 1 + random.nextInt(referenceLength - 2*READ_LENGTH);
+        }
+        Arrays.sort(starts);
+
+        this.records = new ArrayList<SAMRecord>(numReads);
+        for(i=0;i<numReads;i++) {
+            boolean negative;
+            switch(strand) {
+                case FORWARD:
+                    negative = false;
+                    break;
+                case REVERSE:
+                    negative = true;
+                    break;
+                default:
+                    negative = random.nextBoolean();
+                    break;
+            }
+            this.records.add(this.createRecord("read" + i, starts[i], negative, random.nextDouble() < indelRate, colorSpace, random));
+        }
+    }
+
+    private SAMRecord createRecord(String readName, int alignmentStart, boolean negative, boolean indel, boolean colorSpace, Random random)
+        throws Exception
+    {
+        byte referenceBases[] = this.sequence.getBases();
+        StringBuilder readBases = new StringBuilder();
+        byte qualities[] = new byte[READ_LENGTH];
+        String cigar = null;
+        SAMRecord rec = null;
+        int i;
+
+        if(indel) {
+            int before = 20 + random.nextInt(READ_LENGTH - 40);
+            int length = 1 + random.nextInt(MAX_INDEL_LENGTH);
+            readBases.append(new String(referenceBases, alignmentStart - 1, before));
+            if(random.nextBoolean()) { // deletion
+                readBases.append(new String(referenceBases, alignmentStart - 1 + before + length, READ_LENGTH - before));
+                cigar = before + "M" + length + "D" + (READ_LENGTH - before) + "M";
+            }
+            else { // insertion
+                for(i=0;i<length;i++) {
+                    readBases.append(SRMAUtil.DNA[random.nextInt(4)]);
+                }
+                readBases.append(new String(referenceBases, alignmentStart - 1 + before, READ_LENGTH - before - length));
+                cigar = before + "M" + length + "I" + (READ_LENGTH - before - length) + "M";
+            }
+        }
+        else {
+            readBases.append(new String(referenceBases, alignmentStart - 1, READ_LENGTH));
+            cigar = READ_LENGTH + "M";
+        }
+
+        // sequencing errors
+        for(i=0;i<READ_LENGTH;i++) {
+            if(random.nextDouble() < ERROR_RATE) {
+                readBases.setCharAt(i, SRMAUtil.DNA[random.nextInt(4)]);
+            }
+            qualities[i] = (byte)(20 + random.nextInt(21));
+        }
+
+        rec = new SAMRecord(this.header);
+        rec.setReadName(readName);
+        rec.setReferenceIndex(0);
+        rec.setAlignmentStart(alignmentStart);
+        rec.setMappingQuality(60);
+        rec.setReadNegativeStrandFlag(negative);
+        rec.setCigarString(cigar);
+        rec.setReadString(readBases.toString());
+        rec.setBaseQualities(qualities);
+
+        if(colorSpace) {
+            // colors are in sequencing order
+            String s = readBases.toString();
+            StringBuilder colors = new StringBuilder();
+            StringBuilder colorQualities = new StringBuilder();
+            char prev = 'T';
+            if(negative) {
+                StringBuilder rc = new StringBuilder();
+                for(i=s.length()-1;0<=i;i--) {
+                    rc.append(SRMAUtil.getCompliment(s.charAt(i)));
+                }
+                s = rc.toString();
+            }
+            colors.append(prev);
+            for(i=0;i<s.length();i++) {
+                colors.append(SRMAUtil.colorSpaceEncode(prev, s.charAt(i)));
+                colorQualities.append(SRMAUtil.QUAL2CHAR(20 + random.nextInt(21)));
+                prev = s.charAt(i);
+            }
+            rec.setAttribute("CS", colors.toString());
+            rec.setAttribute("CQ", colorQualities.toString());
+        }
+
+        return rec;
+    }
+
+    /*
+     * Returns deep copies of the records, since re-alignment modifies them in place.
+     * */
+    public List<SAMRecord> copyRecords()
+        throws Exception
+    {
+        List<SAMRecord> copies = new ArrayList<SAMRecord>(this.records.size());
+        ListIterator<SAMRecord> iter = this.records.listIterator();
+        while(iter.hasNext()) {
+            copies.add((SAMRecord)iter.next().clone());
+        }
+        return copies;
+    }
+
+    /*
+     * Builds a graph from all the records, returning the start node of each record.
+     * */
+    public List<Node> buildGraph(Graph graph)
+        throws Exception
+    {
+        List<Node> nodes = new ArrayList<Node>(this.records.size());
+        ListIterator<SAMRecord> iter = this.records.listIterator();
+        while(iter.hasNext()) {
+            nodes.add(graph.addSAMRecord(iter.next(), this.sequence));
+        }
+        return nodes;
+    }
+
+    /*
+     * Builds and freezes a graph from all the records, with the allele
+     * coverage cutoffs used by the benchmarks that re-align them.
+     * */
+    public void freezeGraph(int maximumTotalCoverage)
+        throws Exception
+    {
+        Graph graph = new Graph();
+        this.nodes = this.buildGraph(graph);
+        this.programRecord = new SAMProgramRecord("srma");
+        this.alleleCoverageCutoffs = new AlleleCoverageCutoffs(3, 0.1, true);
+        this.maximumTotalCoverage = maximumTotalCoverage;
+        this.graph = graph.freeze(this.alleleCoverageCutoffs, maximumTotalCoverage);
+    }
+
+    /*
+     * Re-aligns a copy of the i-th record against the frozen graph.
+     * */
+    public void align(SAMRecord rec, int i, Align.Engine engine, int maxHeapSize, int beamWidth, AlignStatistics stats)
+        throws Exception
+    {
+        Align.align(this.graph,
+                rec,
+                this.nodes.get(i),
+                -1,
+                this.sequence,
+                this.programRecord,
+                OFFSET,
+                this.alleleCoverageCutoffs,
+                false,
+                true,
+                this.maximumTotalCoverage,
+                maxHeapSize,
+                engine,
+                beamWidth,
+                true,
+                true,
+                stats);
+    }
+
+    /*
+     * Splits the records into co-ordinate sorted BAM files in the given directory.
+     * */
+    public List<File> writeBAMs(File directory, int numFiles)
+        throws Exception
+    {
+        List<File> files = new ArrayList<File>();
+        List<SAMFileWriter> writers = new ArrayList<SAMFileWriter>();
+        int i;
+
+        for(i=0;i<numFiles;i++) {
+            File file = new File(directory, "input." + i + ".bam");
+            file.deleteOnExit();
+            files.add(file);
+            writers.add(new SAMFileWriterFactory().makeSAMOrBAMWriter(this.header, true, file));
+        }
+        for(i=0;i<this.records.size();i++) {
+            writers.get(i % numFiles).addAlignment(this.records.get(i));
+        }
+        for(i=0;i<numFiles;i++) {
+            writers.get(i).close();
+        }
+
+        return files;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import net.sf.samtools.*;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Align.align with each search engine, on deep and indel-rich windows.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EngineBenchmark {
+
+    private static final int REFERENCE_LENGTH = 5000;
+
+    @Param({"HEAP", "BEAM", "DP"})
+        public Align.Engine engine;
+    @Param({"30", "100"})
+        public int depth;
+    @Param({"0.01", "0.2"})
+        public double indelRate;
+
+    private BenchmarkFixtures fixtures = null;
+    private List<SAMRecord> records = null;
+    private AlignStatistics stats = new AlignStatistics();
+
+    @Setup(Level.Trial)
+    public void setupTrial()
+        throws Exception
+    {
+        this.fixtures = new BenchmarkFixtures(REFERENCE_LENGTH, this.depth, this.indelRate, false, BenchmarkFixtures.Strand.BOTH, BenchmarkFixtures.SEED);
+        this.fixtures.freezeGraph(1000);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation()
+        throws Exception
+    {
+        // re-alignment modifies the records
+        this.records = this.fixtures.copyRecords();
+    }
+
+    @Benchmark
+    public List<SAMRecord> align()
+        throws Exception
+    {
+        int i;
+        for(i=0;i<this.records.size();i++) {
+            this.fixtures.align(this.records.get(i), i, this.engine, 8192, 64, this.stats);
+        }
+        return this.records;
+    }
+}
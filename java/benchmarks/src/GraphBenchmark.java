@@ -0,0 +1,45 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Graph construction (Graph.addSAMRecord) at varying depth and indel density.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GraphBenchmark {
+
+    private static final int REFERENCE_LENGTH = 20000;
+
+    @Param({"10", "50", "200"})
+        public int depth;
+    @Param({"0.0", "0.01", "0.1"})
+        public double indelRate;
+
+    private BenchmarkFixtures fixtures = null;
+
+    @Setup(Level.Trial)
+    public void setup()
+        throws Exception
+    {
+        this.fixtures = new BenchmarkFixtures(REFERENCE_LENGTH, this.depth, this.indelRate, false, BenchmarkFixtures.Strand.BOTH, BenchmarkFixtures.SEED);
+    }
+
+    @Benchmark
+    public Graph addSAMRecord()
+        throws Exception
+    {
+        Graph graph = new Graph();
+        this.fixtures.buildGraph(graph);
+        return graph;
+    }
+}
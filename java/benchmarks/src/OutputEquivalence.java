@@ -0,0 +1,113 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.io.*;
+import java.util.*;
+import net.sf.samtools.*;
+
+/*
+ * Checks that options which should only change how SRMA gets to its output
+ * do not change the output: SRMA is run on synthetic workloads with and
+ * without each option, and the headers and records must be identical.
+ * Exits with a non-zero status if any differ.
+ *   java -cp srma-benchmarks-0.1.16.jar srma.OutputEquivalence [directory]
+ * */
+public class OutputEquivalence {
+
+    // the options under test, each compared to a run without it
+    private static final String CHECKS[][] = {
+        {"CHECKPOINT_DIRECTORY=%s/checkpoint", "CHECKPOINT_INTERVAL=0"},
+        {"SKIP_NON_BRANCHING=true"}
+    };
+
+    // deep, and sparse enough for gaps between reads
+    private static final String WORKLOADS[][] = {
+        {"SEED=7", "NUM_CONTIGS=2", "CONTIG_LENGTH=100000", "DEPTH=30", "INDEL_RATE=0.001", "PAIRED=true"},
+        {"SEED=11", "NUM_CONTIGS=3", "CONTIG_LENGTH=100000", "DEPTH=0.5", "INDEL_RATE=0.001", "PAIRED=true"}
+    };
+
+    public static void main(String args[])
+        throws Exception
+    {
+        File directory = (0 < args.length) ? new File(args[0]) : new File(System.getProperty("java.io.tmpdir"), "srma-equivalence");
+        int i, j, numFailed = 0;
+
+        for(i=0;i<WORKLOADS.length;i++) {
+            File workload = new File(directory, "workload" + i);
+            File expected = new File(workload, "expected.bam");
+            List<String> generatorArgs = new ArrayList<String>(Arrays.asList(WORKLOADS[i]));
+
+            if(!workload.isDirectory() && !workload.mkdirs()) {
+                throw new Exception("Could not create " + workload.getPath());
+            }
+            generatorArgs.add("OUTPUT_PREFIX=" + new File(workload, "sim").getPath());
+            if(0 != new WorkloadGenerator().instanceMain(generatorArgs.toArray(new String[0]))) {
+                throw new Exception("Could not generate workload " + i);
+            }
+            run(workload, expected, new String[0]);
+
+            for(j=0;j<CHECKS.length;j++) {
+                File observed = new File(workload, "observed" + j + ".bam");
+                String options[] = new String[CHECKS[j].length];
+                int k;
+                for(k=0;k<options.length;k++) {
+                    options[k] = String.format(CHECKS[j][k], workload.getPath());
+                }
+                run(workload, observed, options);
+                if(!isIdentical(expected, observed)) {
+                    System.err.println("FAILED: workload " + i + " with " + Arrays.toString(options));
+                    numFailed++;
+                }
+                else {
+                    System.err.println("OK: workload " + i + " with " + Arrays.toString(options));
+                }
+            }
+        }
+        System.exit((0 == numFailed) ? 0 : 1);
+    }
+
+    private static void run(File workload, File output, String options[])
+        throws Exception
+    {
+        List<String> args = new ArrayList<String>();
+
+        args.add("INPUT=" + new File(workload, "sim.bam").getPath());
+        args.add("OUTPUT=" + output.getPath());
+        args.add("REFERENCE=" + new File(workload, "sim.fa").getPath());
+        args.add("QUIET_STDERR=true");
+        args.addAll(Arrays.asList(options));
+        if(0 != new SRMA().instanceMain(args.toArray(new String[0]))) {
+            throw new Exception("SRMA failed with " + args);
+        }
+    }
+
+    // Compares the headers and then the records, in order, as SAM text
+    private static boolean isIdentical(File expected, File observed)
+    {
+        SAMFileReader expectedReader = new SAMFileReader(expected);
+        SAMFileReader observedReader = new SAMFileReader(observed);
+        Iterator<SAMRecord> expectedIter = expectedReader.iterator();
+        Iterator<SAMRecord> observedIter = observedReader.iterator();
+        boolean identical = expectedReader.getFileHeader().equals(observedReader.getFileHeader());
+        long n = 0;
+
+        while(identical && expectedIter.hasNext() && observedIter.hasNext()) {
+            String a = expectedIter.next().getSAMString();
+            String b = observedIter.next().getSAMString();
+            if(!a.equals(b)) {
+                System.err.println("Record " + n + " differs:\n" + a + b);
+                identical = false;
+            }
+            n++;
+        }
+        if(identical && (expectedIter.hasNext() || observedIter.hasNext())) {
+            System.err.println("The outputs have different numbers of records.");
+            identical = false;
+        }
+        expectedReader.close();
+        observedReader.close();
+        return identical;
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Sliding Graph.prune over a fully built graph, with and without GRAPH_PRUNING.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PruneBenchmark {
+
+    private static final int REFERENCE_LENGTH = 20000;
+    private static final int OFFSET = 20;
+    private static final int STEP = 100;
+
+    @Param({"false", "true"})
+        public boolean graphPruning;
+    @Param({"50"})
+        public int depth;
+
+    private BenchmarkFixtures fixtures = null;
+    private Graph graph = null;
+
+    @Setup(Level.Trial)
+    public void setupTrial()
+        throws Exception
+    {
+        this.fixtures = new BenchmarkFixtures(REFERENCE_LENGTH, this.depth, 0.01, false, BenchmarkFixtures.Strand.BOTH, BenchmarkFixtures.SEED);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation()
+        throws Exception
+    {
+        this.graph = new Graph();
+        this.fixtures.buildGraph(this.graph);
+    }
+
+    @Benchmark
+    public Graph prune()
+        throws Exception
+    {
+        int position;
+        for(position=this.graph.position_start;position<=this.graph.position_end;position+=STEP) {
+            this.graph.prune(0, position, OFFSET, this.graphPruning);
+        }
+        return this.graph;
+    }
+}
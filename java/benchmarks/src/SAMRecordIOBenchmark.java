@@ -0,0 +1,64 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/*
+ * Merging co-ordinate sorted inputs through SAMRecordIO and writing them back out.
+ * */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SAMRecordIOBenchmark {
+
+    private static final int REFERENCE_LENGTH = 100000;
+
+    @Param({"1", "4", "16"})
+        public int numInputs;
+
+    private File directory = null;
+    private List<File> inputs = null;
+    private List<File> outputs = null;
+
+    @Setup(Level.Trial)
+    public void setup()
+        throws Exception
+    {
+        BenchmarkFixtures fixtures = new BenchmarkFixtures(REFERENCE_LENGTH, 20, 0.01, false, BenchmarkFixtures.Strand.BOTH, BenchmarkFixtures.SEED);
+
+        this.directory = File.createTempFile("srma.benchmark.", "");
+        this.directory.delete();
+        this.directory.mkdir();
+        this.directory.deleteOnExit();
+
+        this.inputs = fixtures.writeBAMs(this.directory, this.numInputs);
+        this.outputs = new ArrayList<File>();
+        this.outputs.add(new File(this.directory, "output.bam"));
+        this.outputs.get(0).deleteOnExit();
+    }
+
+    @Benchmark
+    public int merge()
+        throws Exception
+    {
+        int ctr = 0;
+        SAMRecordIO io = new SAMRecordIO(this.inputs, this.outputs, "benchmark", false, null);
+
+        io.query(BenchmarkFixtures.CONTIG, 1, REFERENCE_LENGTH);
+        while(io.hasNextAlignRecord()) {
+            io.output(io.getNextAlignRecord());
+            ctr++;
+        }
+        io.closeAll();
+
+        return ctr;
+    }
+}
@@ -12,10 +12,73 @@ public class Align {
 
     private static final int CORRECT_BASE_QUALITY_PENALTY = 20; // TODO: should be a parameter to SRMA
 
-    private static final List<String> saveTags =
-        Arrays.asList("RG", "LB", "PU", "PG", "CS", "CQ");
+    private static final Set<String> saveTags =
+        new HashSet<String>(Arrays.asList("RG", "LB", "PU", "PG", "CS", "CQ"));
 
-    public static void align(Graph graph, SAMRecord rec, Node recNode, 
+    /*
+     * How the graph is searched for the best alignment of a read.
+     * */
+    public enum Engine {
+        HEAP, // best-first over all paths; gives up past MAX_HEAP_SIZE
+        BEAM, // the best BEAM_WIDTH paths at each read base; always completes
+        DP // every path within OFFSET of the original alignment, in read length x band x branching
+    }
+
+    // The traceback rows of the DP engine, reused by each thread since they are read length x band
+    private static final ThreadLocal<int[]> DP_BACK = new ThreadLocal<int[]>();
+    // The largest traceback kept per thread (4MB), so that the threads of a long-lived pool do not each hold their largest ever
+    private static final int DP_BACK_MAX_KEPT = 1 << 20;
+
+    // The order of paths within the beam: best score, then best allele coverage sum
+    private static final Comparator<AlignHeapNode> BEAM_ORDER = new Comparator<AlignHeapNode>() {
+        public int compare(AlignHeapNode a, AlignHeapNode b) {
+            if(a.score != b.score) {
+                return (a.score < b.score) ? 1 : -1;
+            }
+            else if(a.alleleCoverageSum != b.alleleCoverageSum) {
+                return (a.alleleCoverageSum < b.alleleCoverageSum) ? 1 : -1;
+            }
+            return a.index - b.index; // so that the beam does not depend on hash order
+        }
+    };
+
+    public static void align(GraphSnapshot graph, SAMRecord rec, Node recNode, 
+            int sampleIndex,
+            ReferenceSequence sequence, 
+            SAMProgramRecord programRecord,
+            int offset, 
+            AlleleCoverageCutoffs alleleCoverageCutoffs,
+            boolean correctBases,
+            boolean useSequenceQualities,
+            int MAXIMUM_TOTAL_COVERAGE,
+            int MAX_HEAP_SIZE,
+            Engine engine,
+            int beamWidth,
+            boolean mayBeColorSpace,
+            boolean search,
+            AlignStatistics stats)
+        throws Exception
+    {
+        ReadAlignedEvent event = new ReadAlignedEvent();
+
+        event.begin();
+        Align.alignRecord(graph, rec, recNode, sampleIndex, sequence, programRecord, offset, alleleCoverageCutoffs, correctBases, useSequenceQualities, MAXIMUM_TOTAL_COVERAGE, MAX_HEAP_SIZE, engine, beamWidth, mayBeColorSpace, search, stats);
+        event.end();
+        if(event.shouldCommit()) {
+            event.readName = rec.getReadName();
+            event.contig = rec.getReferenceName();
+            event.alignmentStart = rec.getAlignmentStart();
+            event.expansions = stats.expansions;
+            event.maxHeapSize = stats.maxHeapSize;
+            event.finalHeapSize = stats.finalHeapSize;
+            event.outcome = AlignStatistics.OUTCOME_NAMES[stats.outcome];
+            event.changed = stats.changed;
+            event.commit();
+        }
+    }
+
+    private static void alignRecord(GraphSnapshot graph, SAMRecord rec, Node recNode, 
+            int sampleIndex,
             ReferenceSequence sequence, 
             SAMProgramRecord programRecord,
             int offset, 
@@ -23,7 +86,12 @@ public class Align {
             boolean correctBases,
             boolean useSequenceQualities,
             int MAXIMUM_TOTAL_COVERAGE,
-            int MAX_HEAP_SIZE)
+            int MAX_HEAP_SIZE,
+            Engine engine,
+            int beamWidth,
+            boolean mayBeColorSpace,
+            boolean search,
+            AlignStatistics stats)
         throws Exception
     {
 
@@ -36,10 +104,12 @@ public class Align {
         String readBases = null; // always nt
         String qualities=null; // could be cq
         SRMAUtil.Space space=SRMAUtil.Space.NTSPACE;
-        ListIterator<NodeRecord> iter=null;
+        int edge, edgeStart[]=null;
         AlignHeapNodeComparator comp=null;
         int alignmentStart = -1;
         int numStartNodesAdded = 0;
+        int seeds[] = null;
+        int readCodes[] = null, penalties[] = null; // to bound the remaining score
         boolean strand = rec.getReadNegativeStrandFlag(); // false -> forward, true -> reverse
         String softClipStartBases = null;
         String softClipStartQualities = null;
@@ -49,10 +119,16 @@ public class Align {
         // Debugging stuff
         String readName = rec.getReadName();
 
+        // To detect changes
+        int originalAlignmentStart = rec.getAlignmentStart();
+        Cigar originalCigar = rec.getCigar(); // replaced, not modified, by updateSAM
+
+        stats.reset();
+
         assert SRMAUtil.Space.COLORSPACE != space;
         
         // Get space
-        read = (String)rec.getAttribute("CS");
+        read = (mayBeColorSpace) ? (String)rec.getAttribute("CS") : null;
         if(null == read) {
             // Use base space
             space = SRMAUtil.Space.NTSPACE;
@@ -64,33 +140,11 @@ public class Align {
 
         // Get read and qualities
         if(space == SRMAUtil.Space.NTSPACE) {
-            byte tmpRead[] = rec.getReadString().getBytes();
-            byte tmpQualities[] = rec.getBaseQualityString().getBytes();
-            // Reverse once
-            if(strand) { // reverse
-                SAMRecordUtil.reverseArray(tmpRead);
-                SAMRecordUtil.reverseArray(tmpQualities);
-            }
-            read = new String(tmpRead);
-            readBases = new String(tmpRead);
-            qualities = new String(tmpQualities);
-            // Reverse again
-            if(strand) { // reverse
-                SAMRecordUtil.reverseArray(tmpRead);
-                SAMRecordUtil.reverseArray(tmpQualities);
-            }
+            read = readBases = Align.toString(rec.getReadBases(), 0, strand);
+            qualities = Align.toString(rec.getBaseQualities(), 33, strand); // PHRED+33
         }
         else {
-            byte tmpRead[] = rec.getReadString().getBytes();
-            // Reverse once
-            if(strand) { // reverse
-                SAMRecordUtil.reverseArray(tmpRead);
-            }
-            readBases = new String(tmpRead);
-            // Reverse again
-            if(strand) { // reverse
-                SAMRecordUtil.reverseArray(tmpRead);
-            }
+            readBases = Align.toString(rec.getReadBases(), 0, strand);
             read = SRMAUtil.normalizeColorSpaceRead(read);
             qualities = (String)rec.getAttribute("CQ");
             // Some aligners include a quality value for the adapter.  A quality value
@@ -174,12 +228,23 @@ public class Align {
         // Remove mate pair information
         Align.removeMateInfo(rec);
 
+        // The penalty of a mismatch at each base, to bound the score of the rest of the read
+        if(SRMAUtil.Space.NTSPACE == space) {
+            readCodes = new int[read.length()];
+            penalties = new int[read.length()];
+            for(i=0;i<read.length();i++) {
+                readCodes[i] = GraphSnapshot.encode(read.charAt(i));
+                penalties[i] = (useSequenceQualities) ? SRMAUtil.CHAR2QUAL(qualities.charAt(i)) : 1;
+            }
+        }
+
         comp = new AlignHeapNodeComparator((strand) ? AlignHeap.HeapType.MAXHEAP : AlignHeap.HeapType.MINHEAP);
 
         // Bound by original alignment if possible
         bestAlignHeapNode = Align.boundWithOriginalAlignment(rec, 
                 graph,
                 recNode, 
+                sampleIndex,
                 comp,
                 strand, 
                 read,
@@ -204,72 +269,115 @@ public class Align {
            return;
            */
 
+        alignmentStart = (strand) ? rec.getAlignmentEnd() : rec.getAlignmentStart();
+
+        // Skip the search if no other path can be better, unless the search would give up
+        if(null != bestAlignHeapNode 
+                && !Align.isAboveMaximumCoverage(graph, bestAlignHeapNode, sampleIndex, alignmentStart, offset, alleleCoverageCutoffs, MAXIMUM_TOTAL_COVERAGE)
+                && (!search || Align.isOptimal(graph, bestAlignHeapNode, strand, alignmentStart, offset, readCodes, penalties))) {
+            Align.updateSAM(rec, sequence, programRecord, bestAlignHeapNode, space, read, qualities, softClipStartBases, softClipStartQualities, softClipEndBases, softClipEndQualities, strand, correctBases);
+            stats.outcome = AlignStatistics.OUTCOME_REALIGNED;
+            stats.certified = search;
+            stats.changed = (originalAlignmentStart != rec.getAlignmentStart() || !originalCigar.equals(rec.getCigar()));
+            return;
+        }
+
         heap = new AlignHeap((strand) ? AlignHeap.HeapType.MAXHEAP : AlignHeap.HeapType.MINHEAP);
 
         // Add start nodes
-        if(strand) { // reverse
-            alignmentStart = rec.getAlignmentEnd();
+        if(SRMAUtil.Space.NTSPACE == space) {
+            // only those that spell the start of the read, if any do
+            seeds = graph.getSeeds(read, strand, alignmentStart-offset, alignmentStart+offset);
+        }
+        if(null != seeds && 0 < seeds.length) {
+            for(i=0;i<seeds.length;i++) {
+                int f = passFilters(graph,
+                        seeds[i],
+                        sampleIndex,
+                        alleleCoverageCutoffs,
+                        MAXIMUM_TOTAL_COVERAGE);
+                if(0 == f) {
+                    heap.add(new AlignHeapNode(null, 
+                                graph,
+                                seeds[i],
+                                graph.getCoverage(seeds[i], sampleIndex),
+                                read.charAt(0),
+                                qualities.charAt(0),
+                                useSequenceQualities,
+                                space));
+                }
+                else if(f < 0) {
+                    stats.outcome = AlignStatistics.OUTCOME_MAX_TOTAL_COVERAGE;
+                    return;
+                }
+                numStartNodesAdded++;
+            }
+        }
+        else if(strand) { // reverse
             for(i=alignmentStart+offset;alignmentStart-offset<=i;i--) {
-                int position = graph.getPriorityQueueIndexAtPositionOrBefore(i);
-                PriorityQueue<Node> startNodeQueue = graph.getPriorityQueue(position);
-                if(0 != position && null != startNodeQueue) {
-                    Iterator<Node> startNodeQueueIter = startNodeQueue.iterator();
-                    while(startNodeQueueIter.hasNext()) {
-                        Node startNode = startNodeQueueIter.next();
-                        int f = passFilters(graph,
-                                startNode,
-                                alleleCoverageCutoffs,
-                                MAXIMUM_TOTAL_COVERAGE);
-                        if(0 == f) {
-                            heap.add(new AlignHeapNode(null, 
-                                        startNode,
-                                        startNode.coverage,
-                                        read.charAt(0),
-                                        qualities.charAt(0),
-                                        useSequenceQualities,
-                                        space));
-                        }
-                        else if(f < 0) {
-                            return;
-                        }
-                        if(startNode.position < i) {
-                            i = startNode.position;
-                        }
-                        numStartNodesAdded++;
+                int position = graph.getPositionAtOrBefore(i);
+                int startNode;
+                if(0 == position) { // no more nodes
+                    break;
+                }
+                for(startNode=graph.getFirstNode(position);startNode<graph.getLastNode(position);startNode++) {
+                    int f = passFilters(graph,
+                            startNode,
+                            sampleIndex,
+                            alleleCoverageCutoffs,
+                            MAXIMUM_TOTAL_COVERAGE);
+                    if(0 == f) {
+                        heap.add(new AlignHeapNode(null, 
+                                    graph,
+                                    startNode,
+                                    graph.getCoverage(startNode, sampleIndex),
+                                    read.charAt(0),
+                                    qualities.charAt(0),
+                                    useSequenceQualities,
+                                    space));
                     }
+                    else if(f < 0) {
+                        stats.outcome = AlignStatistics.OUTCOME_MAX_TOTAL_COVERAGE;
+                        return;
+                    }
+                    if(graph.position[startNode] < i) {
+                        i = graph.position[startNode];
+                    }
+                    numStartNodesAdded++;
                 }
             }
         }
         else {
-            alignmentStart = rec.getAlignmentStart();
             for(i=alignmentStart-offset;i<=alignmentStart+offset;i++) {
-                int position = graph.getPriorityQueueIndexAtPositionOrGreater(i);
-                PriorityQueue<Node> startNodeQueue = graph.getPriorityQueue(position);
-                if(0 != position && null != startNodeQueue) {
-                    Iterator<Node> startNodeQueueIter = startNodeQueue.iterator();
-                    while(startNodeQueueIter.hasNext()) {
-                        Node startNode = startNodeQueueIter.next();
-                        int f = passFilters(graph,
-                                startNode,
-                                alleleCoverageCutoffs,
-                                MAXIMUM_TOTAL_COVERAGE);
-                        if(0 == f) {
-                            heap.add(new AlignHeapNode(null, 
-                                        startNode,
-                                        startNode.coverage,
-                                        read.charAt(0),
-                                        qualities.charAt(0),
-                                        useSequenceQualities,
-                                        space));
-                        }
-                        else if(f < 0) {
-                            return;
-                        }
-                        if(i < startNode.position) {
-                            i = startNode.position;
-                        }
-                        numStartNodesAdded++;
+                int position = graph.getPositionAtOrAfter(i);
+                int startNode;
+                if(0 == position) { // no more nodes
+                    break;
+                }
+                for(startNode=graph.getFirstNode(position);startNode<graph.getLastNode(position);startNode++) {
+                    int f = passFilters(graph,
+                            startNode,
+                            sampleIndex,
+                            alleleCoverageCutoffs,
+                            MAXIMUM_TOTAL_COVERAGE);
+                    if(0 == f) {
+                        heap.add(new AlignHeapNode(null, 
+                                    graph,
+                                    startNode,
+                                    graph.getCoverage(startNode, sampleIndex),
+                                    read.charAt(0),
+                                    qualities.charAt(0),
+                                    useSequenceQualities,
+                                    space));
                     }
+                    else if(f < 0) {
+                        stats.outcome = AlignStatistics.OUTCOME_MAX_TOTAL_COVERAGE;
+                        return;
+                    }
+                    if(i < graph.position[startNode]) {
+                        i = graph.position[startNode];
+                    }
+                    numStartNodesAdded++;
                 }
             }
         }
@@ -277,13 +385,60 @@ public class Align {
             throw new Exception("Did not add any start nodes!");
         }
 
+        if(Engine.BEAM == engine) {
+            // takes the start nodes off the heap, so the search below has nothing to do
+            bestAlignHeapNode = Align.beamSearch(graph,
+                    heap,
+                    sampleIndex,
+                    strand,
+                    read,
+                    qualities,
+                    space,
+                    alleleCoverageCutoffs,
+                    useSequenceQualities,
+                    MAXIMUM_TOTAL_COVERAGE,
+                    beamWidth,
+                    bestAlignHeapNode,
+                    readCodes,
+                    penalties,
+                    stats);
+            if(AlignStatistics.OUTCOME_MAX_TOTAL_COVERAGE == stats.outcome) {
+                return;
+            }
+        }
+        else if(Engine.DP == engine) {
+            // likewise
+            bestAlignHeapNode = Align.bandedSearch(graph,
+                    heap,
+                    rec.getAlignmentStart() - offset,
+                    rec.getAlignmentEnd() + offset,
+                    sampleIndex,
+                    strand,
+                    read,
+                    qualities,
+                    space,
+                    alleleCoverageCutoffs,
+                    useSequenceQualities,
+                    MAXIMUM_TOTAL_COVERAGE,
+                    bestAlignHeapNode,
+                    stats);
+            if(AlignStatistics.OUTCOME_MAX_TOTAL_COVERAGE == stats.outcome) {
+                return;
+            }
+        }
+
         // Get first node off the heap
         curAlignHeapNode = heap.poll();
 
         while(null != curAlignHeapNode) {
 
+            stats.finalHeapSize = heap.size();
+            if(stats.maxHeapSize < heap.size()) {
+                stats.maxHeapSize = heap.size();
+            }
             if(MAX_HEAP_SIZE <= heap.size()) {
                 // too many to consider
+                stats.outcome = AlignStatistics.OUTCOME_MAX_HEAP_SIZE;
                 return;
             }
 
@@ -328,46 +483,541 @@ public class Align {
                     bestAlignHeapNode = curAlignHeapNode;
                 }
             }
-            else if(null != bestAlignHeapNode && curAlignHeapNode.score < bestAlignHeapNode.score) {
-                // ignore, under the assumption that scores can only become more negative.
+            else if(null != bestAlignHeapNode 
+                    && curAlignHeapNode.score - getRemainingPenalty(graph, curAlignHeapNode, strand, readCodes, penalties) < bestAlignHeapNode.score) {
+                // ignore, since scores can only become more negative, by at least the bound.
             }
             else {
-                if(strand) { // reverse
-                    // Go to all the "prev" nodes
-                    iter = curAlignHeapNode.node.prev.listIterator();
+                stats.expansions++;
+                // Go to all the "prev" nodes if reverse, otherwise all the "next" nodes
+                edgeStart = (strand) ? graph.prevStart : graph.nextStart;
+                for(edge=edgeStart[curAlignHeapNode.index];edge<edgeStart[curAlignHeapNode.index+1];edge++) {
+                    nextAlignHeapNode = Align.extendChain(graph,
+                            curAlignHeapNode,
+                            edge,
+                            sampleIndex,
+                            strand,
+                            read,
+                            qualities,
+                            space,
+                            alleleCoverageCutoffs,
+                            useSequenceQualities,
+                            MAXIMUM_TOTAL_COVERAGE,
+                            bestAlignHeapNode,
+                            readCodes,
+                            penalties,
+                            stats);
+                    if(null != nextAlignHeapNode) {
+                        heap.add(nextAlignHeapNode);
+                    }
+                    else if(AlignStatistics.OUTCOME_MAX_TOTAL_COVERAGE == stats.outcome) {
+                        return;
+                    }
+                }
+                nextAlignHeapNode=null;
+            }
+            // Get next node
+            curAlignHeapNode = heap.poll();
+        }
+
+        // Recover alignment
+        Align.updateSAM(rec, sequence, programRecord, bestAlignHeapNode, space, read, qualities, softClipStartBases, softClipStartQualities, softClipEndBases, softClipEndQualities, strand, correctBases);
+
+        if(null != bestAlignHeapNode) {
+            stats.outcome = AlignStatistics.OUTCOME_REALIGNED;
+            stats.changed = (originalAlignmentStart != rec.getAlignmentStart() || !originalCigar.equals(rec.getCigar()));
+        }
+    }
+
+    /*
+     * Returns true if the original alignment is certainly the best, so the
+     * search would return it.  It must match the read with no penalty, and
+     * every other path must pay one: any other path either starts at
+     * another start node, or leaves the original path by another edge, and
+     * a node at which it cannot spell the read (as far as the reach of the
+     * node shows) costs a penalty.  Since ties keep the original alignment,
+     * allele coverage does not matter.  Only in nucleotide space.
+     * @param bestAlignHeapNode The end of the original alignment.
+     * @param alignmentStart Where the search starts: the alignment end if reverse.
+     * */
+    private static boolean isOptimal(GraphSnapshot graph,
+            AlignHeapNode bestAlignHeapNode,
+            boolean strand,
+            int alignmentStart,
+            int offset,
+            int readCodes[],
+            int penalties[])
+    {
+        int path[], first, last, position, node, edge, i;
+        int edgeStart[] = (strand) ? graph.prevStart : graph.nextStart;
+        int edgeNode[] = (strand) ? graph.prevNode : graph.nextNode;
+        AlignHeapNode curAlignHeapNode = null;
+
+        if(null == readCodes || 0 != bestAlignHeapNode.score) {
+            return false;
+        }
+
+        path = new int[bestAlignHeapNode.readOffset+1];
+        for(curAlignHeapNode=bestAlignHeapNode;null!=curAlignHeapNode;curAlignHeapNode=curAlignHeapNode.prev) {
+            path[curAlignHeapNode.readOffset] = curAlignHeapNode.index;
+        }
+
+        // The start nodes, and the nodes just past either end in case a position is empty
+        position = graph.getPositionAtOrBefore(alignmentStart - offset);
+        first = graph.getFirstNode((0 == position) ? graph.getPositionAtOrAfter(alignmentStart - offset) : position);
+        position = graph.getPositionAtOrAfter(alignmentStart + offset);
+        last = graph.getLastNode((0 == position) ? graph.getPositionAtOrBefore(alignmentStart + offset) : position);
+
+        for(node=first;node<last;node++) {
+            if(node != path[0] && 0 == Align.getPenalty(graph, node, 0, strand, readCodes, penalties)) {
+                return false;
+            }
+        }
+
+        // Leaving the path
+        for(i=0;i<path.length-1;i++) {
+            for(edge=edgeStart[path[i]];edge<edgeStart[path[i]+1];edge++) {
+                node = edgeNode[edge];
+                if(node != path[i+1] && 0 == Align.getPenalty(graph, node, i+1, strand, readCodes, penalties)) {
+                    return false;
                 }
-                else { // forward
-                    // Go to all "next" nodes
-                    iter = curAlignHeapNode.node.next.listIterator();
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Returns true if the total coverage of any position from the start
+     * nodes to the end of the original alignment is above the maximum, in
+     * which case the search may give up on the read, so it must not be
+     * skipped.
+     * @param bestAlignHeapNode The end of the original alignment.
+     * @param alignmentStart Where the search starts: the alignment end if reverse.
+     * */
+    private static boolean isAboveMaximumCoverage(GraphSnapshot graph,
+            AlignHeapNode bestAlignHeapNode,
+            int sampleIndex,
+            int alignmentStart,
+            int offset,
+            AlleleCoverageCutoffs alleleCoverageCutoffs,
+            int MAXIMUM_TOTAL_COVERAGE)
+    {
+        AlignHeapNode firstAlignHeapNode = bestAlignHeapNode;
+        int positionLow, positionHigh, position;
+
+        while(null != firstAlignHeapNode.prev) {
+            firstAlignHeapNode = firstAlignHeapNode.prev;
+        }
+        positionLow = Math.min(alignmentStart - offset, Math.min(graph.position[firstAlignHeapNode.index], graph.position[bestAlignHeapNode.index]));
+        positionHigh = Math.max(alignmentStart + offset, Math.max(graph.position[firstAlignHeapNode.index], graph.position[bestAlignHeapNode.index]));
+        for(position=positionLow;position<=positionHigh;position++) {
+            if(graph.getMinimumAlleleCoverage(position, sampleIndex, alleleCoverageCutoffs, MAXIMUM_TOTAL_COVERAGE) < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The least penalty of a path that is at the node for the given read offset
+    private static int getPenalty(GraphSnapshot graph,
+            int node,
+            int readOffset,
+            boolean strand,
+            int readCodes[],
+            int penalties[])
+    {
+        int penalty = 0;
+        if(0 <= readCodes[readOffset] && readCodes[readOffset] != GraphSnapshot.encode(graph.base[node])) {
+            penalty += penalties[readOffset];
+        }
+        return penalty + Align.getRemainingPenalty(graph, node, readOffset, strand, readCodes, penalties);
+    }
+
+    /*
+     * Searches the graph one read base at a time, keeping only the beamWidth
+     * best paths, by score then allele coverage sum, that end at each read
+     * offset.  Paths that reach the same node at the same read offset have
+     * the same future, so only the best is kept.  Each read base costs at
+     * most beamWidth expansions, so unlike the heap the search always
+     * completes, but the best alignment is missed if it falls out of the
+     * beam on the way.
+     * @param heap The start nodes, which are taken off the heap.
+     * @param bestAlignHeapNode The original alignment, or null.
+     * @return The best complete path, or the original alignment if none is
+     * better.  The outcome is set if the coverage was above the maximum.
+     * */
+    private static AlignHeapNode beamSearch(GraphSnapshot graph,
+            AlignHeap heap,
+            int sampleIndex,
+            boolean strand,
+            String read,
+            String qualities,
+            SRMAUtil.Space space,
+            AlleleCoverageCutoffs alleleCoverageCutoffs,
+            boolean useSequenceQualities,
+            int MAXIMUM_TOTAL_COVERAGE,
+            int beamWidth,
+            AlignHeapNode bestAlignHeapNode,
+            int readCodes[],
+            int penalties[],
+            AlignStatistics stats)
+        throws Exception
+    {
+        List<AlignHeapNode> beam = new ArrayList<AlignHeapNode>();
+        Map<Integer, AlignHeapNode> next = new HashMap<Integer, AlignHeapNode>();
+        AlignHeapNode curAlignHeapNode = null;
+        int edgeStart[] = (strand) ? graph.prevStart : graph.nextStart;
+        int edgeNode[] = (strand) ? graph.prevNode : graph.nextNode;
+        int i, edge;
+
+        curAlignHeapNode = heap.poll();
+        while(null != curAlignHeapNode) {
+            Align.addToBeam(next, curAlignHeapNode, graph, strand, readCodes, penalties, bestAlignHeapNode);
+            curAlignHeapNode = heap.poll();
+        }
+
+        while(0 < next.size()) {
+            beam.clear();
+            beam.addAll(next.values());
+            next.clear();
+            Collections.sort(beam, BEAM_ORDER);
+            if(beamWidth < beam.size()) {
+                beam.subList(beamWidth, beam.size()).clear();
+            }
+            stats.finalHeapSize = beam.size();
+            if(stats.maxHeapSize < beam.size()) {
+                stats.maxHeapSize = beam.size();
+            }
+
+            for(i=0;i<beam.size();i++) {
+                curAlignHeapNode = beam.get(i);
+                if(curAlignHeapNode.readOffset == read.length() - 1) {
+                    if(null == bestAlignHeapNode 
+                            || bestAlignHeapNode.score < curAlignHeapNode.score 
+                            || (bestAlignHeapNode.score == curAlignHeapNode.score 
+                                && bestAlignHeapNode.alleleCoverageSum < curAlignHeapNode.alleleCoverageSum)) 
+                    {
+                        bestAlignHeapNode = curAlignHeapNode;
+                    }
+                    continue;
                 }
-                while(iter.hasNext()) {
-                    NodeRecord next = iter.next();
+                stats.expansions++;
+                for(edge=edgeStart[curAlignHeapNode.index];edge<edgeStart[curAlignHeapNode.index+1];edge++) {
+                    int toNodeCoverage = graph.getEdgeCoverage(edge, strand, sampleIndex);
                     int f = passFilters(graph,
-                            next.node,
-                            next.coverage,
+                            edgeNode[edge],
+                            sampleIndex,
+                            toNodeCoverage,
                             alleleCoverageCutoffs,
                             MAXIMUM_TOTAL_COVERAGE);
-                    if(0 == f) {
-                        heap.add(new AlignHeapNode(curAlignHeapNode, 
-                                    next.node,
-                                    next.coverage,
+                    if(f < 0) {
+                        stats.outcome = AlignStatistics.OUTCOME_MAX_TOTAL_COVERAGE;
+                        return null;
+                    }
+                    else if(0 == f) {
+                        Align.addToBeam(next, new AlignHeapNode(curAlignHeapNode, 
+                                    graph,
+                                    edgeNode[edge],
+                                    toNodeCoverage,
                                     read.charAt(curAlignHeapNode.readOffset+1), 
                                     qualities.charAt(curAlignHeapNode.readOffset+1), 
                                     useSequenceQualities,
-                                    space));
-                    }
-                    else if(f < 0) {
-                        return;
+                                    space),
+                                graph, strand, readCodes, penalties, bestAlignHeapNode);
                     }
                 }
-                iter=null;
             }
-            // Get next node
+        }
+        return bestAlignHeapNode;
+    }
+
+    /*
+     * Scores the read against every path through the nodes between the
+     * band start and end, by dynamic programming over the read offset: the
+     * best score (then allele coverage sum) of a path ending at each node
+     * after each read base.  Each path consumes one read base per node, so
+     * the rows need no gap states, and a row is filled from the one before
+     * by following the edges of the graph.  The best path is then traced
+     * back and rebuilt as heap nodes for updateSAM.  Unlike the heap, paths
+     * that leave the band are not considered, but the cost is fixed.
+     * @param heap The start nodes, which are taken off the heap.
+     * @param bandStart The first position of the band.
+     * @param bandEnd The last position of the band.
+     * @param bestAlignHeapNode The original alignment, or null.
+     * @return The best complete path, or the original alignment if none is
+     * better.  The outcome is set if the coverage was above the maximum.
+     * */
+    private static AlignHeapNode bandedSearch(GraphSnapshot graph,
+            AlignHeap heap,
+            int bandStart,
+            int bandEnd,
+            int sampleIndex,
+            boolean strand,
+            String read,
+            String qualities,
+            SRMAUtil.Space space,
+            AlleleCoverageCutoffs alleleCoverageCutoffs,
+            boolean useSequenceQualities,
+            int MAXIMUM_TOTAL_COVERAGE,
+            AlignHeapNode bestAlignHeapNode,
+            AlignStatistics stats)
+        throws Exception
+    {
+        int edgeStart[] = (strand) ? graph.prevStart : graph.nextStart;
+        int edgeNode[] = (strand) ? graph.prevNode : graph.nextNode;
+        int first, last, width, length = read.length();
+        int score[], coverage[], nextScore[], nextCoverage[], tmp[];
+        int back[]; // the previous node of the best path to each node, by row
+        int path[];
+        int i, j, u, v, edge, best = -1;
+        List<AlignHeapNode> startNodes = new ArrayList<AlignHeapNode>();
+        AlignHeapNode curAlignHeapNode = null;
+
+        curAlignHeapNode = heap.poll();
+        while(null != curAlignHeapNode) {
+            startNodes.add(curAlignHeapNode);
             curAlignHeapNode = heap.poll();
         }
 
-        // Recover alignment
-        Align.updateSAM(rec, sequence, programRecord, bestAlignHeapNode, space, read, qualities, softClipStartBases, softClipStartQualities, softClipEndBases, softClipEndQualities, strand, correctBases);
+        // The band, as a range of node indices
+        bandStart = graph.getPositionAtOrAfter(bandStart);
+        bandEnd = graph.getPositionAtOrBefore(bandEnd);
+        if(0 == bandStart || 0 == bandEnd || bandEnd < bandStart) {
+            return bestAlignHeapNode;
+        }
+        first = graph.getFirstNode(bandStart);
+        last = graph.getLastNode(bandEnd);
+        width = last - first;
+        stats.maxHeapSize = stats.finalHeapSize = width;
+
+        score = new int[width];
+        coverage = new int[width];
+        nextScore = new int[width];
+        nextCoverage = new int[width];
+        // only the entries of the nodes reached in each row are set and read, so the rows need not be cleared
+        back = DP_BACK.get();
+        if(null == back || back.length < length * width) {
+            back = new int[length * width];
+            if(back.length <= DP_BACK_MAX_KEPT) {
+                DP_BACK.set(back);
+            }
+        }
+        Arrays.fill(score, Integer.MIN_VALUE);
+
+        // The first row: the start nodes
+        for(i=0;i<startNodes.size();i++) {
+            curAlignHeapNode = startNodes.get(i);
+            j = curAlignHeapNode.index - first;
+            if(0 <= j && j < width && (score[j] < curAlignHeapNode.score 
+                        || (score[j] == curAlignHeapNode.score && coverage[j] < curAlignHeapNode.alleleCoverageSum))) {
+                score[j] = curAlignHeapNode.score;
+                coverage[j] = curAlignHeapNode.alleleCoverageSum;
+            }
+        }
+
+        for(i=1;i<length;i++) {
+            char base = read.charAt(i);
+            int penalty = (useSequenceQualities) ? SRMAUtil.CHAR2QUAL(qualities.charAt(i)) : 1;
+
+            Arrays.fill(nextScore, Integer.MIN_VALUE);
+            for(j=0;j<width;j++) {
+                if(Integer.MIN_VALUE == score[j]) {
+                    continue;
+                }
+                u = first + j;
+                stats.expansions++;
+                for(edge=edgeStart[u];edge<edgeStart[u+1];edge++) {
+                    int toNodeCoverage, f, s, c;
+                    char b = base;
+
+                    v = edgeNode[edge] - first;
+                    if(v < 0 || width <= v) { // leaves the band
+                        continue;
+                    }
+                    toNodeCoverage = graph.getEdgeCoverage(edge, strand, sampleIndex);
+                    f = passFilters(graph,
+                            edgeNode[edge],
+                            sampleIndex,
+                            toNodeCoverage,
+                            alleleCoverageCutoffs,
+                            MAXIMUM_TOTAL_COVERAGE);
+                    if(f < 0) {
+                        stats.outcome = AlignStatistics.OUTCOME_MAX_TOTAL_COVERAGE;
+                        return null;
+                    }
+                    else if(0 < f) {
+                        continue;
+                    }
+                    if(SRMAUtil.Space.COLORSPACE == space) {
+                        b = SRMAUtil.colorSpaceNextBase(graph.base[u], b);
+                    }
+                    s = score[j] - ((b == graph.base[edgeNode[edge]]) ? 0 : penalty);
+                    c = coverage[j] + toNodeCoverage;
+                    if(nextScore[v] < s || (nextScore[v] == s && nextCoverage[v] < c)) {
+                        nextScore[v] = s;
+                        nextCoverage[v] = c;
+                        back[i*width + v] = j;
+                    }
+                }
+            }
+            tmp = score; score = nextScore; nextScore = tmp;
+            tmp = coverage; coverage = nextCoverage; nextCoverage = tmp;
+        }
+
+        // The best path after the last read base
+        for(j=0;j<width;j++) {
+            if(Integer.MIN_VALUE != score[j] && (best < 0 || score[best] < score[j] 
+                        || (score[best] == score[j] && coverage[best] < coverage[j]))) {
+                best = j;
+            }
+        }
+        if(best < 0 || (null != bestAlignHeapNode 
+                    && (score[best] < bestAlignHeapNode.score 
+                        || (score[best] == bestAlignHeapNode.score && coverage[best] <= bestAlignHeapNode.alleleCoverageSum)))) {
+            return bestAlignHeapNode;
+        }
+
+        // Trace back, then rebuild the path from the start
+        path = new int[length];
+        path[length-1] = best;
+        for(i=length-1;0<i;i--) {
+            path[i-1] = back[i*width + path[i]];
+        }
+        u = first + path[0];
+        curAlignHeapNode = new AlignHeapNode(null, 
+                graph,
+                u,
+                graph.getCoverage(u, sampleIndex),
+                read.charAt(0),
+                qualities.charAt(0),
+                useSequenceQualities,
+                space);
+        for(i=1;i<length;i++) {
+            v = first + path[i];
+            for(edge=edgeStart[u];edgeNode[edge]!=v;edge++) {
+                // the edge to the next node on the path
+            }
+            curAlignHeapNode = new AlignHeapNode(curAlignHeapNode, 
+                    graph,
+                    v,
+                    graph.getEdgeCoverage(edge, strand, sampleIndex),
+                    read.charAt(i),
+                    qualities.charAt(i),
+                    useSequenceQualities,
+                    space);
+            u = v;
+        }
+        return curAlignHeapNode;
+    }
+
+    /*
+     * Adds the path to the next beam, unless a better path to its node is
+     * there, or it cannot be better than the best complete path (the bound
+     * is applied here, before the beam is cut to its width, so that such
+     * paths do not take the place of others).  The best path only changes
+     * at the last read base, when nothing more is added.
+     * */
+    private static void addToBeam(Map<Integer, AlignHeapNode> beam,
+            AlignHeapNode heapNode,
+            GraphSnapshot graph,
+            boolean strand,
+            int readCodes[],
+            int penalties[],
+            AlignHeapNode bestAlignHeapNode)
+    {
+        AlignHeapNode other = null;
+
+        if(null != bestAlignHeapNode 
+                && heapNode.score - getRemainingPenalty(graph, heapNode, strand, readCodes, penalties) < bestAlignHeapNode.score) {
+            return;
+        }
+        other = beam.get(heapNode.index);
+        if(null == other || BEAM_ORDER.compare(heapNode, other) < 0) {
+            beam.put(heapNode.index, heapNode);
+        }
+    }
+
+    /*
+     * Moves from the heap node to the next node in the graph, then keeps
+     * moving one read base at a time for as long as the graph does not
+     * branch: the node has one edge onwards, and the node it leads to has
+     * one edge back.  The first node may be reached by other paths, but
+     * each later node only through the one before it, so the chain needs
+     * neither the heap nor the duplicate check on the way: paths that meet
+     * at the first node follow the same chain, and are checked against
+     * each other where it ends, when added to the heap.  A read over
+     * reference-like sequence is consumed in a few heap operations rather
+     * than one per base.
+     * @param edge The edge to take, onwards (next) if forward, else back (prev).
+     * @return The heap node at the end of the chain, to be added to the heap,
+     * or null if a node failed the filters or the chain cannot be the best.
+     * The outcome is set if the coverage was above the maximum.
+     * */
+    private static AlignHeapNode extendChain(GraphSnapshot graph,
+            AlignHeapNode heapNode,
+            int edge,
+            int sampleIndex,
+            boolean strand,
+            String read,
+            String qualities,
+            SRMAUtil.Space space,
+            AlleleCoverageCutoffs alleleCoverageCutoffs,
+            boolean useSequenceQualities,
+            int MAXIMUM_TOTAL_COVERAGE,
+            AlignHeapNode bestAlignHeapNode,
+            int readCodes[],
+            int penalties[],
+            AlignStatistics stats)
+        throws Exception
+    {
+        int out[] = (strand) ? graph.prevStart : graph.nextStart; // this way
+        int in[] = (strand) ? graph.nextStart : graph.prevStart; // the other way
+        int to[] = (strand) ? graph.prevNode : graph.nextNode;
+
+        while(true) {
+            int node = to[edge];
+            int toNodeCoverage = graph.getEdgeCoverage(edge, strand, sampleIndex);
+            int f = passFilters(graph,
+                    node,
+                    sampleIndex,
+                    toNodeCoverage,
+                    alleleCoverageCutoffs,
+                    MAXIMUM_TOTAL_COVERAGE);
+            if(f < 0) {
+                stats.outcome = AlignStatistics.OUTCOME_MAX_TOTAL_COVERAGE;
+                return null;
+            }
+            else if(0 < f) {
+                return null;
+            }
+            heapNode = new AlignHeapNode(heapNode, 
+                    graph,
+                    node,
+                    toNodeCoverage,
+                    read.charAt(heapNode.readOffset+1), 
+                    qualities.charAt(heapNode.readOffset+1), 
+                    useSequenceQualities,
+                    space);
+
+            // complete: leave it to the heap
+            if(heapNode.readOffset == read.length() - 1) {
+                return heapNode;
+            }
+            else if(null != bestAlignHeapNode 
+                    && heapNode.score - getRemainingPenalty(graph, heapNode, strand, readCodes, penalties) < bestAlignHeapNode.score) {
+                return null;
+            }
+
+            // a branch, in either direction, ends the chain
+            if(1 != out[node+1] - out[node]) {
+                return heapNode;
+            }
+            edge = out[node];
+            if(1 != in[to[edge]+1] - in[to[edge]]) {
+                return heapNode;
+            }
+            stats.expansions++;
+        }
     }
 
     private static void removeMateInfo(SAMRecord rec)
@@ -390,8 +1040,9 @@ public class Align {
     }
 
     private static AlignHeapNode boundWithOriginalAlignment(SAMRecord rec, 
-            Graph graph,
+            GraphSnapshot graph,
             Node recNode, 
+            int sampleIndex,
             AlignHeapNodeComparator comp,
             boolean strand, 
             String read, // could be cs 
@@ -408,12 +1059,14 @@ public class Align {
         AlignHeapNode curAlignHeapNode = null;
         AlignHeapNode nextAlignHeapNode = null;
         AlignHeapNode bestAlignHeapNode = null;
-        ListIterator<NodeRecord> iter=null;
+        int recIndex = graph.indexOf(recNode);
+        int edge, edgeStart[]=null, edgeNode[]=null;
         AlignHeap heap = null;
 
         // Cannot bound
-        if(0 != passFilters(graph,
-                    recNode,
+        if(recIndex < 0 || 0 != passFilters(graph,
+                    recIndex,
+                    sampleIndex,
                     alleleCoverageCutoffs,
                     MAXIMUM_TOTAL_COVERAGE)) {
             return null;
@@ -429,8 +1082,9 @@ public class Align {
 
         // Add start nodes
         heap.add(new AlignHeapNode(null, 
-                    recNode,
-                    recNode.coverage,
+                    graph,
+                    recIndex,
+                    graph.getCoverage(recIndex, sampleIndex),
                     read.charAt(0),
                     qualities.charAt(0),
                     useSequenceQualities,
@@ -473,30 +1127,28 @@ public class Align {
                 }
             }
             else {
-                if(strand) { // reverse
-                    // Go to all the "prev" nodes
-                    iter = curAlignHeapNode.node.prev.listIterator();
-                }
-                else { // forward
-                    // Go to all "next" nodes
-                    iter = curAlignHeapNode.node.next.listIterator();
-                }
+                // Go to all the "prev" nodes if reverse, otherwise all the "next" nodes
+                edgeStart = (strand) ? graph.prevStart : graph.nextStart;
+                edgeNode = (strand) ? graph.prevNode : graph.nextNode;
 
                 // Get the expected next position in the alignment
-                while(iter.hasNext()) {
-                    NodeRecord next = iter.next();
+                for(edge=edgeStart[curAlignHeapNode.index];edge<edgeStart[curAlignHeapNode.index+1];edge++) {
+                    int next = edgeNode[edge];
 
                     // Base should match alignment
-                    if(next.node.base == readBases.charAt(curAlignHeapNode.readOffset+1)) {
+                    if(graph.base[next] == readBases.charAt(curAlignHeapNode.readOffset+1)) {
+                        int toNodeCoverage = graph.getEdgeCoverage(edge, strand, sampleIndex);
                         int f = passFilters(graph, 
-                                next.node,
-                                next.coverage,
+                                next,
+                                sampleIndex,
+                                toNodeCoverage,
                                 alleleCoverageCutoffs,
                                 MAXIMUM_TOTAL_COVERAGE);
                         if(0 == f) {
                             heap.add(new AlignHeapNode(curAlignHeapNode, 
-                                        next.node,
-                                        next.coverage,
+                                        graph,
+                                        next,
+                                        toNodeCoverage,
                                         read.charAt(curAlignHeapNode.readOffset+1), 
                                         qualities.charAt(curAlignHeapNode.readOffset+1), 
                                         useSequenceQualities,
@@ -507,7 +1159,6 @@ public class Align {
                         }
                     }
                 }
-                iter=null;
             }
 
             // Get next
@@ -556,9 +1207,6 @@ public class Align {
         byte colorErrors[] = null;
         int i;
         int numEdits = 0;
-        List<String> optFieldTags = new LinkedList<String>();
-        List<Object> optFieldValues = new LinkedList<Object>();
-        Object attr;
 
         // Debugging stuff
         String readName = rec.getReadName();
@@ -580,7 +1228,7 @@ public class Align {
         // update base qualities for color space reads 
 
         // clear attributes, but save some
-        Align.clearAttributes(rec, optFieldTags, optFieldValues);
+        Align.clearAttributes(rec);
 
         readBases = new byte[read.length()];
         baseQualities = new byte[qualities.length()];
@@ -850,8 +1498,6 @@ public class Align {
         rec.setAlignmentStart(alignmentStart);
         rec.setReadBases(readBases);
         rec.setBaseQualities(baseQualities);
-        // Reset saved attributes
-        Align.resetAttributes(rec, optFieldTags, optFieldValues);
         // Set new attributes
         if(space == SRMAUtil.Space.COLORSPACE) { 
             // set the XE attribute for colorError string
@@ -863,22 +1509,61 @@ public class Align {
         rec.setAttribute("NM", numEdits);
     }
 
+    /*
+     * Returns a lower bound on the penalty of the rest of the read from the
+     * heap node: a read base that no path can reach at its distance costs at
+     * least a mismatch, over the next REACH_LENGTH bases.  Zero in color
+     * space, where the bases depend on the path.
+     * */
+    private static int getRemainingPenalty(GraphSnapshot graph,
+            AlignHeapNode heapNode,
+            boolean strand,
+            int readCodes[],
+            int penalties[])
+    {
+        if(null == readCodes) {
+            return 0;
+        }
+        return getRemainingPenalty(graph, heapNode.index, heapNode.readOffset, strand, readCodes, penalties);
+    }
+
+    // As above, for a path at the node after the given read offset
+    private static int getRemainingPenalty(GraphSnapshot graph,
+            int node,
+            int readOffset,
+            boolean strand,
+            int readCodes[],
+            int penalties[])
+    {
+        int reach, i, end, penalty = 0;
+
+        reach = (strand) ? graph.prevReach[node] : graph.nextReach[node];
+        end = Math.min(readCodes.length, readOffset + 1 + GraphSnapshot.REACH_LENGTH);
+        for(i=readOffset+1;i<end;i++,reach>>>=4) {
+            if(0 <= readCodes[i] && 0 == (reach & (1 << readCodes[i]))) {
+                penalty += penalties[i];
+            }
+        }
+        return penalty;
+    }
+
     /*
      * -1 if the alignment process should be aborted 
      *  0 if the alignment should continue 
      *  1 if the alignment should not be considered any further
      * */
-    private static int passFilters(Graph graph,
-            Node node,
+    private static int passFilters(GraphSnapshot graph,
+            int node,
+            int sampleIndex,
             int toNodeCoverage,
             AlleleCoverageCutoffs alleleCoverageCutoffs,
             int MAXIMUM_TOTAL_COVERAGE) 
     {
-        int totalCoverage = graph.getCoverage(node.position);
-        if(MAXIMUM_TOTAL_COVERAGE < totalCoverage) {
+        int minimumAlleleCoverage = graph.getMinimumAlleleCoverage(graph.position[node], sampleIndex, alleleCoverageCutoffs, MAXIMUM_TOTAL_COVERAGE);
+        if(minimumAlleleCoverage < 0) {
             return -1;
         }
-        else if(alleleCoverageCutoffs.getQ(totalCoverage) <= toNodeCoverage) {
+        else if(minimumAlleleCoverage <= toNodeCoverage) {
             return 0;
         }
         else {
@@ -886,36 +1571,113 @@ public class Align {
         }
     }
 
-    private static int passFilters(Graph graph,
-            Node node,
+    private static int passFilters(GraphSnapshot graph,
+            int node,
+            int sampleIndex,
             AlleleCoverageCutoffs alleleCoverageCutoffs,
             int MAXIMUM_TOTAL_COVERAGE) 
     {
-        return passFilters(graph, node, node.coverage, alleleCoverageCutoffs, MAXIMUM_TOTAL_COVERAGE);
+        return passFilters(graph, node, sampleIndex, graph.getCoverage(node, sampleIndex), alleleCoverageCutoffs, MAXIMUM_TOTAL_COVERAGE);
     }
 
-    private static void clearAttributes(SAMRecord rec, List<String> optFieldTags, List<Object> optFieldValues)
+    /*
+     * Removes the attributes that are not saved, in place, so that the saved
+     * ones need not be copied out and set again.
+     * */
+    private static void clearAttributes(SAMRecord rec)
     {
-        ListIterator<String> iter = saveTags.listIterator();
+        ListIterator<SAMRecord.SAMTagAndValue> iter = rec.getAttributes().listIterator();
 
         while(iter.hasNext()) {
-            String tag = iter.next();
-            Object attr = rec.getAttribute(tag);
-            if(null != attr) {
-                optFieldTags.add(tag);
-                optFieldValues.add(attr);
+            String tag = iter.next().tag;
+            if(!saveTags.contains(tag)) {
+                rec.setAttribute(tag, null);
             }
         }
-        rec.clearAttributes();
     }
 
-    private static void resetAttributes(SAMRecord rec, List<String> optFieldTags, List<Object> optFieldValues)
+    /*
+     * Returns true if the read could be re-aligned somewhere else within a
+     * stretch of the graph that does not branch.  There, each start node has
+     * one path, and the read spells its own exactly, so another path scores
+     * as well only if the read repeats itself with a period of at most the
+     * offset.  Color space reads, and reads with a base that costs no
+     * penalty, may always move.
+     * */
+    public static boolean mayMoveWithoutBranching(SAMRecord rec, boolean mayBeColorSpace, int offset, boolean useSequenceQualities)
     {
-        ListIterator<String> iterTags = optFieldTags.listIterator();
-        ListIterator<Object> iterValues = optFieldValues.listIterator();
+        List<CigarElement> cigarElements = rec.getCigar().getCigarElements();
+        byte bases[] = rec.getReadBases();
+        byte qualities[] = rec.getBaseQualities();
+        int first = 0, last = bases.length, period, i;
 
-        while(iterTags.hasNext()) {
-            rec.setAttribute(iterTags.next(), iterValues.next());
+        if(mayBeColorSpace && null != rec.getAttribute("CS")) {
+            return true;
+        }
+        // soft-clipped bases are not aligned
+        if(CigarOperator.S == cigarElements.get(0).getOperator()) {
+            first = cigarElements.get(0).getLength();
+        }
+        if(CigarOperator.S == cigarElements.get(cigarElements.size()-1).getOperator()) {
+            last -= cigarElements.get(cigarElements.size()-1).getLength();
+        }
+        if(useSequenceQualities) {
+            for(i=first;i<last;i++) {
+                if(qualities[i] <= 0) {
+                    return true;
+                }
+            }
+        }
+        for(period=1;period<=offset && first+period<last;period++) {
+            for(i=first;i+period<last && bases[i] == bases[i+period];i++) {
+                // repeats so far
+            }
+            if(last <= i+period) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Returns false if the read groups of the header all name a platform
+     * other than SOLiD, so that the CS tag of its records need not be
+     * looked up (which decodes all the tags of the record).  Checks every
+     * read group, so is computed once per header, not per record.
+     * */
+    public static boolean mayBeColorSpace(SAMFileHeader header)
+    {
+        List<SAMReadGroupRecord> readGroups = (null == header) ? null : header.getReadGroups();
+        int i;
+
+        if(null == readGroups || 0 == readGroups.size()) {
+            return true;
+        }
+        for(i=0;i<readGroups.size();i++) {
+            String platform = readGroups.get(i).getPlatform();
+            if(null == platform || platform.equalsIgnoreCase("SOLID")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Returns the bytes plus the offset as a string, optionally reversed
+    private static String toString(byte bytes[], int offset, boolean reverse)
+    {
+        char chars[] = new char[bytes.length];
+        int i;
+
+        if(reverse) {
+            for(i=0;i<bytes.length;i++) {
+                chars[i] = (char)(bytes[bytes.length - i - 1] + offset);
+            }
+        }
+        else {
+            for(i=0;i<bytes.length;i++) {
+                chars[i] = (char)(bytes[i] + offset);
+            }
         }
+        return new String(chars);
     }
 }
@@ -10,6 +10,7 @@ import srma.*;
 public class AlignHeapNode {
     AlignHeapNode prev; // previous
     Node node;
+    int index; // of the node in the graph snapshot
     int readOffset; // # of bases from the beginning of the read
     int score; // alignment score
     int alleleCoverageSum; // allele coverage sum 
@@ -19,24 +20,25 @@ public class AlignHeapNode {
     /* 
      * Creates a heap node
      * @param prev The previous node, null otherwise.
-     * @param curNode The current node in the graph.
+     * @param graph The graph.
+     * @param index The index of the current node in the graph.
      * @param base The base (or color) in the read.
      * @param qual The base (or color) quality in the read.
      * @param space The space of the alignment.
      * */
     public AlignHeapNode(AlignHeapNode prev,
-            Node curNode,
+            GraphSnapshot graph,
+            int index,
             int curCoverage,
             char base,
             char qual,
             boolean useSequencQualities,
             SRMAUtil.Space space) throws Exception 
     {
-        if(null == curNode) {
-            throw new Exception("Error.  curNode was null");
-        }
+        char nodeBase = graph.base[index];
 
-        this.node = curNode;
+        this.node = graph.nodes[index];
+        this.index = index;
         this.space = space;
 
         if(null == prev) { // first base
@@ -45,7 +47,7 @@ public class AlignHeapNode {
             }
             this.readOffset = 0;
             this.score = 0;
-            this.startPosition = curNode.position;
+            this.startPosition = graph.position[index];
             this.prev = null;
             this.alleleCoverageSum = curCoverage;
         }
@@ -60,12 +62,11 @@ public class AlignHeapNode {
             this.prev = prev;
             this.alleleCoverageSum = prev.alleleCoverageSum + curCoverage;
         }
-        //System.err.println("base="+(char)base+" curNode.base="+(char)curNode.base+" score="+((base == curNode.base) ? 0 : -1*SRMAUtil.CHAR2QUAL(qual)));
         if(useSequencQualities) {
-            this.score += (base == curNode.base) ? 0 : -1*SRMAUtil.CHAR2QUAL(qual); 
+            this.score += (base == nodeBase) ? 0 : -1*SRMAUtil.CHAR2QUAL(qual); 
         }
         else {
-            this.score += (base == curNode.base) ? 0 : -1;
+            this.score += (base == nodeBase) ? 0 : -1;
         }
     }
 }
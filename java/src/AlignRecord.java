@@ -7,12 +7,18 @@ public class AlignRecord {
     public SAMRecord record;
     public Node node;
     public int fileIndex; // to which input/output file does this belong?
+    public int sampleIndex; // to which sample does this belong, or -1 if not partitioned
+    public boolean search; // false if it cannot move, so its alignment is kept without a search
+    public boolean mayBeColorSpace; // false if no read group of its file may be SOLiD, so the CS tag need not be looked up
 
     public AlignRecord(SAMRecord record, Node node, int fileIndex)
     {
         this.record = record;
         this.node = node;
         this.fileIndex = fileIndex;
+        this.sampleIndex = -1;
+        this.search = true;
+        this.mayBeColorSpace = true;
     }   
 
     public void setNode(Node node)
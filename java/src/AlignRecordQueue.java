@@ -0,0 +1,237 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A first-in first-out queue of records, backed by an array.  Records are
+ * taken off the front as a Batch: one array holding a contiguous range of
+ * the queue, which worker threads claim in small chunks.  There is no list
+ * node per record, and the batch keeps the queue order for the output.
+ * */
+public class AlignRecordQueue {
+
+    private AlignRecord records[];
+    private int head; // the index of the first record
+    private int tail; // one past the index of the last record
+
+    public AlignRecordQueue()
+    {
+        this.records = new AlignRecord[1024];
+        this.head = this.tail = 0;
+    }
+
+    // Add to the end of the queue
+    public void add(AlignRecord rec)
+    {
+        if(this.tail == this.records.length) {
+            int size = this.size();
+            if(this.records.length < 2*size) { // grow
+                AlignRecord tmp[] = new AlignRecord[2*this.records.length];
+                System.arraycopy(this.records, this.head, tmp, 0, size);
+                this.records = tmp;
+            }
+            else { // move to the start
+                System.arraycopy(this.records, this.head, this.records, 0, size);
+                Arrays.fill(this.records, size, this.tail, null);
+            }
+            this.head = 0;
+            this.tail = size;
+        }
+        this.records[this.tail++] = rec;
+    }
+
+    public int size()
+    {
+        return this.tail - this.head;
+    }
+
+    public AlignRecord getFirst()
+    {
+        if(0 == this.size()) {
+            return null;
+        }
+        return this.records[this.head];
+    }
+
+    public AlignRecord getLast()
+    {
+        if(0 == this.size()) {
+            return null;
+        }
+        return this.records[this.tail-1];
+    }
+
+    public AlignRecord removeFirst()
+    {
+        AlignRecord rec = null;
+
+        if(0 == this.size()) {
+            return null;
+        }
+        rec = this.records[this.head];
+        this.records[this.head++] = null;
+        return rec;
+    }
+
+    /*
+     * Takes the records from the front of the queue that are on the
+     * specified contig.  Stops when an entry is not found.
+     * */
+    public Batch takeBatch(int contig)
+    {
+        return this.takeBatch(contig, Integer.MAX_VALUE);
+    }
+
+    /*
+     * Takes the records from the front of the queue that are on the specified
+     * contig and end before the upper bound.  Stops when an entry is not
+     * found.  Do not use this if we mean to flush.
+     * */
+    public Batch takeBatch(int contig, int alignmentEndUpperBound)
+    {
+        int start = this.head;
+        Batch batch = null;
+
+        while(this.head < this.tail) {
+            AlignRecord rec = this.records[this.head];
+            if(rec.record.getReferenceIndex()+1 != contig ||
+                    alignmentEndUpperBound <= rec.record.getAlignmentEnd()) {
+                break;
+            }
+            this.head++;
+        }
+
+        // copy only the references to the records, in one block
+        batch = new Batch(Arrays.copyOfRange(this.records, start, this.head));
+        Arrays.fill(this.records, start, this.head, null);
+        return batch;
+    }
+
+    /*
+     * Records taken from the queue, in queue order.  The records are split
+     * into chunks of consecutive records, which worker threads claim until
+     * none are left.  Chunks are CHUNK_SIZE records, or else of about equal
+     * estimated cost (see partition), claimed most expensive first so that
+     * no thread starts a slow chunk last.  The order in which chunks are
+     * processed does not change the order of the batch.
+     * */
+    public static class Batch {
+
+        public static final int CHUNK_SIZE = 16; // small, so that a slow record does not hold up the other threads
+        public static final int CHUNKS_PER_THREAD = 8; // when partitioned by cost
+
+        private AlignRecord records[];
+        private int chunkStarts[]; // the start of each chunk, then the end of the batch
+        private int chunkOrder[]; // the order in which the chunks are claimed
+        private AtomicInteger next;
+
+        private Batch(AlignRecord records[])
+        {
+            int i, numChunks = (records.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+
+            this.records = records;
+            this.chunkStarts = new int[numChunks+1];
+            this.chunkOrder = new int[numChunks];
+            for(i=0;i<numChunks;i++) {
+                this.chunkStarts[i] = i * CHUNK_SIZE;
+                this.chunkOrder[i] = i;
+            }
+            this.chunkStarts[numChunks] = records.length;
+            this.next = new AtomicInteger(0);
+        }
+
+        public int size()
+        {
+            return this.records.length;
+        }
+
+        public AlignRecord get(int i)
+        {
+            return this.records[i];
+        }
+
+        public int getNumChunks()
+        {
+            return this.chunkOrder.length;
+        }
+
+        /*
+         * Splits the batch into about CHUNKS_PER_THREAD chunks per thread,
+         * each of about equal total cost, to be claimed in order of
+         * decreasing cost.  Must be called before any chunk is claimed.
+         * @param costs The estimated cost of each record.
+         * @param numThreads The number of threads that will claim chunks.
+         * */
+        public void partition(final long costs[], int numThreads)
+        {
+            List<Integer> starts = new ArrayList<Integer>();
+            List<Integer> order = new ArrayList<Integer>();
+            final List<Long> chunkCosts = new ArrayList<Long>();
+            long total = 0, target, chunkCost = 0;
+            int i;
+
+            for(i=0;i<costs.length;i++) {
+                total += costs[i];
+            }
+            target = Math.max(1, total / ((long)numThreads * CHUNKS_PER_THREAD));
+
+            for(i=0;i<costs.length;i++) {
+                if(0 == i || target <= chunkCost) { // start a new chunk
+                    if(0 < i) {
+                        chunkCosts.add(chunkCost);
+                    }
+                    starts.add(i);
+                    chunkCost = 0;
+                }
+                chunkCost += costs[i];
+            }
+            if(0 < costs.length) {
+                chunkCosts.add(chunkCost);
+            }
+
+            for(i=0;i<starts.size();i++) {
+                order.add(i);
+            }
+            // most expensive first, ties in batch order
+            Collections.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    int c = chunkCosts.get(b).compareTo(chunkCosts.get(a));
+                    return (0 != c) ? c : a.compareTo(b);
+                }
+            });
+
+            this.chunkStarts = new int[starts.size()+1];
+            this.chunkOrder = new int[starts.size()];
+            for(i=0;i<starts.size();i++) {
+                this.chunkStarts[i] = starts.get(i);
+                this.chunkOrder[i] = order.get(i);
+            }
+            this.chunkStarts[starts.size()] = this.records.length;
+        }
+
+        /*
+         * Returns the next unclaimed chunk, or -1 if all chunks were claimed.
+         * */
+        public int claim()
+        {
+            int i = this.next.getAndIncrement();
+            return (i < this.chunkOrder.length) ? this.chunkOrder[i] : -1;
+        }
+
+        // The index of the first record in the chunk
+        public int getChunkStart(int chunk)
+        {
+            return this.chunkStarts[chunk];
+        }
+
+        // One past the index of the last record in the chunk
+        public int getChunkEnd(int chunk)
+        {
+            return this.chunkStarts[chunk+1];
+        }
+    }
+}
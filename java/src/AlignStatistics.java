@@ -0,0 +1,39 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+/*
+ * The outcome of re-aligning a single read, filled in by Align.align.
+ * */
+public class AlignStatistics {
+
+    public static final int OUTCOME_REALIGNED           = 0; // the search completed and the record was updated
+    public static final int OUTCOME_NO_ALIGNMENT        = 1; // no path passed the allele coverage filters
+    public static final int OUTCOME_MAX_HEAP_SIZE       = 2; // aborted since the heap grew past MAX_HEAP_SIZE
+    public static final int OUTCOME_MAX_TOTAL_COVERAGE  = 3; // aborted since the coverage was above MAXIMUM_TOTAL_COVERAGE
+    public static final int NUM_OUTCOMES                = 4;
+    public static final String OUTCOME_NAMES[] = {"realigned", "no_alignment", "max_heap_size", "max_total_coverage"};
+
+    public int outcome;
+    public int expansions; // the number of nodes expanded, including those within a chain
+    public int maxHeapSize; // the peak heap, beam or DP band size
+    public int finalHeapSize; // the heap, beam or DP band size when the search ended
+    public boolean changed; // the alignment start or CIGAR changed
+    public boolean certified; // the original alignment was shown to be the best, so there was no search
+
+    public AlignStatistics()
+    {
+        this.reset();
+    }
+
+    public void reset()
+    {
+        this.outcome = OUTCOME_NO_ALIGNMENT;
+        this.expansions = 0;
+        this.maxHeapSize = 0;
+        this.finalHeapSize = 0;
+        this.changed = false;
+        this.certified = false;
+    }
+}
@@ -137,7 +137,18 @@ public class Alignment {
         }
     }
 
-    private void leftJustify()
+    void leftJustify()
+    {
+        Alignment.leftJustify(this.read, this.reference, this.length);
+    }
+
+    /*
+     * Left-justifies the indels in an alignment, where gaps are given by GAP.
+     * @param read The read bases.
+     * @param reference The reference bases.
+     * @param length The length of the alignment.
+     * */
+    public static void leftJustify(byte read[], byte reference[], int length)
     {
         // Left-justify alignment
         int i;
@@ -146,10 +157,10 @@ public class Alignment {
         i = prevDel = prevIns = 0;
         startDel = endDel = startIns = endIns = -1;
 
-        while(i<this.length) {
+        while(i<length) {
             assert (0 == prevIns || 0 == prevDel);
 
-            if(Alignment.GAP == this.read[i]) {
+            if(Alignment.GAP == read[i]) {
                 if(0 == prevDel) {
                     startDel = i;
                 }
@@ -160,7 +171,7 @@ public class Alignment {
                 endIns = -1;
                 i++;
             }
-            else if(Alignment.GAP == this.reference[i]) {
+            else if(Alignment.GAP == reference[i]) {
                 if(0 == prevIns) {
                     startIns = i;
                 }
@@ -177,43 +188,43 @@ public class Alignment {
                     assert (startDel <= endDel);
                     startDel--;
                     while(0 <= startDel && // Bases remaining to examine 
-                            this.read[startDel] != Alignment.GAP && // Hit another deletion 
-                            this.reference[startDel] != Alignment.GAP && // Hit an insertion 
-                            this.reference[startDel] == this.reference[endDel]) { // src ref base matches dest ref base 
-                        assert (Alignment.GAP != this.reference[startDel]);
-                        assert (Alignment.GAP != this.reference[endDel]);
-                        assert (Alignment.GAP != this.read[startDel]);
-                        assert (Alignment.GAP == this.read[endDel]);
-                        this.read[endDel] = this.read[startDel];
-                        this.read[startDel] = Alignment.GAP;
+                            read[startDel] != Alignment.GAP && // Hit another deletion 
+                            reference[startDel] != Alignment.GAP && // Hit an insertion 
+                            reference[startDel] == reference[endDel]) { // src ref base matches dest ref base 
+                        assert (Alignment.GAP != reference[startDel]);
+                        assert (Alignment.GAP != reference[endDel]);
+                        assert (Alignment.GAP != read[startDel]);
+                        assert (Alignment.GAP == read[endDel]);
+                        read[endDel] = read[startDel];
+                        read[startDel] = Alignment.GAP;
                         startDel--;
                         endDel--;
                             }
                     endDel++; // We decremented when we exited the loop 
                     i = endDel;
-                    assert (Alignment.GAP != this.read[i]);
-                    assert (Alignment.GAP != this.reference[i]);
+                    assert (Alignment.GAP != read[i]);
+                    assert (Alignment.GAP != reference[i]);
                 }
                 else if(1 == prevIns) {
                     assert (startIns <= endIns);
                     startIns--;
                     while(0 <= startIns && // Bases remaining to examine 
-                            this.read[startIns] != Alignment.GAP && // Hit another deletion 
-                            this.reference[startIns] != Alignment.GAP && // Hit an insertion 
-                            this.read[startIns] == this.read[endIns]) { // src this.read base matches dest this.read base 
-                        assert (Alignment.GAP != this.read[startIns]);
-                        assert (Alignment.GAP != this.read[endIns]);
-                        assert (Alignment.GAP != this.reference[startIns]);
-                        assert (Alignment.GAP == this.reference[endIns]);
-                        this.reference[endIns] = this.reference[startIns];
-                        this.reference[startIns] = Alignment.GAP;
+                            read[startIns] != Alignment.GAP && // Hit another deletion 
+                            reference[startIns] != Alignment.GAP && // Hit an insertion 
+                            read[startIns] == read[endIns]) { // src read base matches dest read base 
+                        assert (Alignment.GAP != read[startIns]);
+                        assert (Alignment.GAP != read[endIns]);
+                        assert (Alignment.GAP != reference[startIns]);
+                        assert (Alignment.GAP == reference[endIns]);
+                        reference[endIns] = reference[startIns];
+                        reference[startIns] = Alignment.GAP;
                         startIns--;
                         endIns--;
                             }
                     endIns++; // We decremented when we exited the loop 
                     i = endIns;
-                    assert (Alignment.GAP != this.read[i]);
-                    assert (Alignment.GAP != this.reference[i]);
+                    assert (Alignment.GAP != read[i]);
+                    assert (Alignment.GAP != reference[i]);
                 }
                 else {
                     i++;
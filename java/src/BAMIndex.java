@@ -0,0 +1,175 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.io.*;
+import java.util.*;
+
+/*
+ * Reads and writes BAI indexes.  For each reference the index holds the
+ * chunks (pairs of virtual file offsets) of each bin, the optional
+ * meta-data pseudo-bin written by samtools and Picard, and the linear
+ * index; after the references comes the optional number of records
+ * without a co-ordinate.
+ * */
+public class BAMIndex {
+
+    private static final int PSEUDO_BIN = 37450;
+
+    public static class Reference {
+        public TreeMap<Integer, List<long[]>> bins = new TreeMap<Integer, List<long[]>>(); // start and end offsets
+        public long intervals[] = new long[0];
+        public long metaData[] = null; // start offset, end offset, mapped, unmapped
+    }
+
+    public List<Reference> references = new ArrayList<Reference>();
+    public long numNoCoordinate = -1; // -1 if not given
+
+    /*
+     * Returns the index of the given BAM file, looking where Picard does
+     * (x.bai, then x.bam.bai), or null if there is none.
+     * */
+    public static File getIndex(File bam)
+    {
+        String name = bam.getName();
+        File index = null;
+
+        if(name.endsWith(".bam")) {
+            index = new File(bam.getParentFile(), name.substring(0, name.length() - 4) + ".bai");
+            if(index.exists()) {
+                return index;
+            }
+        }
+        index = new File(bam.getParentFile(), name + ".bai");
+        return (index.exists()) ? index : null;
+    }
+
+    public static BAMIndex read(File index)
+        throws Exception
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+        BAMIndex bamIndex = new BAMIndex();
+        byte magic[] = new byte[4];
+        int i, j, k, numReferences;
+
+        try {
+            in.readFully(magic);
+            if('B' != magic[0] || 'A' != magic[1] || 'I' != magic[2] || 1 != magic[3]) {
+                throw new Exception("Not a BAM index: " + index.getPath());
+            }
+            numReferences = readInt(in);
+            for(i=0;i<numReferences;i++) {
+                Reference reference = new Reference();
+                int numBins, numIntervals;
+
+                numBins = readInt(in);
+                for(j=0;j<numBins;j++) {
+                    int bin = readInt(in);
+                    int numChunks = readInt(in);
+                    List<long[]> chunks = null;
+
+                    if(PSEUDO_BIN == bin && 2 == numChunks) {
+                        reference.metaData = new long[4];
+                        for(k=0;k<4;k++) {
+                            reference.metaData[k] = readLong(in);
+                        }
+                        continue;
+                    }
+                    chunks = reference.bins.get(bin);
+                    if(null == chunks) {
+                        chunks = new ArrayList<long[]>();
+                        reference.bins.put(bin, chunks);
+                    }
+                    for(k=0;k<numChunks;k++) {
+                        long start = readLong(in);
+                        long end = readLong(in);
+                        chunks.add(new long[]{start, end});
+                    }
+                }
+
+                numIntervals = readInt(in);
+                reference.intervals = new long[numIntervals];
+                for(j=0;j<numIntervals;j++) {
+                    reference.intervals[j] = readLong(in);
+                }
+                bamIndex.references.add(reference);
+            }
+            if(0 < in.available()) {
+                bamIndex.numNoCoordinate = readLong(in);
+            }
+        } finally {
+            in.close();
+        }
+
+        return bamIndex;
+    }
+
+    public void write(File output)
+        throws Exception
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output)));
+        int i, j;
+
+        try {
+            out.write(new byte[]{'B', 'A', 'I', 1});
+            writeInt(out, this.references.size());
+            for(i=0;i<this.references.size();i++) {
+                Reference reference = this.references.get(i);
+                Iterator<Map.Entry<Integer, List<long[]>>> iter = reference.bins.entrySet().iterator();
+
+                writeInt(out, reference.bins.size() + ((null == reference.metaData) ? 0 : 1));
+                while(iter.hasNext()) {
+                    Map.Entry<Integer, List<long[]>> entry = iter.next();
+                    writeInt(out, entry.getKey());
+                    writeInt(out, entry.getValue().size());
+                    for(j=0;j<entry.getValue().size();j++) {
+                        writeLong(out, entry.getValue().get(j)[0]);
+                        writeLong(out, entry.getValue().get(j)[1]);
+                    }
+                }
+                if(null != reference.metaData) {
+                    writeInt(out, PSEUDO_BIN);
+                    writeInt(out, 2);
+                    for(j=0;j<4;j++) {
+                        writeLong(out, reference.metaData[j]);
+                    }
+                }
+                writeInt(out, reference.intervals.length);
+                for(j=0;j<reference.intervals.length;j++) {
+                    writeLong(out, reference.intervals[j]);
+                }
+            }
+            if(0 <= this.numNoCoordinate) {
+                writeLong(out, this.numNoCoordinate);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // little endian
+    private static int readInt(DataInputStream in)
+        throws IOException
+    {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private static long readLong(DataInputStream in)
+        throws IOException
+    {
+        return Long.reverseBytes(in.readLong());
+    }
+
+    private static void writeInt(DataOutputStream out, int value)
+        throws IOException
+    {
+        out.writeInt(Integer.reverseBytes(value));
+    }
+
+    private static void writeLong(DataOutputStream out, long value)
+        throws IOException
+    {
+        out.writeLong(Long.reverseBytes(value));
+    }
+}
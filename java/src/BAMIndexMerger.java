@@ -0,0 +1,96 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.io.*;
+import java.util.*;
+
+/*
+ * Merges the BAI indexes of co-ordinate ordered BAM segments into the index
+ * of their concatenation, so that the concatenated file need not be read
+ * again to index it.  The virtual file offsets of each segment are moved to
+ * where its blocks were copied by an OffsetMap.
+ * */
+public class BAMIndexMerger {
+
+    /*
+     * Maps a virtual file offset within a segment to one within the
+     * concatenated file.
+     * */
+    public static abstract class OffsetMap {
+        public abstract long map(long virtualOffset);
+    }
+
+    /*
+     * @param indexes The index of each segment, in output order.
+     * @param maps The offset map of each segment.
+     * @param output The merged index.
+     * */
+    public static void merge(List<File> indexes, List<OffsetMap> maps, File output)
+        throws Exception
+    {
+        BAMIndex merged = new BAMIndex();
+        int i;
+
+        for(i=0;i<indexes.size();i++) {
+            add(BAMIndex.read(indexes.get(i)), maps.get(i), merged);
+        }
+        merged.write(output);
+    }
+
+    // Adds the index of a segment, which follows those already added, to the merged index
+    private static void add(BAMIndex index, OffsetMap map, BAMIndex merged)
+    {
+        int i, j;
+
+        for(i=0;i<index.references.size();i++) {
+            BAMIndex.Reference segment = index.references.get(i);
+            BAMIndex.Reference reference = null;
+
+            if(merged.references.size() <= i) {
+                merged.references.add(new BAMIndex.Reference());
+            }
+            reference = merged.references.get(i);
+
+            if(null != segment.metaData) {
+                long start = map.map(segment.metaData[0]);
+                long end = map.map(segment.metaData[1]);
+                if(null == reference.metaData) { // earlier segments come first
+                    reference.metaData = new long[]{start, end, segment.metaData[2], segment.metaData[3]};
+                }
+                else {
+                    reference.metaData[1] = end;
+                    reference.metaData[2] += segment.metaData[2];
+                    reference.metaData[3] += segment.metaData[3];
+                }
+            }
+            for(Map.Entry<Integer, List<long[]>> entry : segment.bins.entrySet()) {
+                List<long[]> chunks = reference.bins.get(entry.getKey());
+                if(null == chunks) {
+                    chunks = new ArrayList<long[]>();
+                    reference.bins.put(entry.getKey(), chunks);
+                }
+                for(long chunk[] : entry.getValue()) {
+                    chunks.add(new long[]{map.map(chunk[0]), map.map(chunk[1])});
+                }
+            }
+
+            if(reference.intervals.length < segment.intervals.length) {
+                reference.intervals = Arrays.copyOf(reference.intervals, segment.intervals.length);
+            }
+            for(j=0;j<segment.intervals.length;j++) {
+                if(0 != segment.intervals[j]) {
+                    long offset = map.map(segment.intervals[j]);
+                    // the smallest offset of a record overlapping the window
+                    if(0 == reference.intervals[j] || offset < reference.intervals[j]) {
+                        reference.intervals[j] = offset;
+                    }
+                }
+            }
+        }
+        if(0 <= index.numNoCoordinate) {
+            merged.numNoCoordinate = (merged.numNoCoordinate < 0) ? index.numNoCoordinate : (merged.numNoCoordinate + index.numNoCoordinate);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.io.*;
+import java.util.*;
+
+/*
+ * Estimates the amount of work in a BAM file from its BAI index, without
+ * reading the BAM file.  The number of mapped reads is taken from the
+ * index meta-data (the pseudo-bin written by samtools and Picard) where
+ * present, and otherwise from the span of compressed bytes covered by each
+ * reference.  Falls back to the size of the BAM file when there is no index.
+ * */
+public class BAMIndexSizeEstimator {
+
+    private static final long AVERAGE_COMPRESSED_RECORD_SIZE = 40; // bytes, to convert a compressed span into reads
+
+    /*
+     * Returns the estimated number of reads in the BAM file, for use in
+     * scheduling only.
+     * @param bam The BAM file.
+     * @param referenceIndices The zero-based reference indices to count, or null for all.
+     * */
+    public static long estimate(File bam, Set<Integer> referenceIndices)
+        throws Exception
+    {
+        File index = BAMIndex.getIndex(bam);
+        if(null == index) {
+            return bam.length() / AVERAGE_COMPRESSED_RECORD_SIZE;
+        }
+        return estimateFromIndex(index, referenceIndices);
+    }
+
+    private static long estimateFromIndex(File index, Set<Integer> referenceIndices)
+        throws Exception
+    {
+        BAMIndex bamIndex = BAMIndex.read(index);
+        int i;
+        long total = 0;
+
+        for(i=0;i<bamIndex.references.size();i++) {
+            BAMIndex.Reference reference = bamIndex.references.get(i);
+            long minOffset = Long.MAX_VALUE, maxOffset = 0;
+
+            if(null != referenceIndices && !referenceIndices.contains(i)) {
+                continue;
+            }
+            if(null != reference.metaData) {
+                total += reference.metaData[2]; // number mapped
+                continue;
+            }
+            for(List<long[]> chunks : reference.bins.values()) {
+                for(long chunk[] : chunks) {
+                    long start = chunk[0] >>> 16; // compressed offset
+                    long end = chunk[1] >>> 16;
+                    if(start < minOffset) {
+                        minOffset = start;
+                    }
+                    if(maxOffset < end) {
+                        maxOffset = end;
+                    }
+                }
+            }
+            if(minOffset < maxOffset) {
+                total += (maxOffset - minOffset) / AVERAGE_COMPRESSED_RECORD_SIZE;
+            }
+        }
+
+        return total;
+    }
+}
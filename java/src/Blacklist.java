@@ -0,0 +1,90 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.io.*;
+import java.util.*;
+import net.sf.samtools.*;
+
+/*
+ * Regions, in the RANGES format, in which reads are not re-aligned.  A
+ * fraction of the reads in these regions can still be re-aligned; the choice
+ * depends only on the read name, so it is the same between runs and for both
+ * ends of a pair.
+ * */
+public class Blacklist {
+
+    private static final int HASH_BUCKETS = 1000000;
+
+    private Range ranges[][] = null; // by reference index, co-ordinate sorted
+    private int fraction; // in hash buckets
+
+    /*
+     * @param file The blacklist file.
+     * @param referenceDictionary The reference dictionary.
+     * @param fraction The fraction of reads within the blacklist to re-align anyway.
+     * */
+    public Blacklist(File file, SAMSequenceDictionary referenceDictionary, double fraction)
+        throws Exception
+    {
+        Ranges r = new Ranges(file, referenceDictionary, 0);
+        List<List<Range>> byReference = new ArrayList<List<Range>>();
+        Iterator<Range> iter = r.iterator();
+        int i;
+
+        if(fraction < 0 || 1 < fraction) {
+            throw new Exception("The blacklist fraction must be between zero and one.");
+        }
+        this.fraction = (int)(fraction * HASH_BUCKETS);
+
+        for(i=0;i<referenceDictionary.size();i++) {
+            byReference.add(new ArrayList<Range>());
+        }
+        while(iter.hasNext()) {
+            Range range = iter.next();
+            byReference.get(range.referenceIndex).add(range);
+        }
+        this.ranges = new Range[referenceDictionary.size()][];
+        for(i=0;i<referenceDictionary.size();i++) {
+            this.ranges[i] = byReference.get(i).toArray(new Range[0]);
+        }
+    }
+
+    /*
+     * Returns true if the record overlaps the blacklist and was not sampled
+     * for re-alignment.
+     * */
+    public boolean skip(SAMRecord rec)
+    {
+        if(!this.overlaps(rec.getReferenceIndex(), rec.getAlignmentStart(), rec.getAlignmentEnd())) {
+            return false;
+        }
+        return (this.fraction <= ((rec.getReadName().hashCode() & Integer.MAX_VALUE) % HASH_BUCKETS));
+    }
+
+    private boolean overlaps(int referenceIndex, int start, int end)
+    {
+        Range r[] = null;
+        int low, high, mid;
+
+        if(referenceIndex < 0 || this.ranges.length <= referenceIndex) {
+            return false;
+        }
+        r = this.ranges[referenceIndex];
+
+        // find the first range that ends at or after the start
+        low = 0;
+        high = r.length;
+        while(low < high) {
+            mid = (low + high) >>> 1;
+            if(r[mid].endPosition < start) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return (low < r.length && r[low].startPosition <= end);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.io.*;
+import java.util.*;
+import net.sf.samtools.*;
+
+/*
+ * Reads and writes CRAM files through samtools, since the SAM-JDK used here
+ * does not support CRAM.  Records are passed as uncompressed BAM when
+ * reading and as SAM text when writing, so there is no temporary file.
+ * Both directions use the SRMA reference for the reference-based encoding,
+ * and region queries use the .crai index.
+ * */
+public class CRAMFile {
+
+    private String samtools = null;
+    private File file = null;
+    private File reference = null;
+    private Process process = null;
+    private SAMFileReader reader = null;
+    private EOFInputStream input = null; // the output of samtools
+
+    /*
+     * @param samtools The samtools executable.
+     * @param file The CRAM file.
+     * @param reference The reference FASTA file with which it was encoded.
+     * */
+    public CRAMFile(String samtools, File file, File reference)
+        throws Exception
+    {
+        if(null == reference) {
+            throw new Exception("CRAM requires the reference: " + file.getPath());
+        }
+        this.samtools = samtools;
+        this.file = file;
+        this.reference = reference;
+    }
+
+    public static boolean isCRAM(File file)
+    {
+        return file.getName().endsWith(".cram");
+    }
+
+    public boolean hasIndex()
+    {
+        return new File(this.file.getPath() + ".crai").canRead();
+    }
+
+    /*
+     * Returns a reader over the records in the region (ex. chr1:100-200), or
+     * all records if null, closing the previous reader.
+     * */
+    public SAMFileReader open(String region)
+        throws Exception
+    {
+        List<String> command = new ArrayList<String>(Arrays.asList(this.samtools, "view", "-u", "-T", this.reference.getPath(), this.file.getPath()));
+
+        this.close();
+        if(null != region) {
+            command.add(region);
+        }
+        this.process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        this.process.getOutputStream().close();
+        this.input = new EOFInputStream(this.process.getInputStream());
+        this.reader = new SAMFileReader(new BufferedInputStream(this.input), false);
+        return this.reader;
+    }
+
+    /*
+     * Closes the reader.  If all of the records were read, fails unless
+     * samtools exited successfully, since otherwise the records may have
+     * been truncated.  If not, samtools is stopped and its status ignored.
+     * */
+    public void close()
+        throws Exception
+    {
+        int status;
+        if(null != this.reader) {
+            this.reader.close();
+            this.reader = null;
+        }
+        if(null != this.process) {
+            Process process = this.process;
+            boolean eof = this.input.isEOF();
+            this.process = null;
+            this.input = null;
+            if(eof) {
+                status = process.waitFor();
+                if(0 != status) {
+                    throw new Exception("samtools exited with status " + status + " reading " + this.file.getPath());
+                }
+            }
+            else {
+                // closed early, so samtools may be blocked writing
+                process.destroy();
+                process.waitFor();
+            }
+        }
+    }
+
+    /*
+     * Returns a writer to the CRAM file.  The file is complete once the
+     * writer is closed.
+     * @param createIndex true to also write the .crai index.
+     * */
+    public static SAMFileWriter makeWriter(String samtools, SAMFileHeader header, File output, File reference, boolean createIndex)
+        throws Exception
+    {
+        List<String> command = null;
+        Process process = null;
+
+        if(null == reference) {
+            throw new Exception("CRAM requires the reference: " + output.getPath());
+        }
+        command = new ArrayList<String>(Arrays.asList(samtools, "view", "-C", "-T", reference.getPath(), "-o", output.getPath()));
+        if(createIndex) {
+            command.add("--write-index");
+        }
+        command.add("-");
+        process = new ProcessBuilder(command)
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+            .start();
+        return new Writer(process, output, new SAMFileWriterFactory().makeSAMWriter(header, true, new BufferedOutputStream(process.getOutputStream())));
+    }
+
+    /*
+     * Records whether the end of the stream was reached.
+     * */
+    private static class EOFInputStream extends FilterInputStream {
+
+        private boolean eof = false;
+
+        public EOFInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        public int read()
+            throws IOException
+        {
+            int b = super.read();
+            if(b < 0) {
+                this.eof = true;
+            }
+            return b;
+        }
+
+        public int read(byte b[], int off, int len)
+            throws IOException
+        {
+            int n = super.read(b, off, len);
+            if(n < 0) {
+                this.eof = true;
+            }
+            return n;
+        }
+
+        public boolean isEOF()
+        {
+            return this.eof;
+        }
+    }
+
+    private static class Writer implements SAMFileWriter {
+
+        private Process process;
+        private File output;
+        private SAMFileWriter writer;
+
+        public Writer(Process process, File output, SAMFileWriter writer)
+        {
+            this.process = process;
+            this.output = output;
+            this.writer = writer;
+        }
+
+        public void addAlignment(SAMRecord rec)
+        {
+            this.writer.addAlignment(rec);
+        }
+
+        public SAMFileHeader getFileHeader()
+        {
+            return this.writer.getFileHeader();
+        }
+
+        public void close()
+        {
+            int status;
+            this.writer.close();
+            try {
+                status = this.process.waitFor();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if(0 != status) {
+                throw new RuntimeException("samtools exited with status " + status + " writing " + this.output.getPath());
+            }
+        }
+    }
+}
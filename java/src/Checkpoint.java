@@ -0,0 +1,501 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+import net.sf.picard.sam.BuildBamIndex;
+
+/*
+ * Keeps the output of a run as a series of BAM segments in a checkpoint
+ * directory, so that an interrupted run can be resumed from the end of the
+ * last complete segment.  A segment is closed only at a window boundary,
+ * where every record before the next record to be read has been written.
+ * The manifest (checkpoint.txt) lists the output files and, for each
+ * complete segment, the co-ordinate of the next record to be read:
+ *   OUTPUT <file>
+ *   SEGMENT <index> <zero-based reference index> <one-based position>
+ * with a reference index of -1 once the run is finished.  At the end the
+ * segments are concatenated into the output files by copying their BGZF
+ * blocks; only the block holding the end of each header is re-compressed.
+ * If the segments were indexed, their indexes are merged into the index of
+ * the output.  If an index was asked for and a segment has none (for
+ * example, it was written by a run without one), the output is indexed
+ * instead.
+ * */
+public class Checkpoint {
+
+    public static final String MANIFEST_NAME = "checkpoint.txt";
+
+    private static final byte BGZF_EOF[] = {
+        31, (byte)139, 8, 4, 0, 0, 0, 0, 0, (byte)255, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+    private static final int BGZF_BLOCK_HEADER_LENGTH = 18;
+    private static final int MAX_RECOMPRESSED_BLOCK_SIZE = 32768; // uncompressed, so that the compressed block always fits
+
+    private File directory = null;
+    private List<File> outputs = null;
+    private boolean createIndex = false;
+    private List<String> segments = null; // the SEGMENT lines of the manifest
+    private int resumeReferenceIndex = -1;
+    private int resumePosition = -1;
+    private boolean complete = false;
+    private long interval; // nanoseconds
+    private long lastCommitTime;
+
+    /*
+     * @param directory The checkpoint directory.
+     * @param outputs The BAM output files.
+     * @param interval The minimum number of seconds between checkpoints.
+     * @param resume true to continue from the existing manifest, false to start a new run.
+     * @param createIndex true to index the output files.
+     * */
+    public Checkpoint(File directory, List<File> outputs, int interval, boolean resume, boolean createIndex)
+        throws Exception
+    {
+        File manifest = new File(directory, MANIFEST_NAME);
+        int i;
+
+        if(0 == outputs.size()) {
+            throw new Exception("Checkpoints require OUTPUT.");
+        }
+        for(i=0;i<outputs.size();i++) {
+            if(!outputs.get(i).getName().endsWith(".bam")) {
+                throw new Exception("Checkpoints require BAM output: " + outputs.get(i).getPath());
+            }
+        }
+        if(interval < 0) {
+            throw new Exception("The checkpoint interval must be non-negative.");
+        }
+        if(!directory.isDirectory() && !directory.mkdirs()) {
+            throw new Exception("Could not create the checkpoint directory: " + directory.getPath());
+        }
+
+        this.directory = directory;
+        this.outputs = outputs;
+        this.createIndex = createIndex;
+        this.segments = new ArrayList<String>();
+        this.interval = interval * 1000000000L;
+        this.lastCommitTime = System.nanoTime();
+
+        if(manifest.exists()) {
+            if(!resume) {
+                throw new Exception("A checkpoint exists in " + directory.getPath() + "; use RESUME or remove it.");
+            }
+            this.readManifest(manifest);
+        }
+        else {
+            this.writeManifest();
+        }
+    }
+
+    private void readManifest(File manifest)
+        throws Exception
+    {
+        BufferedReader br = new BufferedReader(new FileReader(manifest));
+        List<File> outputs = new ArrayList<File>();
+        String line = null;
+
+        while(null != (line = br.readLine())) {
+            String tokens[] = line.split("\t");
+            if(line.startsWith("#")) {
+                continue;
+            }
+            else if(2 == tokens.length && tokens[0].equals("OUTPUT")) {
+                outputs.add(new File(tokens[1]));
+            }
+            else if(4 == tokens.length && tokens[0].equals("SEGMENT")) {
+                if(Integer.parseInt(tokens[1]) != this.segments.size()) {
+                    br.close();
+                    throw new Exception("Segments out of order in " + manifest.getPath());
+                }
+                this.segments.add(line);
+                this.resumeReferenceIndex = Integer.parseInt(tokens[2]);
+                this.resumePosition = Integer.parseInt(tokens[3]);
+            }
+            else {
+                br.close();
+                throw new Exception("Could not parse line in " + manifest.getPath() + ": " + line);
+            }
+        }
+        br.close();
+
+        if(!outputs.equals(this.outputs)) {
+            throw new Exception("The checkpoint in " + this.directory.getPath() + " is for different OUTPUT files.");
+        }
+        if(0 < this.segments.size() && this.resumeReferenceIndex < 0) {
+            this.complete = true;
+        }
+    }
+
+    // Written to a temporary file then renamed, so that the manifest is never half-written
+    private void writeManifest()
+        throws Exception
+    {
+        File manifest = new File(this.directory, MANIFEST_NAME);
+        File tmp = new File(this.directory, MANIFEST_NAME + ".tmp");
+        PrintStream out = new PrintStream(new FileOutputStream(tmp));
+        int i;
+
+        out.println("#SRMA checkpoint");
+        for(i=0;i<this.outputs.size();i++) {
+            out.println("OUTPUT\t" + this.outputs.get(i).getPath());
+        }
+        for(i=0;i<this.segments.size();i++) {
+            out.println(this.segments.get(i));
+        }
+        out.close();
+        if(out.checkError()) {
+            throw new Exception("Could not write " + tmp.getPath());
+        }
+        if(!tmp.renameTo(manifest)) {
+            throw new Exception("Could not rename " + tmp.getPath() + " to " + manifest.getPath());
+        }
+    }
+
+    /*
+     * Returns the files to which the current segment is written, one per output.
+     * */
+    public List<File> getSegmentOutputs()
+    {
+        return this.getSegmentOutputs(this.segments.size());
+    }
+
+    private List<File> getSegmentOutputs(int segment)
+    {
+        List<File> files = new ArrayList<File>();
+        int i;
+        for(i=0;i<this.outputs.size();i++) {
+            files.add(new File(this.directory, i + "." + segment + ".bam"));
+        }
+        return files;
+    }
+
+    /*
+     * Returns true if all segments were written by a previous run.
+     * */
+    public boolean isComplete()
+    {
+        return this.complete;
+    }
+
+    /*
+     * Returns the zero-based reference index of the first record to read, or
+     * -1 to read from the start.
+     * */
+    public int getResumeReferenceIndex()
+    {
+        return this.resumeReferenceIndex;
+    }
+
+    /*
+     * Returns the one-based position of the first record to read.
+     * */
+    public int getResumePosition()
+    {
+        return this.resumePosition;
+    }
+
+    /*
+     * Returns true if the record was written before the checkpoint.
+     * */
+    public boolean isBeforeResume(int referenceIndex, int position)
+    {
+        if(referenceIndex < 0) { // unmapped records are always last
+            return false;
+        }
+        return (referenceIndex < this.resumeReferenceIndex
+                || (referenceIndex == this.resumeReferenceIndex && position < this.resumePosition));
+    }
+
+    public boolean isDue()
+    {
+        return (this.interval <= System.nanoTime() - this.lastCommitTime);
+    }
+
+    /*
+     * Records the current segment, whose files must be closed, as complete.
+     * @param referenceIndex The zero-based reference index of the next record to read, or -1 if there are none.
+     * @param position The one-based position of the next record to read.
+     * */
+    public void commit(int referenceIndex, int position)
+        throws Exception
+    {
+        if(this.complete) {
+            throw new Exception("The checkpoint is already complete.");
+        }
+        this.segments.add("SEGMENT\t" + this.segments.size() + "\t" + referenceIndex + "\t" + position);
+        this.writeManifest();
+        this.resumeReferenceIndex = referenceIndex;
+        this.resumePosition = position;
+        this.complete = (referenceIndex < 0);
+        this.lastCommitTime = System.nanoTime();
+    }
+
+    /*
+     * Commits the last segment, if not already, concatenates the segments into
+     * the output files, then removes the segments and the manifest.
+     * */
+    public void finish()
+        throws Exception
+    {
+        int i, j;
+
+        if(!this.complete) {
+            this.commit(-1, -1);
+        }
+
+        for(i=0;i<this.outputs.size();i++) {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(this.outputs.get(i)));
+            List<File> indexes = new ArrayList<File>();
+            List<BAMIndexMerger.OffsetMap> maps = new ArrayList<BAMIndexMerger.OffsetMap>();
+            long length = 0;
+
+            for(j=0;j<this.segments.size();j++) {
+                File segment = this.getSegmentOutputs(j).get(i);
+                SegmentOffsetMap map = copySegment(segment, out, 0 < j, length);
+                length += map.length;
+                maps.add(map);
+                indexes.add(BAMIndex.getIndex(segment));
+            }
+            out.write(BGZF_EOF);
+            out.close();
+
+            String name = this.outputs.get(i).getName();
+            File index = new File(this.outputs.get(i).getParentFile(), name.substring(0, name.length() - 4) + ".bai");
+            if(!indexes.contains(null)) {
+                BAMIndexMerger.merge(indexes, maps, index);
+            }
+            else if(this.createIndex) {
+                String args[] = {"INPUT=" + this.outputs.get(i).getPath(), "OUTPUT=" + index.getPath(), "QUIET=true"};
+                if(0 != new BuildBamIndex().instanceMain(args)) {
+                    throw new Exception("Could not index " + this.outputs.get(i).getPath());
+                }
+            }
+        }
+
+        for(j=0;j<this.segments.size();j++) {
+            List<File> files = this.getSegmentOutputs(j);
+            for(i=0;i<files.size();i++) {
+                File index = BAMIndex.getIndex(files.get(i));
+                if(null != index) {
+                    index.delete();
+                }
+                files.get(i).delete();
+            }
+        }
+        new File(this.directory, MANIFEST_NAME).delete();
+    }
+
+    /*
+     * Where the blocks of a segment were copied, for moving its index.
+     * */
+    private static class SegmentOffsetMap extends BAMIndexMerger.OffsetMap {
+        public long base; // where the segment starts in the output
+        public long length; // the number of bytes copied
+        public long headerBlock = -1; // the block holding the end of the header, or -1 if the header was kept
+        public long headerBlockEnd; // the block after it
+        public int firstRecordOffset; // within the header block
+        public List<Long> chunkStarts = new ArrayList<Long>(); // of the re-compressed blocks, from base, then the end of them
+
+        public long map(long virtualOffset)
+        {
+            long blockOffset = virtualOffset >>> 16;
+            int offset = (int)(virtualOffset & 0xffff);
+
+            if(this.headerBlock < 0) {
+                return ((this.base + blockOffset) << 16) | offset;
+            }
+            else if(blockOffset < this.headerBlock) { // within the header
+                return this.base << 16;
+            }
+            else if(blockOffset == this.headerBlock) {
+                int r = Math.max(0, offset - this.firstRecordOffset);
+                int chunk = r / MAX_RECOMPRESSED_BLOCK_SIZE;
+                if(this.chunkStarts.size() <= chunk) {
+                    chunk = this.chunkStarts.size() - 1;
+                }
+                return ((this.base + this.chunkStarts.get(chunk)) << 16) | (r - chunk * MAX_RECOMPRESSED_BLOCK_SIZE);
+            }
+            else {
+                return ((this.base + this.chunkStarts.get(this.chunkStarts.size() - 1) + blockOffset - this.headerBlockEnd) << 16) | offset;
+            }
+        }
+    }
+
+    /*
+     * Copies the BGZF blocks of the BAM file, without the end-of-file block,
+     * optionally dropping the header.
+     * @param base The number of bytes already written to the output.
+     * */
+    private static SegmentOffsetMap copySegment(File segment, OutputStream out, boolean skipHeader, long base)
+        throws Exception
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+        ByteArrayOutputStream header = (skipHeader) ? new ByteArrayOutputStream() : null;
+        SegmentOffsetMap map = new SegmentOffsetMap();
+        byte block[] = null;
+        long blockOffset = 0;
+
+        map.base = base;
+        try {
+            for(;null != (block = readBlock(in));blockOffset += block.length) {
+                int uncompressedSize = readInt(block, block.length - 4);
+                if(0 == uncompressedSize) { // end-of-file, or empty, block
+                    continue;
+                }
+                else if(null == header) {
+                    out.write(block);
+                    map.length += block.length;
+                }
+                else {
+                    byte data[] = inflateBlock(block);
+                    int headerLength;
+                    header.write(data, 0, data.length);
+                    headerLength = getHeaderLength(header.toByteArray());
+                    if(0 <= headerLength) {
+                        // re-compress the records that follow the header in this block
+                        byte records[] = header.toByteArray();
+                        int offset = headerLength;
+                        map.headerBlock = blockOffset;
+                        map.headerBlockEnd = blockOffset + block.length;
+                        map.firstRecordOffset = headerLength - (records.length - data.length);
+                        while(offset < records.length) {
+                            int length = Math.min(MAX_RECOMPRESSED_BLOCK_SIZE, records.length - offset);
+                            byte compressed[] = deflateBlock(records, offset, length);
+                            map.chunkStarts.add(map.length);
+                            out.write(compressed);
+                            map.length += compressed.length;
+                            offset += length;
+                        }
+                        map.chunkStarts.add(map.length);
+                        header = null;
+                    }
+                }
+            }
+        } finally {
+            in.close();
+        }
+        if(null != header) {
+            throw new Exception("Truncated BAM header in " + segment.getPath());
+        }
+        return map;
+    }
+
+    // Returns the next BGZF block, or null at the end of the file
+    private static byte[] readBlock(DataInputStream in)
+        throws Exception
+    {
+        byte block[] = null;
+        byte blockHeader[] = new byte[BGZF_BLOCK_HEADER_LENGTH];
+        int blockSize, n;
+
+        n = in.read(blockHeader, 0, 1);
+        if(n <= 0) {
+            return null;
+        }
+        in.readFully(blockHeader, 1, BGZF_BLOCK_HEADER_LENGTH - 1);
+        if(31 != blockHeader[0] || (byte)139 != blockHeader[1] || 0 == (blockHeader[3] & 4)
+                || 6 != readShort(blockHeader, 10) || 66 != blockHeader[12] || 67 != blockHeader[13]) {
+            throw new Exception("Not a BGZF block.");
+        }
+        blockSize = readShort(blockHeader, 16) + 1;
+        block = new byte[blockSize];
+        System.arraycopy(blockHeader, 0, block, 0, BGZF_BLOCK_HEADER_LENGTH);
+        in.readFully(block, BGZF_BLOCK_HEADER_LENGTH, blockSize - BGZF_BLOCK_HEADER_LENGTH);
+        return block;
+    }
+
+    private static byte[] inflateBlock(byte block[])
+        throws Exception
+    {
+        Inflater inflater = new Inflater(true);
+        byte data[] = new byte[readInt(block, block.length - 4)];
+
+        inflater.setInput(block, BGZF_BLOCK_HEADER_LENGTH, block.length - BGZF_BLOCK_HEADER_LENGTH - 8);
+        if(inflater.inflate(data) != data.length) {
+            inflater.end();
+            throw new Exception("Could not inflate a BGZF block.");
+        }
+        inflater.end();
+        return data;
+    }
+
+    private static byte[] deflateBlock(byte data[], int offset, int length)
+    {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        CRC32 crc = new CRC32();
+        byte compressed[] = new byte[length + 1024];
+        byte block[] = null;
+        int compressedLength;
+
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        compressedLength = deflater.deflate(compressed);
+        deflater.end();
+        crc.update(data, offset, length);
+
+        block = new byte[BGZF_BLOCK_HEADER_LENGTH + compressedLength + 8];
+        System.arraycopy(BGZF_EOF, 0, block, 0, BGZF_BLOCK_HEADER_LENGTH);
+        writeShort(block, 16, block.length - 1);
+        System.arraycopy(compressed, 0, block, BGZF_BLOCK_HEADER_LENGTH, compressedLength);
+        writeInt(block, block.length - 8, (int)crc.getValue());
+        writeInt(block, block.length - 4, length);
+        return block;
+    }
+
+    /*
+     * Returns the length of the BAM header (magic, text and references), or
+     * -1 if the data does not yet hold the whole header.
+     * */
+    private static int getHeaderLength(byte data[])
+        throws Exception
+    {
+        int i, offset, numReferences;
+
+        if(data.length < 8) {
+            return -1;
+        }
+        if('B' != data[0] || 'A' != data[1] || 'M' != data[2] || 1 != data[3]) {
+            throw new Exception("Not a BAM file.");
+        }
+        offset = 8 + readInt(data, 4); // text
+        if(data.length < offset + 4) {
+            return -1;
+        }
+        numReferences = readInt(data, offset);
+        offset += 4;
+        for(i=0;i<numReferences;i++) {
+            if(data.length < offset + 4) {
+                return -1;
+            }
+            offset += 4 + readInt(data, offset) + 4; // name length, name, reference length
+        }
+        return (data.length < offset) ? -1 : offset;
+    }
+
+    // little endian
+    private static int readShort(byte data[], int offset)
+    {
+        return (data[offset] & 0xff) | ((data[offset+1] & 0xff) << 8);
+    }
+
+    private static int readInt(byte data[], int offset)
+    {
+        return readShort(data, offset) | (readShort(data, offset+2) << 16);
+    }
+
+    private static void writeShort(byte data[], int offset, int value)
+    {
+        data[offset] = (byte)value;
+        data[offset+1] = (byte)(value >>> 8);
+    }
+
+    private static void writeInt(byte data[], int offset, int value)
+    {
+        writeShort(data, offset, value);
+        writeShort(data, offset+2, value >>> 16);
+    }
+}
@@ -16,27 +16,72 @@ public class Graph {
     int position_end; // one based
     List<PriorityQueue<Node>> nodes; // zero based
     List<Integer> coverage; // does not count insertions with offset > 0
+    List<SampleCoverage> sampleCoverage; // per-sample coverage, parallel to coverage, only when partitioned
     NodeComparator nodeComparator; 
     NodeRecordComparator nodeRecordComparator;
     private boolean isEmpty;
+    private int numNodes;
+    private int numEdges;
+    private boolean partitioned;
+    private int minimumAlleleCoverage[]; // by position from filterStart, -1 if above the maximum total coverage
+    private int filterStart; // one based
+    private boolean filtered; // the minimum allele coverages are up to date
+    private int branching[]; // the number of branching positions before each position from branchingStart
+    private int branchingStart; // one based
+    private boolean branchingCounted; // the branching counts are up to date
 
     public Graph()
     {
+        this(false);
+    }
+
+    /*
+     * @param partitioned true to also keep per-sample coverage on each node,
+     * edge and position.
+     * */
+    public Graph(boolean partitioned)
+    {
+        this.partitioned = partitioned;
         this.contig = 1; 
         this.position_start = 1; 
         this.position_end = 1;
         this.nodes = new ArrayList<PriorityQueue<Node>>(); 
         this.coverage = new ArrayList<Integer>();
+        this.sampleCoverage = (partitioned) ? new ArrayList<SampleCoverage>() : null;
         this.nodeComparator = new NodeComparator();
         this.nodeRecordComparator = new NodeRecordComparator();
         // Add two initial dummy elements
         this.nodes.add(new PriorityQueue<Node>(1, this.nodeComparator));
-        this.coverage.add(new Integer(0));
+        this.coverage.add(Integer.valueOf(0));
+        if(this.partitioned) {
+            this.sampleCoverage.add(new SampleCoverage());
+        }
         this.isEmpty = true;
+        this.numNodes = 0;
+        this.numEdges = 0;
+        this.minimumAlleleCoverage = new int[0];
+        this.filtered = false;
+        this.branching = new int[1];
+        this.branchingCounted = false;
+    }
+
+    public boolean isPartitioned()
+    {
+        return this.partitioned;
     }
 
     // Returns start/end node in the alignment graph with respect to strand
     public Node addSAMRecord(SAMRecord record, ReferenceSequence sequence) throws Exception
+    {
+        return this.addSAMRecord(record, sequence, -1);
+    }
+
+    /*
+     * Adds the record, counting it toward the given sample when the graph is
+     * partitioned.
+     * @param sampleIndex The zero-based sample index, or -1 for none.
+     * */
+    public Node addSAMRecord(SAMRecord record, ReferenceSequence sequence, int sampleIndex) throws Exception
     {
         Alignment alignment;
         PriorityQueue<Node> nodeQueue = null;
@@ -69,7 +114,10 @@ public class Graph {
             if(alignment_start < this.position_start) {
                 for(i=alignment_start;i<this.position_start;i++) {
                     this.nodes.add(0, new PriorityQueue<Node>(1, this.nodeComparator));
-                    this.coverage.add(0, new Integer(0));
+                    this.coverage.add(0, Integer.valueOf(0));
+                    if(this.partitioned) {
+                        this.sampleCoverage.add(0, new SampleCoverage());
+                    }
                 }
                 this.position_start = alignment_start;
             }
@@ -86,8 +134,14 @@ public class Graph {
                 this.nodes.clear();
                 this.coverage.clear();
                 this.nodes.add(new PriorityQueue<Node>(1, this.nodeComparator));
-                this.coverage.add(new Integer(0));
+                this.coverage.add(Integer.valueOf(0));
+                if(this.partitioned) {
+                    this.sampleCoverage.clear();
+                    this.sampleCoverage.add(new SampleCoverage());
+                }
                 this.isEmpty = false;
+                this.numNodes = 0;
+                this.numEdges = 0;
             }
         }
 
@@ -129,7 +183,8 @@ public class Graph {
                         alignment_start + ref_i,
                         prev,
                         this.nodeRecordComparator),
-                    prev);
+                    prev,
+                    sampleIndex);
 
             // save return node
             if(null == prev && !strand) { // first node and forward strand
@@ -148,12 +203,15 @@ public class Graph {
      * Adds the node to the graph.  Merges if the graph already
      * contains a similar node.
      * */
-    private synchronized Node addNode(Node node, Node prev)
+    private synchronized Node addNode(Node node, Node prev, int sampleIndex)
         throws Exception
     {
         Node curNode = null;
         int i;
 
+        this.filtered = false;
+        this.branchingCounted = false;
+
         // Check if such a node exists
         // - if such a node exists, return it
         // - else insert it
@@ -165,7 +223,10 @@ public class Graph {
             // Add new queues if necessary
             for(i=this.position_end;i<node.position;i++) {
                 this.nodes.add(new PriorityQueue<Node>(1, this.nodeComparator));
-                this.coverage.add(new Integer(0));
+                this.coverage.add(Integer.valueOf(0));
+                if(this.partitioned) {
+                    this.sampleCoverage.add(new SampleCoverage());
+                }
             }
             // Get the proper queue and add
             this.nodes.get(node.position - this.position_start).add(node);
@@ -173,12 +234,20 @@ public class Graph {
             // do not include insertions that extend an insertion
             if(Node.INSERTION != node.type || 0 == node.offset) {
                 this.coverage.set(node.position - this.position_start, node.coverage + this.coverage.get(node.position - this.position_start)); // set coverage
+                if(this.partitioned && 0 <= sampleIndex) {
+                    this.sampleCoverage.get(node.position - this.position_start).increment(sampleIndex);
+                }
+            }
+            if(this.partitioned && 0 <= sampleIndex) {
+                node.sampleCoverage = new SampleCoverage();
+                node.sampleCoverage.increment(sampleIndex);
             }
             if(this.position_end < node.position) {
                 this.position_end = node.position;
             }
             curNode = node;
             this.isEmpty = false;
+            this.numNodes++;
         }
         else { // already contains
             curNode.coverage++; 
@@ -186,12 +255,26 @@ public class Graph {
             if(Node.INSERTION != curNode.type || 0 != curNode.offset) {
                 // increment coverage
                 this.coverage.set(curNode.position - this.position_start, 1 + this.coverage.get(curNode.position - this.position_start)); 
+                if(this.partitioned && 0 <= sampleIndex) {
+                    this.sampleCoverage.get(curNode.position - this.position_start).increment(sampleIndex);
+                }
+            }
+            if(this.partitioned && 0 <= sampleIndex) {
+                if(null == curNode.sampleCoverage) {
+                    curNode.sampleCoverage = new SampleCoverage();
+                }
+                curNode.sampleCoverage.increment(sampleIndex);
             }
         }
         // Update edges
         if(null != prev) {
-            curNode.addToPrev(prev, this.nodeRecordComparator);
-            prev.addToNext(curNode, this.nodeRecordComparator);
+            if(!this.partitioned) {
+                sampleIndex = -1;
+            }
+            curNode.addToPrev(prev, sampleIndex, this.nodeRecordComparator);
+            if(prev.addToNext(curNode, sampleIndex, this.nodeRecordComparator)) {
+                this.numEdges++;
+            }
         }
 
         return curNode;
@@ -284,11 +367,238 @@ public class Graph {
         }
     }
 
+    /*
+     * Returns the coverage of the given sample, or the total coverage when
+     * the graph is not partitioned or no sample is given.
+     * */
+    public int getCoverage(int position, int sampleIndex)
+    {
+        if(!this.partitioned || sampleIndex < 0) {
+            return this.getCoverage(position);
+        }
+        try {
+            return this.sampleCoverage.get(position - this.position_start).get(sampleIndex);
+        } catch (IndexOutOfBoundsException e) {
+            return 0;
+        }
+    }
+
+    public GraphSnapshot freeze(AlleleCoverageCutoffs alleleCoverageCutoffs, int maximumTotalCoverage)
+    {
+        return this.freeze(alleleCoverageCutoffs, maximumTotalCoverage, 0);
+    }
+
+    /*
+     * Returns an immutable copy of the graph, to be searched while the graph
+     * keeps changing.  The allele coverage cutoffs are evaluated once for
+     * each position.  Edges to nodes that were pruned are left out.
+     * @param seedLength The length of the k-mers by which to index start
+     * nodes, or zero for none.
+     * */
+    public synchronized GraphSnapshot freeze(AlleleCoverageCutoffs alleleCoverageCutoffs, int maximumTotalCoverage, int seedLength)
+    {
+        GraphSnapshot snapshot = new GraphSnapshot();
+        IdentityHashMap<Node, Integer> indices = new IdentityHashMap<Node, Integer>();
+        int numPositions = this.nodes.size();
+        int i, j, n, numNext, numPrev;
+
+        this.applyFilters(alleleCoverageCutoffs, maximumTotalCoverage);
+
+        snapshot.contig = this.contig;
+        snapshot.position_start = this.position_start;
+        snapshot.position_end = this.position_start + numPositions - 1;
+        snapshot.partitioned = this.partitioned;
+
+        // Nodes, in topological order
+        snapshot.positionNodes = new int[numPositions+1];
+        snapshot.positionCoverage = new int[numPositions];
+        snapshot.positionSampleCoverage = (this.partitioned) ? new SampleCoverage[numPositions] : null;
+        snapshot.minimumAlleleCoverage = new int[numPositions];
+        System.arraycopy(this.minimumAlleleCoverage, this.position_start - this.filterStart, snapshot.minimumAlleleCoverage, 0, numPositions);
+        for(i=0,n=0;i<numPositions;i++) {
+            n += this.nodes.get(i).size();
+        }
+        snapshot.nodes = new Node[n];
+        for(i=0,n=0;i<numPositions;i++) {
+            Iterator<Node> iter = this.nodes.get(i).iterator();
+            snapshot.positionNodes[i] = n;
+            while(iter.hasNext()) {
+                snapshot.nodes[n++] = iter.next();
+            }
+            Arrays.sort(snapshot.nodes, snapshot.positionNodes[i], n, GraphSnapshot.TOPOLOGICAL_ORDER);
+            snapshot.positionCoverage[i] = this.coverage.get(i);
+            if(this.partitioned) {
+                snapshot.positionSampleCoverage[i] = new SampleCoverage(this.sampleCoverage.get(i));
+            }
+        }
+        snapshot.positionNodes[numPositions] = n;
+        snapshot.numNodes = n;
+        snapshot.occupied = new BitSet(numPositions);
+        for(i=0;i<numPositions;i++) {
+            if(snapshot.positionNodes[i] < snapshot.positionNodes[i+1]) {
+                snapshot.occupied.set(i);
+            }
+        }
+
+        snapshot.base = new char[n];
+        snapshot.type = new int[n];
+        snapshot.position = new int[n];
+        snapshot.coverage = new int[n];
+        snapshot.sampleCoverage = (this.partitioned) ? new SampleCoverage[n] : null;
+        for(i=0,numNext=numPrev=0;i<n;i++) {
+            Node node = snapshot.nodes[i];
+            indices.put(node, i);
+            snapshot.base[i] = node.base;
+            snapshot.type[i] = node.type;
+            snapshot.position[i] = node.position;
+            snapshot.coverage[i] = node.coverage;
+            if(this.partitioned && null != node.sampleCoverage) {
+                snapshot.sampleCoverage[i] = new SampleCoverage(node.sampleCoverage);
+            }
+            numNext += node.next.size();
+            numPrev += node.prev.size();
+        }
+
+        // Edges
+        snapshot.nextStart = new int[n+1];
+        snapshot.nextNode = new int[numNext];
+        snapshot.nextCoverage = new int[numNext];
+        snapshot.nextSampleCoverage = (this.partitioned) ? new SampleCoverage[numNext] : null;
+        snapshot.prevStart = new int[n+1];
+        snapshot.prevNode = new int[numPrev];
+        snapshot.prevCoverage = new int[numPrev];
+        snapshot.prevSampleCoverage = (this.partitioned) ? new SampleCoverage[numPrev] : null;
+        for(i=0,numNext=numPrev=0;i<n;i++) {
+            Node node = snapshot.nodes[i];
+            snapshot.nextStart[i] = numNext;
+            for(j=0;j<node.next.size();j++) {
+                NodeRecord rec = node.next.get(j);
+                Integer index = indices.get(rec.node);
+                if(null != index) {
+                    snapshot.nextNode[numNext] = index;
+                    snapshot.nextCoverage[numNext] = rec.coverage;
+                    if(this.partitioned && null != rec.sampleCoverage) {
+                        snapshot.nextSampleCoverage[numNext] = new SampleCoverage(rec.sampleCoverage);
+                    }
+                    numNext++;
+                }
+            }
+            snapshot.prevStart[i] = numPrev;
+            for(j=0;j<node.prev.size();j++) {
+                NodeRecord rec = node.prev.get(j);
+                Integer index = indices.get(rec.node);
+                if(null != index) {
+                    snapshot.prevNode[numPrev] = index;
+                    snapshot.prevCoverage[numPrev] = rec.coverage;
+                    if(this.partitioned && null != rec.sampleCoverage) {
+                        snapshot.prevSampleCoverage[numPrev] = new SampleCoverage(rec.sampleCoverage);
+                    }
+                    numPrev++;
+                }
+            }
+        }
+        snapshot.nextStart[n] = numNext;
+        snapshot.prevStart[n] = numPrev;
+        snapshot.numEdges = numNext;
+
+        snapshot.indexReach();
+        snapshot.indexSeeds(seedLength);
+
+        return snapshot;
+    }
+
+    /*
+     * Evaluates the allele coverage cutoffs at each position, unless the
+     * graph has not changed since the last call.  Positions are kept by
+     * co-ordinate, so pruning the start of the graph does not require
+     * another pass.
+     * */
+    private void applyFilters(AlleleCoverageCutoffs alleleCoverageCutoffs, int maximumTotalCoverage)
+    {
+        int i;
+
+        if(this.filtered) {
+            return;
+        }
+        if(this.minimumAlleleCoverage.length < this.coverage.size()) {
+            this.minimumAlleleCoverage = new int[2*this.coverage.size()];
+        }
+        for(i=0;i<this.coverage.size();i++) {
+            int totalCoverage = this.coverage.get(i);
+            this.minimumAlleleCoverage[i] = (maximumTotalCoverage < totalCoverage) ? -1 : alleleCoverageCutoffs.getQ(totalCoverage);
+        }
+        this.filterStart = this.position_start;
+        this.filtered = true;
+    }
+
+    /*
+     * Returns true if any position from start to end, inclusive, branches:
+     * it does not hold exactly one node, or its node has more than one edge
+     * either way or an edge that skips a position.  Positions outside the
+     * graph branch.  The branching positions are counted once per change
+     * to the graph, so each call is two lookups.
+     * */
+    public synchronized boolean isBranching(int start, int end)
+    {
+        if(start < this.position_start || this.position_end < end) {
+            return true;
+        }
+        else if(end < start) {
+            return false;
+        }
+        this.countBranching();
+        return this.branching[end - this.branchingStart + 1] != this.branching[start - this.branchingStart];
+    }
+
+    private void countBranching()
+    {
+        int i;
+
+        if(this.branchingCounted) {
+            return;
+        }
+        if(this.branching.length < this.nodes.size() + 1) {
+            this.branching = new int[2*this.nodes.size() + 1];
+        }
+        this.branching[0] = 0;
+        for(i=0;i<this.nodes.size();i++) {
+            this.branching[i+1] = this.branching[i] + (this.isBranching(this.nodes.get(i)) ? 1 : 0);
+        }
+        this.branchingStart = this.position_start;
+        this.branchingCounted = true;
+    }
+
+    private static boolean isBranching(PriorityQueue<Node> nodeQueue)
+    {
+        Node node = null;
+
+        if(1 != nodeQueue.size()) {
+            return true;
+        }
+        node = nodeQueue.peek();
+        if(1 < node.next.size() || 1 < node.prev.size()) {
+            return true;
+        }
+        else if(1 == node.next.size() && node.position + 1 != node.next.get(0).node.position) {
+            return true;
+        }
+        else if(1 == node.prev.size() && node.position - 1 != node.prev.get(0).node.position) {
+            return true;
+        }
+        return false;
+    }
+
     public synchronized void prune(int referenceIndex, int alignmentStart, int offset, boolean removeLinks)
         throws Exception
     {
         int i;
         boolean shouldClear = false;
+        GraphPrunedEvent event = new GraphPrunedEvent();
+        int numPositions = this.nodes.size();
+        int numNodes = this.numNodes;
+        int numEdges = this.numEdges;
+
+        event.begin();
         
         if(this.contig != referenceIndex+1) {
             shouldClear = true;
@@ -299,6 +609,13 @@ public class Graph {
                     shouldClear = true;
                 }
                 else {
+                    for(i=0;i<alignmentStart-offset-this.position_start;i++) {
+                        Iterator<Node> nodeQueueIter = this.nodes.get(i).iterator();
+                        while(nodeQueueIter.hasNext()) {
+                            this.numEdges -= nodeQueueIter.next().next.size();
+                        }
+                        this.numNodes -= this.nodes.get(i).size();
+                    }
                     if(removeLinks) {
                         for(i=0;i<alignmentStart-offset-this.position_start;i++) {
                             PriorityQueue<Node> nodeQueue = null;
@@ -316,6 +633,9 @@ public class Graph {
                     }
                     this.nodes = this.nodes.subList(alignmentStart - offset - this.position_start, this.nodes.size());
                     this.coverage = this.coverage.subList(alignmentStart - offset - this.position_start, this.coverage.size());
+                    if(this.partitioned) {
+                        this.sampleCoverage = this.sampleCoverage.subList(alignmentStart - offset - this.position_start, this.sampleCoverage.size());
+                    }
                     this.position_start = alignmentStart - offset;
                 }
             }
@@ -341,11 +661,40 @@ public class Graph {
             this.contig = referenceIndex + 1;
             this.position_start = this.position_end = alignmentStart;
             this.nodes.add(new PriorityQueue<Node>(1, this.nodeComparator));
-            this.coverage.add(new Integer(0));
+            this.coverage.add(Integer.valueOf(0));
+            if(this.partitioned) {
+                this.sampleCoverage.clear();
+                this.sampleCoverage.add(new SampleCoverage());
+            }
             this.isEmpty = true;
+            this.numNodes = 0;
+            this.numEdges = 0;
+            this.filtered = false;
+        }
+        if(shouldClear || removeLinks) {
+            this.branchingCounted = false;
+        }
+
+        if(event.shouldCommit()) {
+            event.contig = this.contig;
+            event.cleared = shouldClear;
+            event.positionsDropped = shouldClear ? numPositions : (numPositions - this.nodes.size());
+            event.nodesRemoved = numNodes - this.numNodes;
+            event.linksRemoved = removeLinks ? (numEdges - this.numEdges) : 0;
+            event.commit();
         }
     }
 
+    public int getNumNodes()
+    {
+        return this.numNodes;
+    }
+
+    public int getNumEdges()
+    {
+        return this.numEdges;
+    }
+
     public void print()
         throws Exception
     {
@@ -0,0 +1,34 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import jdk.jfr.*;
+
+/*
+ * A Flight Recorder event for pruning the start of the graph.
+ * */
+@Name("srma.GraphPruned")
+@Label("Graph Pruned")
+@Category({"SRMA", "Graph"})
+@Description("Positions dropped from the start of the graph")
+@StackTrace(false)
+public class GraphPrunedEvent extends Event {
+
+    @Label("Contig")
+    @Description("One-based contig index")
+    public int contig;
+
+    @Label("Cleared")
+    @Description("The whole graph was cleared")
+    public boolean cleared;
+
+    @Label("Positions Dropped")
+    public int positionsDropped;
+
+    @Label("Nodes Removed")
+    public int nodesRemoved;
+
+    @Label("Links Removed")
+    public int linksRemoved;
+}
@@ -0,0 +1,461 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.util.*;
+
+/*
+ * An immutable copy of a graph window, made by Graph.freeze for the
+ * re-alignment of a batch.  The nodes are numbered in topological order
+ * (by position, insertions before the other nodes at their position, then
+ * by offset), and their fields and edges are kept in primitive arrays: the
+ * edges of node i onwards are nextNode[nextStart[i]] to
+ * nextNode[nextStart[i+1]-1], and likewise for prev.  Searching it needs no
+ * locking and follows no list or boxed integer, and the graph may keep
+ * absorbing records while it is searched.  The Node objects are kept only
+ * to recover the alignment, using their immutable fields.
+ * */
+public class GraphSnapshot {
+    int contig; // one based
+    int position_start; // one based
+    int position_end; // one based
+    int numNodes;
+    int numEdges;
+    boolean partitioned;
+
+    // by node
+    Node nodes[];
+    char base[];
+    int type[];
+    int position[];
+    int coverage[];
+    SampleCoverage sampleCoverage[]; // only when partitioned
+
+    // by edge, from the node onwards (next) or back (prev)
+    int nextStart[]; // by node, then the number of edges
+    int nextNode[];
+    int nextCoverage[];
+    SampleCoverage nextSampleCoverage[]; // only when partitioned
+    int prevStart[];
+    int prevNode[];
+    int prevCoverage[];
+    SampleCoverage prevSampleCoverage[]; // only when partitioned
+
+    // the bases reachable 1 to REACH_LENGTH nodes onwards (next) or back (prev), four bits for each
+    static final int REACH_LENGTH = 8;
+    int nextReach[];
+    int prevReach[];
+
+    // by position from position_start
+    int positionNodes[]; // the first node at each position, then the number of nodes
+    BitSet occupied; // the positions with a node
+    int positionCoverage[];
+    SampleCoverage positionSampleCoverage[]; // only when partitioned
+    int minimumAlleleCoverage[]; // -1 if above the maximum total coverage
+
+    // seeds: by k-mer, the nodes from which a path onwards (next) or back (prev) spells it
+    static final int MAX_SEED_LENGTH = 15; // two bits per base in an int
+    private static final int MAX_SEEDS_PER_NODE = 16; // more than this many k-mers from a node, and it is a seed for all
+    int seedLength; // zero if not indexed
+    Map<Integer, int[]> nextSeeds;
+    Map<Integer, int[]> prevSeeds;
+    int nextSeedsAll[]; // seeds for every k-mer: too many paths, too short a path, or a base other than ACGT
+    int prevSeedsAll[];
+
+    /*
+     * Orders the nodes at one position so that every edge between them goes
+     * forward: an insertion leads to the next offset of the insertion, or
+     * to a node at the same position that is not an insertion.
+     * */
+    static final Comparator<Node> TOPOLOGICAL_ORDER = new Comparator<Node>() {
+        public int compare(Node a, Node b)
+        {
+            int aInsertion = (Node.INSERTION == a.type) ? 0 : 1;
+            int bInsertion = (Node.INSERTION == b.type) ? 0 : 1;
+
+            if(a.position != b.position) {
+                return (a.position < b.position) ? -1 : 1;
+            }
+            else if(aInsertion != bInsertion) {
+                return (aInsertion < bInsertion) ? -1 : 1;
+            }
+            else if(a.offset != b.offset) {
+                return (a.offset < b.offset) ? -1 : 1;
+            }
+            else if(a.type != b.type) {
+                return (a.type < b.type) ? -1 : 1;
+            }
+            else if(a.base != b.base) {
+                return (a.base < b.base) ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
+    GraphSnapshot()
+    {
+    }
+
+    /*
+     * Returns the index of the node, or -1 if it is not in the snapshot.
+     * */
+    public int indexOf(Node node)
+    {
+        int i;
+
+        if(null == node || node.contig != this.contig || node.position < this.position_start || this.position_end < node.position) {
+            return -1;
+        }
+        for(i=this.positionNodes[node.position - this.position_start];i<this.positionNodes[node.position - this.position_start + 1];i++) {
+            if(node == this.nodes[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // The index of the first node at the position
+    public int getFirstNode(int position)
+    {
+        return this.positionNodes[position - this.position_start];
+    }
+
+    // One past the index of the last node at the position
+    public int getLastNode(int position)
+    {
+        return this.positionNodes[position - this.position_start + 1];
+    }
+
+    /*
+     * Returns the first position at or after the given position with a node,
+     * or 0 if there is none.  Empty stretches are skipped a word at a time,
+     * so seeding the search does not slow down as the offset grows.
+     * */
+    public int getPositionAtOrAfter(int position)
+    {
+        int i;
+
+        if(position < this.position_start) {
+            position = this.position_start;
+        }
+        else if(this.position_end < position) {
+            return 0;
+        }
+        i = this.occupied.nextSetBit(position - this.position_start);
+        return (i < 0) ? 0 : (this.position_start + i);
+    }
+
+    /*
+     * Returns the last position at or before the given position with a node,
+     * or 0 if there is none.
+     * */
+    public int getPositionAtOrBefore(int position)
+    {
+        int i;
+
+        if(this.position_end < position) {
+            position = this.position_end;
+        }
+        else if(position < this.position_start) {
+            return 0;
+        }
+        i = this.occupied.previousSetBit(position - this.position_start);
+        return (i < 0) ? 0 : (this.position_start + i);
+    }
+
+    /*
+     * Returns the coverage of the node within the given sample, or the total
+     * coverage when no sample is given.
+     * */
+    public int getCoverage(int node, int sampleIndex)
+    {
+        if(sampleIndex < 0 || !this.partitioned) {
+            return this.coverage[node];
+        }
+        return (null == this.sampleCoverage[node]) ? 0 : this.sampleCoverage[node].get(sampleIndex);
+    }
+
+    // As getCoverage, for the edge onwards (next) or back (prev)
+    public int getEdgeCoverage(int edge, boolean prev, int sampleIndex)
+    {
+        SampleCoverage edgeSampleCoverage = null;
+
+        if(sampleIndex < 0 || !this.partitioned) {
+            return (prev) ? this.prevCoverage[edge] : this.nextCoverage[edge];
+        }
+        edgeSampleCoverage = (prev) ? this.prevSampleCoverage[edge] : this.nextSampleCoverage[edge];
+        return (null == edgeSampleCoverage) ? 0 : edgeSampleCoverage.get(sampleIndex);
+    }
+
+    /*
+     * Returns the total coverage at the position, within the given sample
+     * if any.
+     * */
+    public int getPositionCoverage(int position, int sampleIndex)
+    {
+        if(position < this.position_start || this.position_end < position) {
+            return 0;
+        }
+        else if(sampleIndex < 0 || !this.partitioned) {
+            return this.positionCoverage[position - this.position_start];
+        }
+        return this.positionSampleCoverage[position - this.position_start].get(sampleIndex);
+    }
+
+    /*
+     * Returns the coverage a node or edge at the position must have to pass
+     * the allele coverage cutoffs, or -1 if the total coverage is above the
+     * maximum.  The cutoffs must be those the snapshot was made with, except
+     * within a sample, where they depend on the sample's coverage.
+     * */
+    public int getMinimumAlleleCoverage(int position, int sampleIndex, AlleleCoverageCutoffs alleleCoverageCutoffs, int maximumTotalCoverage)
+    {
+        int totalCoverage;
+
+        if((sampleIndex < 0 || !this.partitioned)
+                && this.position_start <= position
+                && position <= this.position_end) {
+            return this.minimumAlleleCoverage[position - this.position_start];
+        }
+        totalCoverage = this.getPositionCoverage(position, sampleIndex);
+        return (maximumTotalCoverage < totalCoverage) ? -1 : alleleCoverageCutoffs.getQ(totalCoverage);
+    }
+
+    /*
+     * Indexes the k-mers spelt by the paths of the given length from each
+     * node, onwards and back.  The k-mers of each length from a node are
+     * built from those of its neighbours, one length at a time, so the cost
+     * is linear in the number of edges, the seed length and the number of
+     * k-mers kept per node, however many paths there are.
+     * */
+    void indexSeeds(int seedLength)
+    {
+        this.seedLength = seedLength;
+        if(0 < seedLength) {
+            this.nextSeeds = new HashMap<Integer, int[]>();
+            this.nextSeedsAll = this.indexSeeds(seedLength, false, this.nextSeeds);
+            this.prevSeeds = new HashMap<Integer, int[]>();
+            this.prevSeedsAll = this.indexSeeds(seedLength, true, this.prevSeeds);
+        }
+    }
+
+    // Returns the nodes that are seeds for all k-mers
+    private int[] indexSeeds(int seedLength, boolean prev, Map<Integer, int[]> seeds)
+    {
+        Map<Integer, List<Integer>> lists = new HashMap<Integer, List<Integer>>();
+        List<Integer> all = new ArrayList<Integer>();
+        int kmers[][] = this.getKmers(seedLength, prev);
+        int node, i;
+
+        for(node=0;node<this.numNodes;node++) {
+            if(null == kmers[node]) {
+                all.add(node);
+                continue;
+            }
+            for(i=0;i<kmers[node].length;i++) {
+                List<Integer> list = lists.get(kmers[node][i]);
+                if(null == list) {
+                    list = new ArrayList<Integer>();
+                    lists.put(kmers[node][i], list);
+                }
+                list.add(node);
+            }
+        }
+        for(Map.Entry<Integer, List<Integer>> entry : lists.entrySet()) {
+            seeds.put(entry.getKey(), toArray(entry.getValue()));
+        }
+        return toArray(all);
+    }
+
+    /*
+     * Returns the distinct k-mers of the paths from each node, or null for
+     * a node that must be a seed for all k-mers: there are too many, a path
+     * is too short, or a base is not ACGT.  The k-mers of length l from a
+     * node are its base followed by the k-mers of length l-1 from each of
+     * its neighbours.
+     * */
+    private int[][] getKmers(int seedLength, boolean prev)
+    {
+        int edgeStart[] = (prev) ? this.prevStart : this.nextStart;
+        int edgeNode[] = (prev) ? this.prevNode : this.nextNode;
+        int kmers[][] = new int[this.numNodes][];
+        int next[][] = null;
+        int buffer[] = new int[MAX_SEEDS_PER_NODE];
+        int node, edge, length, code, numKmers, i;
+
+        for(node=0;node<this.numNodes;node++) {
+            code = encode(this.base[node]);
+            kmers[node] = (code < 0) ? null : new int[]{code};
+        }
+        for(length=2;length<=seedLength;length++) {
+            next = new int[this.numNodes][];
+            for(node=0;node<this.numNodes;node++) {
+                code = encode(this.base[node]);
+                if(code < 0 || edgeStart[node] == edgeStart[node+1]) { // not ACGT, or too short
+                    continue;
+                }
+                code <<= 2 * (length - 1);
+                numKmers = 0;
+                for(edge=edgeStart[node];0 <= numKmers && edge<edgeStart[node+1];edge++) {
+                    int suffixes[] = kmers[edgeNode[edge]];
+                    if(null == suffixes) {
+                        numKmers = -1;
+                        break;
+                    }
+                    for(i=0;i<suffixes.length;i++) {
+                        if(indexOf(buffer, numKmers, code | suffixes[i]) < 0) {
+                            if(MAX_SEEDS_PER_NODE == numKmers) {
+                                numKmers = -1;
+                                break;
+                            }
+                            buffer[numKmers++] = code | suffixes[i];
+                        }
+                    }
+                }
+                if(0 <= numKmers) {
+                    next[node] = Arrays.copyOf(buffer, numKmers);
+                }
+            }
+            kmers = next;
+        }
+        return kmers;
+    }
+
+    /*
+     * Returns the start nodes, within the positions, from which a path
+     * onwards (next), or back (prev), spells the first bases of the read, in
+     * order.  Returns null if the seeds were not indexed or the read has a
+     * base other than ACGT.
+     * */
+    public int[] getSeeds(String read, boolean prev, int positionLow, int positionHigh)
+    {
+        int kmer = 0, code, i;
+        int seeds[] = null, all[] = null;
+        int seedsLow, seedsHigh, allLow, allHigh, n;
+        int ret[] = null;
+
+        if(0 == this.seedLength || read.length() < this.seedLength) {
+            return null;
+        }
+        for(i=0;i<this.seedLength;i++) {
+            code = encode(read.charAt(i));
+            if(code < 0) {
+                return null;
+            }
+            kmer = (kmer << 2) | code;
+        }
+
+        seeds = ((prev) ? this.prevSeeds : this.nextSeeds).get(kmer);
+        if(null == seeds) {
+            seeds = new int[0];
+        }
+        all = (prev) ? this.prevSeedsAll : this.nextSeedsAll;
+        seedsLow = this.lowerBound(seeds, positionLow);
+        seedsHigh = this.lowerBound(seeds, positionHigh + 1);
+        allLow = this.lowerBound(all, positionLow);
+        allHigh = this.lowerBound(all, positionHigh + 1);
+
+        // merge, in order
+        ret = new int[seedsHigh - seedsLow + allHigh - allLow];
+        for(n=0;seedsLow < seedsHigh || allLow < allHigh;n++) {
+            if(allHigh <= allLow || (seedsLow < seedsHigh && seeds[seedsLow] < all[allLow])) {
+                ret[n] = seeds[seedsLow++];
+            }
+            else {
+                ret[n] = all[allLow++];
+            }
+        }
+        return ret;
+    }
+
+    // The index of the first node in the list at or after the position
+    private int lowerBound(int nodes[], int position)
+    {
+        int low = 0, high = nodes.length, mid;
+        while(low < high) {
+            mid = (low + high) >>> 1;
+            if(this.position[nodes[mid]] < position) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /*
+     * Finds the bases reachable from each node, one to REACH_LENGTH nodes
+     * onwards and back.  The nodes a node leads to come after it in
+     * topological order, so each direction is one pass.
+     * */
+    void indexReach()
+    {
+        int i;
+
+        this.nextReach = new int[this.numNodes];
+        this.prevReach = new int[this.numNodes];
+        for(i=this.numNodes-1;0<=i;i--) {
+            this.nextReach[i] = this.getReach(i, this.nextStart, this.nextNode, this.nextReach);
+        }
+        for(i=0;i<this.numNodes;i++) {
+            this.prevReach[i] = this.getReach(i, this.prevStart, this.prevNode, this.prevReach);
+        }
+    }
+
+    private int getReach(int node, int edgeStart[], int edgeNode[], int reach[])
+    {
+        int edge, ret = 0;
+
+        for(edge=edgeStart[node];edge<edgeStart[node+1];edge++) {
+            int to = edgeNode[edge];
+            int code = encode(this.base[to]);
+            // any base, if not ACGT
+            ret |= ((code < 0) ? 0xF : (1 << code)) | (reach[to] << 4);
+        }
+        return ret;
+    }
+
+    static int encode(char base)
+    {
+        switch(base) {
+            case 'A': case 'a': return 0;
+            case 'C': case 'c': return 1;
+            case 'G': case 'g': return 2;
+            case 'T': case 't': return 3;
+            default: return -1;
+        }
+    }
+
+    private static int indexOf(int values[], int size, int value)
+    {
+        int i;
+        for(i=0;i<size;i++) {
+            if(value == values[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int[] toArray(List<Integer> list)
+    {
+        int ret[] = new int[list.size()];
+        int i;
+        for(i=0;i<ret.length;i++) {
+            ret[i] = list.get(i);
+        }
+        return ret;
+    }
+
+    public int getNumNodes()
+    {
+        return this.numNodes;
+    }
+
+    public int getNumEdges()
+    {
+        return this.numEdges;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import jdk.jfr.*;
+
+/*
+ * A Flight Recorder event for re-aligning one batch of reads against the
+ * current graph window.
+ * */
+@Name("srma.GraphWindow")
+@Label("Graph Window Processed")
+@Category({"SRMA", "Graph"})
+@Description("A batch of reads re-aligned against the current graph window")
+@StackTrace(false)
+public class GraphWindowEvent extends Event {
+
+    @Label("Contig")
+    public String contig;
+
+    @Label("Start")
+    public int start;
+
+    @Label("End")
+    public int end;
+
+    @Label("Nodes")
+    public int nodes;
+
+    @Label("Edges")
+    public int edges;
+
+    @Label("Reads")
+    public int reads;
+}
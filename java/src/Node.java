@@ -20,6 +20,7 @@ public class Node {
     int position; // one-based
     int offset; // for insertions
     int coverage;
+    SampleCoverage sampleCoverage = null; // only when partitioned by sample
     List<NodeRecord> next; // downstram nodes
     List<NodeRecord> prev; // upstream nodes
 
@@ -42,28 +43,52 @@ public class Node {
         }
     }
 
-    public void addToNext(Node node, NodeRecordComparator comparator)
+    // Returns true if a new link was added
+    public boolean addToNext(Node node, NodeRecordComparator comparator)
+        throws Exception
+    {
+        return this.addToNext(node, -1, comparator);
+    }
+
+    // Returns true if a new link was added
+    public boolean addToNext(Node node, int sampleIndex, NodeRecordComparator comparator)
         throws Exception
     {
         NodeRecord rec = null;
         int index;
+        boolean added = false;
         if(null == node) {
             throw new Exception("addToNext: node was null!");
         }
         rec = new NodeRecord(node, 1);
         index = Collections.binarySearch(this.next, rec, comparator);
         if(0 <= index) { // exists
-            this.next.get(index).coverage++;
+            rec = this.next.get(index);
+            rec.coverage++;
         }
         else {
             // add it at the insertion point
             this.next.add(-index - 1, rec);
+            added = true;
+        }
+        if(0 <= sampleIndex) {
+            if(null == rec.sampleCoverage) {
+                rec.sampleCoverage = new SampleCoverage();
+            }
+            rec.sampleCoverage.increment(sampleIndex);
         }
+        return added;
     }
 
 
     public void addToPrev(Node node, NodeRecordComparator comparator)
         throws Exception
+    {
+        this.addToPrev(node, -1, comparator);
+    }
+
+    public void addToPrev(Node node, int sampleIndex, NodeRecordComparator comparator)
+        throws Exception
     {
         NodeRecord rec = null;
         int index;
@@ -73,12 +98,19 @@ public class Node {
         rec = new NodeRecord(node, 1);
         index = Collections.binarySearch(this.prev, rec, comparator);
         if(0 <= index) { // exists
-            this.prev.get(index).coverage++;
+            rec = this.prev.get(index);
+            rec.coverage++;
         }
         else {
             // add it at the insertion point
             this.prev.add(-index - 1, rec);
         }
+        if(0 <= sampleIndex) {
+            if(null == rec.sampleCoverage) {
+                rec.sampleCoverage = new SampleCoverage();
+            }
+            rec.sampleCoverage.increment(sampleIndex);
+        }
     }
     
     public void checkList(ListIterator<NodeRecord> iter, NodeComparator nodeComparator)
@@ -9,6 +9,7 @@ import java.util.*;
 public class NodeRecord {
     public Node node;
     public int coverage;
+    public SampleCoverage sampleCoverage = null; // only when partitioned by sample
 
     public NodeRecord(Node node, int coverage) 
     {
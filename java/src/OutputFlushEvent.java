@@ -0,0 +1,24 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import jdk.jfr.*;
+
+/*
+ * A Flight Recorder event for writing re-aligned reads from the output queue.
+ * */
+@Name("srma.OutputFlush")
+@Label("Output Flush")
+@Category({"SRMA", "Output"})
+@Description("Re-aligned reads written from the output queue")
+@StackTrace(false)
+public class OutputFlushEvent extends Event {
+
+    @Label("Records Written")
+    public int records;
+
+    @Label("Records Remaining")
+    @Description("The size of the output queue after the flush")
+    public int remaining;
+}
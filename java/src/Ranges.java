@@ -24,33 +24,30 @@ public class Ranges {
     }
 
     public Ranges(File file, SAMSequenceDictionary referenceDictionary, int offset)
+        throws Exception
     {
         BufferedReader br = null;
         String line = null;
         int i, lineNumber = 1;
         Map<String, Integer> hm = new HashMap<String, Integer>();
 
-        try {
-            // open
-            br = new BufferedReader(new FileReader(file));
+        // open
+        br = new BufferedReader(new FileReader(file));
 
-            // init
-            this.ranges = new LinkedList<Range>();
-            for(i=0;i<referenceDictionary.size();i++) {
-                hm.put(referenceDictionary.getSequence(i).getSequenceName(), new Integer(i));
-            }
+        // init
+        this.ranges = new LinkedList<Range>();
+        for(i=0;i<referenceDictionary.size();i++) {
+            hm.put(referenceDictionary.getSequence(i).getSequenceName(), Integer.valueOf(i));
+        }
 
-            // read the file
+        // read the file
+        try {
             while(null != (line = br.readLine())) {
                 this.addRange(line, lineNumber, hm, referenceDictionary, offset);
                 lineNumber++;
             }
-
-            // close
+        } finally {
             br.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.exit(1);
         }
     }
 
@@ -64,7 +61,7 @@ public class Ranges {
         // init
         this.ranges = new LinkedList<Range>();
         for(i=0;i<referenceDictionary.size();i++) {
-            hm.put(referenceDictionary.getSequence(i).getSequenceName(), new Integer(i));
+            hm.put(referenceDictionary.getSequence(i).getSequenceName(), Integer.valueOf(i));
         }
 
         // get delimiters
@@ -0,0 +1,44 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import jdk.jfr.*;
+
+/*
+ * A Flight Recorder event for a single read re-alignment.  Only reads slower
+ * than the threshold are recorded; the threshold can be changed in the
+ * recording settings (srma.ReadAligned#threshold).
+ * */
+@Name("srma.ReadAligned")
+@Label("Read Aligned")
+@Category({"SRMA", "Align"})
+@Description("A read that took longer than the threshold to re-align")
+@Threshold("10 ms")
+@StackTrace(false)
+public class ReadAlignedEvent extends Event {
+
+    @Label("Read Name")
+    public String readName;
+
+    @Label("Contig")
+    public String contig;
+
+    @Label("Alignment Start")
+    public int alignmentStart;
+
+    @Label("Heap Expansions")
+    public int expansions;
+
+    @Label("Max Heap Size")
+    public int maxHeapSize;
+
+    @Label("Final Heap Size")
+    public int finalHeapSize;
+
+    @Label("Outcome")
+    public String outcome;
+
+    @Label("Changed")
+    public boolean changed;
+}
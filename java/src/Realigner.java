@@ -0,0 +1,1244 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.util.*;
+import java.util.concurrent.*;
+import net.sf.samtools.*;
+import net.sf.picard.reference.*;
+
+/*
+ * The re-alignment engine.  A Realigner holds only configuration, is built
+ * with a Builder and may be shared between threads.  Each stream of
+ * co-ordinate sorted records is re-aligned by its own Session, which builds
+ * the graph as records are added and hands back the re-aligned records in
+ * co-ordinate order.  Memory is bounded by the graph window and
+ * MAX_QUEUE_SIZE, not by the size of the input.  The graph building and
+ * re-alignment of each batch is claimed in small chunks by NUM_THREADS
+ * tasks, run on the given executor (which may be shared between
+ * realigners), or else on new threads.  Re-alignment chunks are cut to
+ * about equal cost, estimated from the graph coverage, so that a few deep
+ * reads do not leave one thread working while the rest wait.  Each batch
+ * is re-aligned against an immutable snapshot of the graph, so the graph
+ * takes the next records while the batch is re-aligned.  With multi-sample
+ * input the graph can be partitioned by read group or by input file, so
+ * that the coverage filters apply within each sample rather than to the
+ * pooled reads.
+ *
+ * For example:
+ *   Realigner realigner = new Realigner.Builder().offset(20).numThreads(4).build();
+ *   Iterator<SAMRecord> iter = realigner.realign(records, new ReferenceProvider(reference));
+ * */
+public class Realigner {
+
+    private final static int SRMA_OFFSET_PROCESS = 100; // the number of extra offset bases until we should process the graph
+
+    /*
+     * How the graph coverage is partitioned between samples.
+     * */
+    public enum PartitionBy {
+        NONE, // all reads are pooled
+        READ_GROUP, // by the RG tag
+        INPUT // by input file
+    }
+
+    private final int offset;
+    private final int minMapq;
+    private final int maximumTotalCoverage;
+    private final boolean correctBases;
+    private final boolean useSequenceQualities;
+    private final int insertSizeRangeLow, insertSizeRangeHigh;
+    private final boolean useInsertSizeRange;
+    private final int maxHeapSize;
+    private final Align.Engine alignmentEngine;
+    private final int beamWidth;
+    private final int seedLength;
+    private final boolean skipNonBranching;
+    private final int maxQueueSize;
+    private final boolean graphPruning;
+    private final int numThreads;
+    private final boolean quiet;
+    private final boolean passThroughFiltered;
+    private final SAMProgramRecord programRecord;
+    private final AlleleCoverageCutoffs alleleCoverageCutoffs;
+    private final SRMAMetrics metrics;
+    private final RegionCosts regionCosts;
+    private final Blacklist blacklist;
+    private final ExecutorService executor;
+    private final PartitionBy partitionBy;
+
+    private Realigner(Builder builder)
+    {
+        this.offset = builder.offset;
+        this.minMapq = builder.minMapq;
+        this.maximumTotalCoverage = builder.maximumTotalCoverage;
+        this.correctBases = builder.correctBases;
+        this.useSequenceQualities = builder.useSequenceQualities;
+        this.insertSizeRangeLow = builder.insertSizeRangeLow;
+        this.insertSizeRangeHigh = builder.insertSizeRangeHigh;
+        this.useInsertSizeRange = builder.useInsertSizeRange;
+        this.maxHeapSize = builder.maxHeapSize;
+        this.alignmentEngine = builder.alignmentEngine;
+        this.beamWidth = builder.beamWidth;
+        this.seedLength = builder.seedLength;
+        this.skipNonBranching = builder.skipNonBranching;
+        this.maxQueueSize = builder.maxQueueSize;
+        this.graphPruning = builder.graphPruning;
+        this.numThreads = builder.numThreads;
+        this.quiet = builder.quiet;
+        this.passThroughFiltered = builder.passThroughFiltered;
+        this.programRecord = builder.programRecord;
+        this.alleleCoverageCutoffs = new AlleleCoverageCutoffs(builder.minimumAlleleCoverage, builder.minimumAlleleProbability, builder.quiet);
+        this.metrics = builder.metrics;
+        this.regionCosts = builder.regionCosts;
+        this.blacklist = builder.blacklist;
+        this.executor = builder.executor;
+        this.partitionBy = builder.partitionBy;
+    }
+
+    public int getOffset()
+    {
+        return this.offset;
+    }
+
+    public SAMProgramRecord getProgramRecord()
+    {
+        return this.programRecord;
+    }
+
+    /*
+     * Starts a new session.
+     * @param reference The reference.
+     * @param outputRanges Only records starting within these ranges are returned, or null for all records.
+     * */
+    public Session newSession(ReferenceProvider reference, Ranges outputRanges)
+    {
+        return new Session(reference, outputRanges);
+    }
+
+    /*
+     * Returns the re-aligned records, in co-ordinate order.  Records are
+     * read from the input, and re-aligned, only as the returned iterator is
+     * advanced.  Errors are thrown as a RealignerException.
+     * @param input The co-ordinate sorted records.
+     * @param reference The reference.
+     * */
+    public Iterator<SAMRecord> realign(Iterator<SAMRecord> input, ReferenceProvider reference)
+    {
+        return new RecordIterator(this.newSession(reference, null), input);
+    }
+
+    public static class Builder {
+        private int offset = 20;
+        private int minMapq = 0;
+        private double minimumAlleleProbability = 0.1;
+        private int minimumAlleleCoverage = 3;
+        private int maximumTotalCoverage = 100;
+        private boolean correctBases = false;
+        private boolean useSequenceQualities = true;
+        private int insertSizeRangeLow = Integer.MIN_VALUE, insertSizeRangeHigh = Integer.MAX_VALUE;
+        private boolean useInsertSizeRange = false;
+        private int maxHeapSize = 8192;
+        private Align.Engine alignmentEngine = Align.Engine.HEAP;
+        private int beamWidth = 64;
+        private int seedLength = 0;
+        private boolean skipNonBranching = false;
+        private int maxQueueSize = 65536;
+        private boolean graphPruning = false;
+        private int numThreads = 1;
+        private boolean quiet = true;
+        private boolean passThroughFiltered = false;
+        private SAMProgramRecord programRecord = null;
+        private SRMAMetrics metrics = null;
+        private RegionCosts regionCosts = null;
+        private Blacklist blacklist = null;
+        private ExecutorService executor = null;
+        private PartitionBy partitionBy = PartitionBy.NONE;
+
+        public Builder offset(int offset)
+        {
+            this.offset = offset;
+            return this;
+        }
+
+        public Builder minMapq(int minMapq)
+        {
+            this.minMapq = minMapq;
+            return this;
+        }
+
+        public Builder minimumAlleleProbability(double p)
+        {
+            this.minimumAlleleProbability = p;
+            return this;
+        }
+
+        public Builder minimumAlleleCoverage(int coverage)
+        {
+            this.minimumAlleleCoverage = coverage;
+            return this;
+        }
+
+        public Builder maximumTotalCoverage(int coverage)
+        {
+            this.maximumTotalCoverage = coverage;
+            return this;
+        }
+
+        public Builder correctBases(boolean correctBases)
+        {
+            this.correctBases = correctBases;
+            return this;
+        }
+
+        public Builder useSequenceQualities(boolean useSequenceQualities)
+        {
+            this.useSequenceQualities = useSequenceQualities;
+            return this;
+        }
+
+        public Builder maxHeapSize(int maxHeapSize)
+        {
+            this.maxHeapSize = maxHeapSize;
+            return this;
+        }
+
+        public Builder alignmentEngine(Align.Engine alignmentEngine)
+        {
+            this.alignmentEngine = alignmentEngine;
+            return this;
+        }
+
+        // The number of paths kept at each read base by the BEAM engine
+        public Builder beamWidth(int beamWidth)
+        {
+            this.beamWidth = beamWidth;
+            return this;
+        }
+
+        /*
+         * Starts the search only from nodes that spell the first seedLength
+         * bases of the read, if any do, rather than from every node within
+         * the offset.  Zero to start from every node.
+         * */
+        public Builder seedLength(int seedLength)
+        {
+            this.seedLength = seedLength;
+            return this;
+        }
+
+        /*
+         * Keeps the alignment of records, without a search, when the graph
+         * does not branch within the offset of them, and they do not repeat
+         * themselves within the offset, since no other path could then be as
+         * good.  The records are otherwise updated as if searched.
+         * */
+        public Builder skipNonBranching(boolean skipNonBranching)
+        {
+            this.skipNonBranching = skipNonBranching;
+            return this;
+        }
+
+        public Builder maxQueueSize(int maxQueueSize)
+        {
+            this.maxQueueSize = maxQueueSize;
+            return this;
+        }
+
+        public Builder graphPruning(boolean graphPruning)
+        {
+            this.graphPruning = graphPruning;
+            return this;
+        }
+
+        public Builder numThreads(int numThreads)
+        {
+            this.numThreads = numThreads;
+            return this;
+        }
+
+        // Suppress the allele coverage cutoffs and progress on System.err
+        public Builder quiet(boolean quiet)
+        {
+            this.quiet = quiet;
+            return this;
+        }
+
+        // Return unmapped, secondary and low mapping quality records as is, rather than dropping them
+        public Builder passThroughFiltered(boolean passThroughFiltered)
+        {
+            this.passThroughFiltered = passThroughFiltered;
+            return this;
+        }
+
+        // The program record whose ID is set in the PG tag of re-aligned records
+        public Builder programRecord(SAMProgramRecord programRecord)
+        {
+            this.programRecord = programRecord;
+            return this;
+        }
+
+        public Builder metrics(SRMAMetrics metrics)
+        {
+            this.metrics = metrics;
+            return this;
+        }
+
+        public Builder regionCosts(RegionCosts regionCosts)
+        {
+            this.regionCosts = regionCosts;
+            return this;
+        }
+
+        public Builder blacklist(Blacklist blacklist)
+        {
+            this.blacklist = blacklist;
+            return this;
+        }
+
+        // Runs the graph and re-alignment tasks, or null to start new threads for each batch
+        public Builder executor(ExecutorService executor)
+        {
+            this.executor = executor;
+            return this;
+        }
+
+        // Keep the coverage of each sample, and filter alleles within the sample of the read
+        public Builder partitionBy(PartitionBy partitionBy)
+        {
+            this.partitionBy = partitionBy;
+            return this;
+        }
+
+        /*
+         * @param range Only align read pairs within this range (ex. -1000:1000), or null for all.
+         * */
+        public Builder insertSizeRange(String range)
+            throws Exception
+        {
+            int colon;
+
+            if(null == range) {
+                this.insertSizeRangeLow = Integer.MIN_VALUE;
+                this.insertSizeRangeHigh = Integer.MAX_VALUE;
+                this.useInsertSizeRange = false;
+                return this;
+            }
+
+            colon = range.indexOf(":");
+            if(colon < 0 || range.length() <= colon) {
+                throw new Exception("INSERT_SIZE_RANGE was improperly specified");
+            }
+
+            this.insertSizeRangeLow = Integer.parseInt(range.substring(0, colon));
+            this.insertSizeRangeHigh = Integer.parseInt(range.substring(colon+1));
+
+            if(this.insertSizeRangeHigh < this.insertSizeRangeLow) {
+                throw new Exception("INSERT_SIZE_RANGE was improperly specified");
+            }
+            this.useInsertSizeRange = true;
+            return this;
+        }
+
+        public Realigner build()
+            throws Exception
+        {
+            if(this.offset < 0) {
+                throw new Exception("The offset must be non-negative.");
+            }
+            else if(this.numThreads <= 0) {
+                throw new Exception("The number of threads must be greater than zero.");
+            }
+            else if(null == this.alignmentEngine) {
+                throw new Exception("The alignment engine must be specified.");
+            }
+            else if(this.beamWidth <= 0) {
+                throw new Exception("The beam width must be greater than zero.");
+            }
+            else if(this.seedLength < 0 || GraphSnapshot.MAX_SEED_LENGTH < this.seedLength) {
+                throw new Exception("The seed length must be between 0 and " + GraphSnapshot.MAX_SEED_LENGTH + ".");
+            }
+            else if(this.maxQueueSize <= 0) {
+                throw new Exception("The maximum queue size must be greater than zero.");
+            }
+            else if(null == this.partitionBy) {
+                throw new Exception("The partitioning must be specified.");
+            }
+            if(null == this.programRecord) {
+                this.programRecord = new SAMProgramRecord("srma");
+            }
+            return new Realigner(this);
+        }
+    }
+
+    /*
+     * Runs the tasks, rethrowing the first error.
+     * */
+    private void invokeAll(List<Callable<Object>> tasks)
+        throws Exception
+    {
+        this.await(this.start(tasks));
+    }
+
+    /*
+     * Starts the tasks, or runs a single task in place.
+     * */
+    private List<Future<Object>> start(List<Callable<Object>> tasks)
+    {
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        int i;
+
+        if(1 == tasks.size()) {
+            FutureTask<Object> future = new FutureTask<Object>(tasks.get(0));
+            future.run();
+            futures.add(future);
+        }
+        else if(null == this.executor) {
+            for(i=0;i<tasks.size();i++) {
+                FutureTask<Object> future = new FutureTask<Object>(tasks.get(i));
+                futures.add(future);
+                new Thread(future).start();
+            }
+        }
+        else {
+            for(i=0;i<tasks.size();i++) {
+                futures.add(this.executor.submit(tasks.get(i)));
+            }
+        }
+        return futures;
+    }
+
+    /*
+     * Waits for all the tasks, rethrowing the first error.
+     * */
+    private void await(List<Future<Object>> futures)
+        throws Exception
+    {
+        Exception error = null;
+        int i;
+
+        for(i=0;i<futures.size();i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                if(null == error) {
+                    error = (e.getCause() instanceof Exception) ? (Exception)e.getCause() : new Exception(e.getCause());
+                }
+            }
+        }
+        if(null != error) {
+            throw error;
+        }
+    }
+
+    /*
+     * Thrown by the iterator returned by realign.
+     * */
+    public static class RealignerException extends RuntimeException {
+        private static final long serialVersionUID = 1;
+
+        public RealignerException(String s)
+        {
+            super(s);
+        }
+
+        public RealignerException(Throwable cause)
+        {
+            super(cause);
+        }
+    }
+
+    /*
+     * Re-aligns one stream of co-ordinate sorted records.  A session is not
+     * itself thread-safe: records are added, and re-aligned records polled,
+     * by one thread, while the re-alignment uses NUM_THREADS worker threads.
+     * */
+    public class Session {
+
+        private ReferenceProvider reference = null;
+        private ReferenceSequence referenceSequence = null;
+
+        private AlignRecordQueue toAddToGraphList = null;
+        private AlignRecordQueue toAlignList = null;
+        private PriorityQueue<AlignRecord> toOutputQueue = null;
+        private LinkedList<AlignRecord> ready = null;
+
+        private Graph graph = null;
+        private int prevReferenceIndex = -1;
+
+        // the batch being re-aligned, while the graph takes the next records
+        private AlignRecordQueue.Batch aligning = null;
+        private GraphSnapshot aligningGraph = null;
+        private List<Future<Object>> aligningTasks = null;
+        private GraphWindowEvent aligningEvent = null;
+        private String aligningContig = null;
+        private long aligningStartTime = 0;
+        private int prevAlignmentStart = -1;
+        private int maxAlignmentEnd = -1; // of the records added to this graph
+        private int ctr = 0;
+        private int maxOutputStringLength = 0;
+        private boolean finished = false;
+        private Map<String, Integer> readGroupSampleIndices = null;
+        private Map<SAMFileHeader, Boolean> headerMayBeColorSpace = null; // by identity, since the read groups of each are checked once
+
+        // for outputting within RANGES
+        private Ranges outputRanges = null;
+        private Iterator<Range> outputRangesIterator = null;
+        private Range outputRange = null;
+
+        private Session(ReferenceProvider reference, Ranges outputRanges)
+        {
+            this.reference = reference;
+            this.toAddToGraphList = new AlignRecordQueue();
+            this.toAlignList = new AlignRecordQueue();
+            this.toOutputQueue = new PriorityQueue<AlignRecord>(40, new AlignRecordComparator());
+            this.ready = new LinkedList<AlignRecord>();
+            this.graph = new Graph(PartitionBy.NONE != partitionBy);
+            this.readGroupSampleIndices = new HashMap<String, Integer>();
+            this.headerMayBeColorSpace = new IdentityHashMap<SAMFileHeader, Boolean>();
+            this.outputRanges = outputRanges;
+            if(null != this.outputRanges) {
+                this.outputRangesIterator = this.outputRanges.iterator();
+                this.outputRange = (this.outputRangesIterator.hasNext()) ? this.outputRangesIterator.next() : null;
+            }
+        }
+
+        public void add(SAMRecord rec)
+            throws Exception
+        {
+            this.add(new AlignRecord(rec, null, 0));
+        }
+
+        /*
+         * Adds the next record.  Records must be co-ordinate sorted.
+         * */
+        public void add(AlignRecord rec)
+            throws Exception
+        {
+            if(this.finished) {
+                throw new Exception("Records were added after the session was finished.");
+            }
+
+            if(rec.record.getReadUnmappedFlag()
+                    || rec.record.getNotPrimaryAlignmentFlag()
+                    || rec.record.getMappingQuality() < minMapq) {
+                if(passThroughFiltered) {
+                    this.toOutputQueue.add(rec);
+                }
+                // TODO
+                // Print this out somehow in some order somewhere
+                return;
+            }
+
+            int curReferenceIndex = rec.record.getReferenceIndex();
+            int curAlignmentStart = rec.record.getAlignmentStart();
+
+            // Make sure that it is sorted
+            if(curReferenceIndex < this.prevReferenceIndex
+                    || (curReferenceIndex == this.prevReferenceIndex
+                        && curAlignmentStart < this.prevAlignmentStart))
+            {
+                throw new Exception("SAM/BAM file is not co-ordinate sorted.");
+            }
+
+            if(this.prevReferenceIndex < 0) {
+                // do an initial prune
+                this.graph.prune(curReferenceIndex, curAlignmentStart, 0, graphPruning);
+            }
+
+            // check if we should flush the previous records
+            if(this.prevReferenceIndex != curReferenceIndex
+                    || this.prevAlignmentStart + offset + SRMA_OFFSET_PROCESS < curAlignmentStart)
+            {
+                // process graph
+                this.processToAddToGraphList();
+
+                // process the current queue
+                this.processToAlignList(true);
+
+                // prune the graph
+                this.graph.prune(curReferenceIndex,
+                        curAlignmentStart,
+                        offset,
+                        graphPruning);
+            }
+
+            this.prevReferenceIndex = curReferenceIndex;
+            this.prevAlignmentStart = curAlignmentStart;
+            if(this.maxAlignmentEnd < rec.record.getAlignmentEnd()) {
+                this.maxAlignmentEnd = rec.record.getAlignmentEnd();
+            }
+
+            if(null == this.referenceSequence || curReferenceIndex != this.referenceSequence.getContigIndex()) {
+                this.referenceSequence = this.reference.getSequence(curReferenceIndex);
+                if(!this.referenceSequence.getName().equals(rec.record.getReferenceName())) {
+                    throw new Exception("FASTA sequence dictionary and SAM/BAM file dictionary are in different orders");
+                }
+            }
+
+            if(null != blacklist && blacklist.skip(rec.record)) {
+                // just output
+                this.toOutputQueue.add(rec);
+            }
+            else {
+                rec.sampleIndex = this.getSampleIndex(rec);
+                rec.mayBeColorSpace = this.mayBeColorSpace(rec.record.getHeader());
+                // Add the current record to the graph list
+                this.toAddToGraphList.add(rec);
+            }
+
+            // process graph
+            if(maxQueueSize <= this.toAddToGraphList.size()) {
+                this.processToAddToGraphList();
+            }
+
+            // align
+            if(maxQueueSize <= this.toAlignList.size()) {
+                this.processToAlignList(false);
+            }
+        }
+
+        /*
+         * Re-aligns all the records added so far and starts a new graph, for
+         * example at the end of a range.  Re-aligned records are returned by
+         * poll once no later record can be placed before them.
+         * */
+        public void flush()
+            throws Exception
+        {
+            // process graph
+            this.processToAddToGraphList();
+            // align
+            this.processToAlignList(true);
+            this.awaitAlign();
+            this.outputAligned();
+            // start over
+            this.toAddToGraphList = new AlignRecordQueue();
+            this.toAlignList = new AlignRecordQueue();
+            this.graph = new Graph(PartitionBy.NONE != partitionBy);
+            this.prevReferenceIndex = -1;
+            this.prevAlignmentStart = -1;
+            this.maxAlignmentEnd = -1;
+        }
+
+        /*
+         * Returns true if no record re-aligned so far can be placed after the
+         * given record (or any later one) once re-aligned, and starting a new
+         * graph before it changes nothing, so that the output can be cut
+         * before it with checkpoint.  Records move by at most the offset, so
+         * this holds at a new contig, and at a gap of more than twice the
+         * offset (or the window flush distance, if larger) that no record
+         * added so far reaches within the offset.  The records added so far
+         * are then re-aligned without the given record anyway, and pruning
+         * would remove all of their nodes from the graph.
+         * */
+        public boolean isWindowBoundary(SAMRecord rec)
+        {
+            if(rec.getReadUnmappedFlag()) {
+                return false;
+            }
+            else if(this.prevReferenceIndex < 0 || this.prevReferenceIndex != rec.getReferenceIndex()) {
+                return true;
+            }
+            return (this.prevAlignmentStart + Math.max(offset + SRMA_OFFSET_PROCESS, 2*offset) < rec.getAlignmentStart()
+                    && this.maxAlignmentEnd + offset < rec.getAlignmentStart());
+        }
+
+        /*
+         * Re-aligns all the records added so far, after which all of them are
+         * returned by poll.  Only call this at a window boundary.
+         * */
+        public void checkpoint()
+            throws Exception
+        {
+            this.flush();
+            while(0 < this.toOutputQueue.size()) {
+                this.ready.add(this.toOutputQueue.poll());
+            }
+        }
+
+        /*
+         * Re-aligns all the records added so far, after which all records are
+         * returned by poll.  No more records may be added.
+         * */
+        public void finish()
+            throws Exception
+        {
+            if(this.finished) {
+                return;
+            }
+            this.flush();
+
+            // Output any alignments left in the queue
+            OutputFlushEvent outputFlushEvent = new OutputFlushEvent();
+            outputFlushEvent.begin();
+            while(0 < this.toOutputQueue.size()) {
+                this.ready.add(this.toOutputQueue.poll());
+                outputFlushEvent.records++;
+            }
+            outputFlushEvent.commit();
+            this.graph = null;
+            this.finished = true;
+        }
+
+        // Align.mayBeColorSpace for the header, looked up once per header
+        private boolean mayBeColorSpace(SAMFileHeader header)
+        {
+            Boolean mayBeColorSpace = null;
+
+            if(null == header) {
+                return true;
+            }
+            mayBeColorSpace = this.headerMayBeColorSpace.get(header);
+            if(null == mayBeColorSpace) {
+                mayBeColorSpace = Align.mayBeColorSpace(header);
+                this.headerMayBeColorSpace.put(header, mayBeColorSpace);
+            }
+            return mayBeColorSpace;
+        }
+
+        /*
+         * Returns the sample of the record, or -1 if not partitioned.  Read
+         * groups are numbered in the order they are first seen, with records
+         * without a read group forming their own sample.
+         * */
+        private int getSampleIndex(AlignRecord rec)
+        {
+            switch(partitionBy) {
+                case READ_GROUP:
+                    Object readGroup = rec.record.getAttribute("RG");
+                    String key = (null == readGroup) ? "" : readGroup.toString();
+                    Integer sampleIndex = this.readGroupSampleIndices.get(key);
+                    if(null == sampleIndex) {
+                        sampleIndex = this.readGroupSampleIndices.size();
+                        this.readGroupSampleIndices.put(key, sampleIndex);
+                    }
+                    return sampleIndex;
+                case INPUT:
+                    return rec.fileIndex;
+                default:
+                    return -1;
+            }
+        }
+
+        public boolean isFinished()
+        {
+            return this.finished;
+        }
+
+        /*
+         * Returns the next re-aligned record in co-ordinate order, or null if
+         * none is ready.
+         * */
+        public AlignRecord poll()
+        {
+            return this.ready.poll();
+        }
+
+        /*
+         * Returns the number of records re-aligned so far.
+         * */
+        public int getNumProcessed()
+        {
+            return this.ctr;
+        }
+
+        private void outputProgress(SAMRecord rec)
+        {
+            if(quiet) {
+                return;
+            }
+            else {
+                // TODO: enforce column width ?
+                int i;
+                String outputString = new String("Records processsed: " + this.ctr + " (last " + rec.getReferenceName() + ":" + rec.getAlignmentStart() + "-" + rec.getAlignmentEnd() + ")");
+                int outputStringLength = outputString.length();
+                if(this.maxOutputStringLength < outputStringLength) {
+                    this.maxOutputStringLength = outputStringLength;
+                }
+                System.err.print("\r" + outputString);
+                for(i=outputStringLength;i<this.maxOutputStringLength;i++) {
+                    System.err.print(" ");
+                }
+            }
+        }
+
+        private void processToAddToGraphList()
+            throws Exception
+        {
+            // Process alignments
+            if(0 < this.toAddToGraphList.size()) {
+
+                long startTime = System.nanoTime();
+                int i;
+                List<Callable<Object>> tasks = null;
+                AlignRecordQueue.Batch batch = null;
+
+                if(0 == this.toAlignList.size()
+                        && this.graph.contig != this.toAddToGraphList.getFirst().record.getReferenceIndex()+1)
+                {
+                    // Move to a new contig
+                    this.graph.prune(this.toAddToGraphList.getFirst().record.getReferenceIndex(),
+                            this.toAddToGraphList.getFirst().record.getAlignmentStart(),
+                            0,
+                            graphPruning);
+                }
+
+                // Get the records for the threads
+                batch = this.toAddToGraphList.takeBatch(this.graph.contig);
+
+                // Create tasks
+                tasks = new ArrayList<Callable<Object>>();
+                for(i=0;i<numThreads && i<batch.getNumChunks();i++) {
+                    tasks.add(new GraphTask(batch));
+                }
+
+                // Run
+                invokeAll(tasks);
+
+                // Copy records to be re-aligned, in order
+                for(i=0;i<batch.size();i++) {
+                    AlignRecord rec = batch.get(i);
+
+                    if(null != rec.node
+                            && this.graph.contig == rec.record.getReferenceIndex()+1
+                            && this.recordAlignmentStartContained(rec.record))
+                    {
+                        if(this.withinInsertSizeRange(rec.record)) {
+                            // align then output
+                            this.toAlignList.add(rec);
+                        }
+                        else {
+                            // just otuput
+                            this.toOutputQueue.add(rec);
+                        }
+                    }
+                }
+
+                if(null != metrics) {
+                    metrics.addStage(SRMAMetrics.STAGE_GRAPH, batch.size(), System.nanoTime() - startTime);
+                }
+            }
+        }
+
+        /*
+         * Starts re-aligning the records whose windows are complete, or all
+         * of them if we mean to flush, once the previous batch is done.  The
+         * batch searches a snapshot of the graph, so the graph is pruned
+         * straight away and takes the next records while it runs.
+         * */
+        private void processToAlignList(boolean flush)
+            throws Exception
+        {
+            this.awaitAlign();
+            this.outputAligned();
+
+            // Process available alignments
+            if(0 < this.toAlignList.size()) {
+
+                // Check if we are in bounds
+                if(flush ||
+                        this.toAlignList.getFirst().record.getAlignmentEnd() + offset < this.toAlignList.getLast().record.getAlignmentStart())
+                {
+                    int i, lastReferenceIndex, lastAlignmentStart;
+                    List<Callable<Object>> tasks = null;
+                    AlignRecordQueue.Batch batch = null;
+                    GraphSnapshot snapshot = null;
+
+                    this.aligningStartTime = System.nanoTime();
+                    this.aligningEvent = new GraphWindowEvent();
+                    this.aligningEvent.begin();
+
+                    // Get thread data
+                    if(flush) {
+                        batch = this.toAlignList.takeBatch(this.graph.contig);
+                    }
+                    else {
+                        batch = this.toAlignList.takeBatch(this.graph.contig,
+                                this.toAlignList.getLast().record.getAlignmentStart() - offset);
+                    }
+                    if(0 == batch.size()) {
+                        this.aligningEvent = null;
+                        return;
+                    }
+                    // before re-alignment moves it
+                    lastReferenceIndex = batch.get(batch.size()-1).record.getReferenceIndex();
+                    lastAlignmentStart = batch.get(batch.size()-1).record.getAlignmentStart();
+
+                    if(skipNonBranching) {
+                        this.markNonBranching(batch);
+                    }
+
+                    snapshot = this.graph.freeze(alleleCoverageCutoffs, maximumTotalCoverage, seedLength);
+
+                    // Balance the threads by the estimated cost of each record
+                    if(1 < numThreads) {
+                        batch.partition(this.getAlignCosts(batch), numThreads);
+                    }
+
+                    // Create tasks
+                    tasks = new ArrayList<Callable<Object>>();
+                    for(i=0;i<numThreads && i<batch.getNumChunks();i++) {
+                        tasks.add(new AlignTask(batch, snapshot, this.referenceSequence));
+                    }
+
+                    // Run
+                    this.aligning = batch;
+                    this.aligningGraph = snapshot;
+                    this.aligningContig = this.referenceSequence.getName();
+                    this.aligningTasks = start(tasks);
+
+                    // Prune the graph
+                    if(0 < this.toAlignList.size()) {
+                        this.graph.prune(this.toAlignList.getFirst().record.getReferenceIndex(), this.toAlignList.getFirst().record.getAlignmentStart(), offset, graphPruning);
+                    }
+                    else {
+                        this.graph.prune(lastReferenceIndex, lastAlignmentStart, offset, graphPruning);
+                    }
+                }
+            }
+        }
+
+        /*
+         * Marks the records that cannot move, so that they are not searched:
+         * the graph does not branch within the offset of them, and they do
+         * not repeat themselves within the offset.  The window of each is
+         * complete, since the batch is.
+         * */
+        private void markNonBranching(AlignRecordQueue.Batch batch)
+        {
+            int i, numMarked = 0;
+
+            for(i=0;i<batch.size();i++) {
+                AlignRecord rec = batch.get(i);
+                rec.search = this.graph.isBranching(rec.record.getAlignmentStart() - offset, rec.record.getAlignmentEnd() + offset)
+                    || Align.mayMoveWithoutBranching(rec.record, rec.mayBeColorSpace, offset, useSequenceQualities);
+                if(!rec.search) {
+                    numMarked++;
+                }
+            }
+            if(null != metrics) {
+                metrics.addNonBranching(numMarked);
+            }
+        }
+
+        /*
+         * Waits for the batch being re-aligned, if any, and adds it to the
+         * output queue in order.
+         * */
+        private void awaitAlign()
+            throws Exception
+        {
+            AlignRecordQueue.Batch batch = this.aligning;
+            SAMRecord lastSAMRecord = null;
+            int i;
+
+            if(null == batch) {
+                return;
+            }
+            this.aligning = null;
+            await(this.aligningTasks);
+            this.aligningTasks = null;
+
+            this.aligningEvent.end();
+            if(this.aligningEvent.shouldCommit()) {
+                this.aligningEvent.contig = this.aligningContig;
+                this.aligningEvent.start = this.aligningGraph.position_start;
+                this.aligningEvent.end = this.aligningGraph.position_end;
+                this.aligningEvent.nodes = this.aligningGraph.getNumNodes();
+                this.aligningEvent.edges = this.aligningGraph.getNumEdges();
+                this.aligningEvent.reads = batch.size();
+                this.aligningEvent.commit();
+            }
+            this.aligningEvent = null;
+            this.aligningGraph = null;
+
+            // Output the alignments, in order
+            for(i=0;i<batch.size();i++) {
+                AlignRecord rec = batch.get(i);
+                lastSAMRecord = rec.record;
+                this.toOutputQueue.add(rec);
+                this.ctr++;
+            }
+            this.outputProgress(lastSAMRecord);
+            if(null != metrics) {
+                metrics.addStage(SRMAMetrics.STAGE_ALIGN, batch.size(), System.nanoTime() - this.aligningStartTime);
+            }
+        }
+
+        /*
+         * Moves the records in the output queue that no record still to be
+         * re-aligned can be placed before to the ready list.  Nothing may be
+         * being re-aligned.
+         * */
+        private void outputAligned()
+        {
+            OutputFlushEvent outputFlushEvent = new OutputFlushEvent();
+            outputFlushEvent.begin();
+            while(0 < this.toOutputQueue.size()) {
+                AlignRecord rec = this.toOutputQueue.peek();
+                // alignment could have moved (+OFFSET), with another moving (-OFFSET)
+                if(rec.record.getReferenceIndex() + 1 != this.graph.contig || // different contig
+                        rec.record.getAlignmentStart() + 2*offset + 50 < this.graph.position_start) { // other alignments will not be less than, but add in 50bp just to be safe
+                    this.ready.add(this.toOutputQueue.poll());
+                    outputFlushEvent.records++;
+                        }
+                else { // other alignments could be less than
+                    break;
+                }
+            }
+            if(0 < outputFlushEvent.records) {
+                outputFlushEvent.remaining = this.toOutputQueue.size();
+                outputFlushEvent.commit();
+            }
+            if(null != metrics) {
+                metrics.setGraph(this.graph);
+                metrics.setOutputQueueSize(this.toOutputQueue.size());
+            }
+        }
+
+        /*
+         * Estimates the cost of re-aligning each record from the graph
+         * coverage at its ends: deeper positions have more alternative nodes
+         * to search.  Records over the maximum total coverage are aborted
+         * straight away, and records that cannot move are not searched, so
+         * are cheap.
+         * */
+        private long[] getAlignCosts(AlignRecordQueue.Batch batch)
+        {
+            long costs[] = new long[batch.size()];
+            int i;
+
+            for(i=0;i<batch.size();i++) {
+                SAMRecord rec = batch.get(i).record;
+                int sampleIndex = batch.get(i).sampleIndex;
+                int start = this.graph.getCoverage(rec.getAlignmentStart(), sampleIndex);
+                int end = this.graph.getCoverage(rec.getAlignmentEnd(), sampleIndex);
+                if(maximumTotalCoverage < start || maximumTotalCoverage < end || !batch.get(i).search) {
+                    costs[i] = 1;
+                }
+                else {
+                    costs[i] = 1 + start + end;
+                }
+            }
+            return costs;
+        }
+
+        private boolean recordAlignmentStartContained(SAMRecord rec)
+        {
+            int recReferenceIndex = -1;
+            int recAlignmentStart = -1;
+
+            if(null == this.outputRanges) { // all records
+                return true;
+            }
+            else if(null == this.outputRange) { // no more ranges
+                return false;
+            }
+
+            recReferenceIndex = rec.getReferenceIndex();
+            recAlignmentStart = rec.getAlignmentStart();
+            while(this.outputRange.referenceIndex < recReferenceIndex
+                    || (this.outputRange.referenceIndex == recReferenceIndex
+                        && this.outputRange.endPosition < recAlignmentStart))
+            { // find a new range
+                if(!this.outputRangesIterator.hasNext()) { // no more ranges
+                    this.outputRange = null;
+                    return false;
+                }
+                this.outputRange = this.outputRangesIterator.next();
+            }
+            if(recReferenceIndex < this.outputRange.referenceIndex
+                    || (recReferenceIndex == this.outputRange.referenceIndex
+                        && recAlignmentStart < this.outputRange.startPosition)) { // before range
+                // not within range
+                return false;
+                        }
+            else {
+                // must be within range
+                return true;
+            }
+        }
+
+        private boolean withinInsertSizeRange(SAMRecord rec)
+        {
+            int isize;
+            if(!useInsertSizeRange) {
+                return true;
+            }
+            if(!rec.getReadPairedFlag()
+                    || rec.getMateUnmappedFlag()) {
+                // not paired
+                // or only one end maps
+                return true;
+                    }
+            // assumes: paired and both mapped
+            isize = rec.getInferredInsertSize();
+            if(rec.getFirstOfPairFlag()) { // first record, 5'
+                if(insertSizeRangeLow <= isize && isize <= insertSizeRangeHigh) {
+                    return true;
+                }
+                else {
+                    return false;
+                }
+            }
+            else { // second record, 3'
+                if(insertSizeRangeLow <= -isize && -isize <= insertSizeRangeHigh) {
+                    return true;
+                }
+                else {
+                    return false;
+                }
+            }
+        }
+
+        /*
+         * Re-aligns chunks of the batch until none are left.
+         * */
+        private class AlignTask implements Callable<Object> {
+
+            private AlignRecordQueue.Batch batch;
+            private GraphSnapshot graph;
+            private ReferenceSequence referenceSequence;
+            private AlignStatistics stats;
+
+            public AlignTask(AlignRecordQueue.Batch batch, GraphSnapshot graph, ReferenceSequence referenceSequence)
+            {
+                this.batch = batch;
+                this.graph = graph;
+                this.referenceSequence = referenceSequence;
+                this.stats = new AlignStatistics();
+            }
+
+            public Object call()
+                throws Exception
+            {
+                int i, chunk;
+
+                while(0 <= (chunk = this.batch.claim())) {
+                    // Align each record
+                    for(i=this.batch.getChunkStart(chunk);i<this.batch.getChunkEnd(chunk);i++) {
+                        AlignRecord curAlignRecord = this.batch.get(i);
+                        SAMRecord curSAMRecord = curAlignRecord.record;
+                        Node curNode = curAlignRecord.node;
+                        int referenceIndex = curSAMRecord.getReferenceIndex();
+                        int alignmentStart = curSAMRecord.getAlignmentStart();
+                        long startTime = (null == regionCosts) ? 0 : regionCosts.getTime();
+
+                        // Align - this will overwrite/change the alignment
+                        Align.align(this.graph,
+                                curSAMRecord,
+                                curNode,
+                                curAlignRecord.sampleIndex,
+                                this.referenceSequence,
+                                programRecord,
+                                offset,
+                                alleleCoverageCutoffs,
+                                correctBases,
+                                useSequenceQualities,
+                                maximumTotalCoverage,
+                                maxHeapSize,
+                                alignmentEngine,
+                                beamWidth,
+                                curAlignRecord.mayBeColorSpace,
+                                curAlignRecord.search,
+                                this.stats);
+                        if(null != metrics) {
+                            metrics.addAlignment(this.stats);
+                        }
+                        if(null != regionCosts) {
+                            regionCosts.add(referenceIndex, alignmentStart, regionCosts.getTime() - startTime, this.stats, this.graph.getNumNodes());
+                        }
+                    }
+                }
+                return null;
+            }
+        }
+
+        /*
+         * Adds chunks of the batch to the graph until none are left, keeping
+         * the start node of each record.
+         * */
+        private class GraphTask implements Callable<Object> {
+
+            private AlignRecordQueue.Batch batch;
+
+            public GraphTask(AlignRecordQueue.Batch batch)
+            {
+                this.batch = batch;
+            }
+
+            public Object call()
+                throws Exception
+            {
+                int i, chunk;
+
+                while(0 <= (chunk = this.batch.claim())) {
+                    for(i=this.batch.getChunkStart(chunk);i<this.batch.getChunkEnd(chunk);i++) {
+                        // Get record
+                        AlignRecord rec = this.batch.get(i);
+
+                        // Add to the graph, and keep track of start node
+                        rec.setNode(graph.addSAMRecord(rec.record, referenceSequence, rec.sampleIndex));
+                    }
+                }
+                return null;
+            }
+        }
+    }
+
+    private class RecordIterator implements Iterator<SAMRecord> {
+
+        private Session session = null;
+        private Iterator<SAMRecord> input = null;
+        private AlignRecord next = null;
+
+        public RecordIterator(Session session, Iterator<SAMRecord> input)
+        {
+            this.session = session;
+            this.input = input;
+        }
+
+        public boolean hasNext()
+        {
+            if(null != this.next) {
+                return true;
+            }
+            try {
+                while(null == (this.next = this.session.poll())) {
+                    if(this.input.hasNext()) {
+                        this.session.add(this.input.next());
+                    }
+                    else if(!this.session.isFinished()) {
+                        this.session.finish();
+                    }
+                    else {
+                        return false;
+                    }
+                }
+            } catch (RealignerException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RealignerException(e);
+            }
+            return true;
+        }
+
+        public SAMRecord next()
+        {
+            SAMRecord rec = null;
+            if(!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            rec = this.next.record;
+            this.next = null;
+            return rec;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
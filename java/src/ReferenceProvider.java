@@ -0,0 +1,88 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.io.*;
+import java.util.*;
+import net.sf.samtools.*;
+import net.sf.picard.io.IoUtil;
+import net.sf.picard.reference.*;
+
+/*
+ * Gives re-alignment sessions access to an indexed reference.  The most
+ * recently used contigs are kept in memory, so that sessions on the same
+ * contig share one copy.  Safe to share between threads.
+ * */
+public class ReferenceProvider {
+
+    private ReferenceSequenceFile referenceSequenceFile = null;
+    private SAMSequenceDictionary referenceDictionary = null;
+    private LinkedHashMap<Integer, ReferenceSequence> cache = null;
+    private int cacheSize;
+
+    public ReferenceProvider(File reference)
+        throws Exception
+    {
+        this(reference, 1);
+    }
+
+    /*
+     * @param reference The indexed FASTA file, with a sequence dictionary.
+     * @param cacheSize The number of contigs to keep in memory.
+     * */
+    public ReferenceProvider(File reference, int cacheSize)
+        throws Exception
+    {
+        IoUtil.assertFileIsReadable(reference);
+        this.referenceSequenceFile = new IndexedFastaSequenceFile(reference);
+        if(!this.referenceSequenceFile.isIndexed()) {
+            throw new Exception("Reference sequence file was not indexed.");
+        }
+        this.referenceDictionary = this.referenceSequenceFile.getSequenceDictionary();
+        if(null == this.referenceDictionary) {
+            throw new Exception("Could not find FASTA dictionary file.");
+        }
+        if(cacheSize <= 0) {
+            throw new Exception("The reference cache size must be greater than zero.");
+        }
+        this.cacheSize = cacheSize;
+        this.cache = new LinkedHashMap<Integer, ReferenceSequence>(16, 0.75f, true);
+    }
+
+    public SAMSequenceDictionary getSequenceDictionary()
+    {
+        return this.referenceDictionary;
+    }
+
+    /*
+     * Returns the sequence of the contig with the given zero-based index.
+     * */
+    public synchronized ReferenceSequence getSequence(int referenceIndex)
+        throws Exception
+    {
+        ReferenceSequence sequence = this.cache.get(referenceIndex);
+
+        if(null == sequence) {
+            if(referenceIndex < 0 || this.referenceDictionary.size() <= referenceIndex) {
+                throw new Exception("Reference index out of range: " + referenceIndex);
+            }
+            // TODO: could retrieve just the specified bases
+            sequence = this.referenceSequenceFile.getSequence(this.referenceDictionary.getSequence(referenceIndex).getSequenceName());
+            if(null == sequence) {
+                throw new Exception("Premature EOF in the reference sequence");
+            }
+            else if(sequence.getContigIndex() != referenceIndex) {
+                throw new Exception("Could not find the reference sequence");
+            }
+            this.cache.put(referenceIndex, sequence);
+            if(this.cacheSize < this.cache.size()) {
+                Iterator<Integer> iter = this.cache.keySet().iterator();
+                iter.next();
+                iter.remove();
+            }
+        }
+
+        return sequence;
+    }
+}
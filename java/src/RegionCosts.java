@@ -0,0 +1,178 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.io.*;
+import java.util.*;
+import java.lang.management.*;
+import net.sf.samtools.*;
+
+/*
+ * Accumulates the re-alignment cost of fixed-size genomic windows, so the
+ * few loci that dominate the runtime can be reported and blacklisted.  A
+ * read is charged to the window containing its original alignment start.
+ * */
+public class RegionCosts {
+
+    private SAMSequenceDictionary referenceDictionary = null;
+    private int binSize;
+    private Map<Long, Cost> costs = null;
+    private ThreadMXBean threadMXBean = null;
+
+    public RegionCosts(SAMSequenceDictionary referenceDictionary, int binSize)
+        throws Exception
+    {
+        if(binSize <= 0) {
+            throw new Exception("The bin size must be greater than zero.");
+        }
+        this.referenceDictionary = referenceDictionary;
+        this.binSize = binSize;
+        this.costs = new HashMap<Long, Cost>();
+        this.threadMXBean = ManagementFactory.getThreadMXBean();
+        if(!this.threadMXBean.isCurrentThreadCpuTimeSupported()) {
+            this.threadMXBean = null;
+        }
+        else if(!this.threadMXBean.isThreadCpuTimeEnabled()) {
+            this.threadMXBean.setThreadCpuTimeEnabled(true);
+        }
+    }
+
+    /*
+     * Returns the CPU time of the current thread, or the wall time if the
+     * former is not supported.
+     * */
+    public long getTime()
+    {
+        return (null == this.threadMXBean) ? System.nanoTime() : this.threadMXBean.getCurrentThreadCpuTime();
+    }
+
+    /*
+     * @param referenceIndex The zero-based reference index of the read.
+     * @param alignmentStart The original alignment start of the read.
+     * @param nanos The time spent re-aligning the read.
+     * @param stats The statistics from re-aligning the read.
+     * @param graphNodes The number of nodes in the graph.
+     * */
+    public synchronized void add(int referenceIndex, int alignmentStart, long nanos, AlignStatistics stats, int graphNodes)
+    {
+        Long key = Long.valueOf((((long)referenceIndex) << 32) | ((alignmentStart - 1) / this.binSize));
+        Cost cost = this.costs.get(key);
+
+        if(null == cost) {
+            cost = new Cost(referenceIndex, (alignmentStart - 1) / this.binSize);
+            this.costs.put(key, cost);
+        }
+        cost.nanos += nanos;
+        cost.reads++;
+        cost.expansions += stats.expansions;
+        if(cost.maxGraphNodes < graphNodes) {
+            cost.maxGraphNodes = graphNodes;
+        }
+        if(AlignStatistics.OUTCOME_MAX_HEAP_SIZE == stats.outcome
+                || AlignStatistics.OUTCOME_MAX_TOTAL_COVERAGE == stats.outcome) {
+            cost.aborted++;
+        }
+    }
+
+    /*
+     * Returns the windows, most expensive first.
+     * */
+    private synchronized List<Cost> getRanked()
+    {
+        List<Cost> ranked = new ArrayList<Cost>(this.costs.values());
+        Collections.sort(ranked, new Comparator<Cost>() {
+            public int compare(Cost a, Cost b) {
+                if(a.nanos != b.nanos) {
+                    return (a.nanos < b.nanos) ? 1 : -1;
+                }
+                else if(a.referenceIndex != b.referenceIndex) {
+                    return a.referenceIndex - b.referenceIndex;
+                }
+                return a.bin - b.bin;
+            }
+        });
+        return ranked;
+    }
+
+    /*
+     * Writes a BED-compatible tab-delimited report, most expensive window first.
+     * */
+    public void writeReport(File file)
+        throws Exception
+    {
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)));
+        ListIterator<Cost> iter = this.getRanked().listIterator();
+
+        out.println("#CONTIG\tSTART\tEND\tCPU_SECONDS\tREADS\tEXPANSIONS\tMAX_GRAPH_NODES\tABORTED");
+        while(iter.hasNext()) {
+            Cost cost = iter.next();
+            out.println(this.getContig(cost) 
+                    + "\t" + (cost.bin * this.binSize) // zero-based
+                    + "\t" + this.getEnd(cost)
+                    + "\t" + String.format(Locale.ROOT, "%.6f", cost.nanos / 1e9)
+                    + "\t" + cost.reads
+                    + "\t" + cost.expansions
+                    + "\t" + cost.maxGraphNodes
+                    + "\t" + cost.aborted);
+        }
+        out.close();
+    }
+
+    /*
+     * Writes the most expensive windows in the RANGES format (one-based,
+     * inclusive, co-ordinate sorted), for use with BLACKLIST.
+     * @param size The maximum number of windows to write.
+     * */
+    public void writeBlacklist(File file, int size)
+        throws Exception
+    {
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)));
+        List<Cost> ranked = this.getRanked();
+        List<Cost> blacklist = null;
+        ListIterator<Cost> iter = null;
+
+        blacklist = new ArrayList<Cost>(ranked.subList(0, Math.min(size, ranked.size())));
+        Collections.sort(blacklist, new Comparator<Cost>() {
+            public int compare(Cost a, Cost b) {
+                if(a.referenceIndex != b.referenceIndex) {
+                    return a.referenceIndex - b.referenceIndex;
+                }
+                return a.bin - b.bin;
+            }
+        });
+        iter = blacklist.listIterator();
+        while(iter.hasNext()) {
+            Cost cost = iter.next();
+            out.println(this.getContig(cost) + "\t" + (cost.bin * this.binSize + 1) + "\t" + this.getEnd(cost));
+        }
+        out.close();
+    }
+
+    private String getContig(Cost cost)
+    {
+        return this.referenceDictionary.getSequence(cost.referenceIndex).getSequenceName();
+    }
+
+    private int getEnd(Cost cost)
+    {
+        return Math.min((cost.bin + 1) * this.binSize, 
+                this.referenceDictionary.getSequence(cost.referenceIndex).getSequenceLength());
+    }
+
+    private class Cost {
+        public int referenceIndex;
+        public int bin;
+        public long nanos = 0;
+        public long reads = 0;
+        public long expansions = 0;
+        public int maxGraphNodes = 0;
+        public long aborted = 0;
+
+        public Cost(int referenceIndex, int bin)
+        {
+            this.referenceIndex = referenceIndex;
+            this.bin = bin;
+        }
+    }
+}
@@ -20,15 +20,33 @@ public class SAMRecordIO
     private List<SAMFileWriter> writers;
     private List<CloseableIterator<SAMRecord>> recordsIters = null;
     private List<AlignRecord> buffer = null; // should be one per input file
+    private List<CRAMFile> cramFiles; // null for SAM/BAM inputs
+    private boolean createIndex = false;
+    private File reference = null;
+    private String samtools = null;
 
     public SAMRecordIO(List<File> inputs, List<File> outputs, String programVersion, boolean useRanges, SAMSequenceDictionary referenceDictionary)
         throws Exception
+    {
+        this(inputs, outputs, programVersion, useRanges, referenceDictionary, false, null, "samtools");
+    }
+
+    /*
+     * @param createIndex true to write a BAM index alongside each BAM output, as the records are written.
+     * @param reference The reference FASTA file, for CRAM input and output.
+     * @param samtools The samtools executable, for CRAM input and output.
+     * */
+    public SAMRecordIO(List<File> inputs, List<File> outputs, String programVersion, boolean useRanges, SAMSequenceDictionary referenceDictionary, boolean createIndex, File reference, String samtools)
+        throws Exception
     {
         ListIterator<File> inputsIter = null;
-        ListIterator<File> outputsIter = null;
         ListIterator<SAMFileReader> readersIter = null;
 
+        this.createIndex = createIndex;
+        this.reference = reference;
+        this.samtools = samtools;
         this.readers = new ArrayList<SAMFileReader>();
+        this.cramFiles = new ArrayList<CRAMFile>();
         this.readersHeaders = new ArrayList<SAMFileHeader>();
         this.writers = new ArrayList<SAMFileWriter>();
 
@@ -36,7 +54,6 @@ public class SAMRecordIO
 
         inputsIter = inputs.listIterator();
         if(1 < outputs.size()) { // to multiple files 
-            outputsIter = outputs.listIterator();
             if(outputs.size() != inputs.size()) {
                 throw new Exception("There must be the same # of inputs as outputs");
             }
@@ -45,12 +62,22 @@ public class SAMRecordIO
             File file = inputsIter.next();
             SAMFileReader fileReader = null;
             SAMFileHeader fileHeader = null;
+            CRAMFile cramFile = null;
 
             IoUtil.assertFileIsReadable(file);
 
-            fileReader = new SAMFileReader(file, true);
-            if(useRanges && !fileReader.hasIndex()) {
-                throw new Exception("BAM files and BAM indexes when using the RANGE or RANGES option"); 
+            if(CRAMFile.isCRAM(file)) {
+                cramFile = new CRAMFile(this.samtools, file, this.reference);
+                if(useRanges && !cramFile.hasIndex()) {
+                    throw new Exception("CRAM indexes (.crai) are required when using the RANGE or RANGES option"); 
+                }
+                fileReader = cramFile.open(null);
+            }
+            else {
+                fileReader = new SAMFileReader(file, false); // decode lazily, so untouched records are written back as read
+                if(useRanges && !fileReader.hasIndex()) {
+                    throw new Exception("BAM files and BAM indexes when using the RANGE or RANGES option"); 
+                }
             }
             fileHeader = fileReader.getFileHeader();
             if(!checkHeaderAgainstReferenceDictionary(fileHeader, referenceDictionary)) {
@@ -74,9 +101,7 @@ public class SAMRecordIO
 
             this.readers.add(fileReader);
             this.readersHeaders.add(fileHeader);
-            if(1 < outputs.size()) { // to multiple files 
-                this.writers.add(new SAMFileWriterFactory().makeSAMOrBAMWriter(fileHeader, true, outputsIter.next())); 
-            }
+            this.cramFiles.add(cramFile);
         }
 
         // Merge headers
@@ -85,12 +110,7 @@ public class SAMRecordIO
         // Always set to coordinate sorted
         this.mergedHeader.setSortOrder(SAMFileHeader.SortOrder.coordinate);
 
-        if(0 == outputs.size()) { // to STDOUT
-            this.writers.add(new SAMFileWriterFactory().makeSAMWriter(this.mergedHeader, true, System.out));
-        }
-        else if(1 == outputs.size()) { // one output file
-            this.writers.add(new SAMFileWriterFactory().makeSAMOrBAMWriter(this.mergedHeader, true, outputs.get(0)));
-        }
+        this.openWriters(outputs);
 
         // Default iterators
         this.recordsIters = new ArrayList<CloseableIterator<SAMRecord>>();
@@ -101,6 +121,49 @@ public class SAMRecordIO
 
     }
 
+    /*
+     * Opens the output files, with the merged header for one output, or
+     * the header of each input for one output per input.  Used again to
+     * start a new checkpoint segment once the previous writers are closed.
+     * */
+    public void openWriters(List<File> outputs)
+        throws Exception
+    {
+        int i;
+
+        this.writers = new ArrayList<SAMFileWriter>();
+        if(0 == outputs.size()) { // to STDOUT
+            this.writers.add(new SAMFileWriterFactory().makeSAMWriter(this.mergedHeader, true, System.out));
+        }
+        else if(1 == outputs.size()) { // one output file
+            this.writers.add(this.makeWriter(this.mergedHeader, outputs.get(0)));
+        }
+        else { // to multiple files
+            for(i=0;i<outputs.size();i++) {
+                this.writers.add(this.makeWriter(this.readersHeaders.get(i), outputs.get(i))); 
+            }
+        }
+    }
+
+    private SAMFileWriter makeWriter(SAMFileHeader header, File output)
+        throws Exception
+    {
+        if(CRAMFile.isCRAM(output)) {
+            return CRAMFile.makeWriter(this.samtools, header, output, this.reference, this.createIndex);
+        }
+        return new SAMFileWriterFactory().setCreateIndex(this.createIndex).makeSAMOrBAMWriter(header, true, output);
+    }
+
+    public void closeWriters()
+    {
+        int i;
+
+        for(i=0;i<writers.size();i++) {
+            writers.get(i).close();
+        }
+        writers.clear();
+    }
+
     private boolean checkHeaderAgainstReferenceDictionary(SAMFileHeader header,  SAMSequenceDictionary referenceDictionary)
     {
         int i;
@@ -189,18 +252,31 @@ public class SAMRecordIO
     }
 
     public void query(String sequenceName, int startPosition, int endPosition)
+        throws Exception
     {
         ListIterator<SAMFileReader> readersIter = null;
         ListIterator<CloseableIterator<SAMRecord>> recordsItersIter = null;
+        ListIterator<CRAMFile> cramFilesIter = null;
 
         readersIter = this.readers.listIterator();
         recordsItersIter = this.recordsIters.listIterator();
+        cramFilesIter = this.cramFiles.listIterator();
 
         // Close all
         while(readersIter.hasNext()) {
             SAMFileReader reader = readersIter.next();
             CloseableIterator<SAMRecord> recordIter = recordsItersIter.next();
-            if(reader.hasIndex()) {
+            CRAMFile cramFile = cramFilesIter.next();
+            if(null != cramFile) {
+                if(cramFile.hasIndex()) {
+                    recordIter.close();
+                    // a new samtools process for the region
+                    reader = cramFile.open(sequenceName + ":" + startPosition + "-" + endPosition);
+                    readersIter.set(reader);
+                    recordsItersIter.set(reader.iterator());
+                }
+            }
+            else if(reader.hasIndex()) {
                 recordIter.close();
                 recordsItersIter.set(reader.query(sequenceName, startPosition, endPosition, false));
             }
@@ -220,15 +296,19 @@ public class SAMRecordIO
     }
 
     public void closeAll()
+        throws Exception
     {
         int i;
 
         for(i=0;i<readers.size();i++) {
-            readers.get(i).close();
-        }
-        for(i=0;i<writers.size();i++) {
-            writers.get(i).close();
+            if(null != cramFiles.get(i)) {
+                cramFiles.get(i).close();
+            }
+            else {
+                readers.get(i).close();
+            }
         }
+        this.closeWriters();
         for(i=0;i<recordsIters.size();i++) {
             recordsIters.get(i).close();
         }
@@ -4,7 +4,6 @@
 package srma;
 
 import srma.Align;
-import srma.ThreadPoolLinkedList;
 import srma.AlignRecordComparator;
 import srma.SAMRecordIO;
 
@@ -17,7 +16,9 @@ import net.sf.picard.reference.*;
 //import java.lang.Runtime;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.lang.Math;
+import java.lang.reflect.Field;
 
 /* Documentation:
  * */
@@ -27,9 +28,9 @@ public class SRMA extends CommandLineProgram {
     public final String PROGRAM_VERSION="0.1.16";
     @Usage (programVersion=PROGRAM_VERSION)
         public final String USAGE = getStandardUsagePreamble() + "Short read micro re-aligner.";
-    @Option(shortName=StandardOptionDefinitions.INPUT_SHORT_NAME, doc="The input SAM or BAM file.")
+    @Option(shortName=StandardOptionDefinitions.INPUT_SHORT_NAME, doc="The input SAM, BAM or CRAM file.")
         public List<File> INPUT = new ArrayList<File>();
-    @Option(shortName=StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc="The output SAM or BAM file.", optional=true)
+    @Option(shortName=StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc="The output SAM, BAM or CRAM file.", optional=true)
         public List<File> OUTPUT = new ArrayList<File>();
     @Option(shortName=StandardOptionDefinitions.REFERENCE_SHORT_NAME, doc="The reference FASTA file.")
         public File REFERENCE=null;
@@ -57,33 +58,71 @@ public class SRMA extends CommandLineProgram {
         public boolean QUIET_STDERR=false;
     @Option(doc="The maximum number of nodes on the heap before re-alignment is ignored", optional=true)
         public int MAX_HEAP_SIZE = 8192;
+    @Option(doc="How to search the graph: HEAP considers every path but gives up on a read past MAX_HEAP_SIZE, BEAM keeps the best BEAM_WIDTH paths at each base and always re-aligns, DP scores every path within OFFSET of the original alignment", optional=true)
+        public Align.Engine ALIGNMENT_ENGINE = Align.Engine.HEAP;
+    @Option(doc="The number of paths kept at each base of the read with ALIGNMENT_ENGINE=BEAM", optional=true)
+        public int BEAM_WIDTH = 64;
+    @Option(doc="Start the search only from nodes that spell the first this many bases of the read (at most 15), unless none do; 0 to start from every node within the offset", optional=true)
+        public int SEED_KMER_LENGTH = 0;
+    @Option(doc="Keep the alignment of reads, without a search, when the graph does not branch within OFFSET of them and they do not repeat themselves within OFFSET; they are otherwise updated as if searched", optional=true)
+        public boolean SKIP_NON_BRANCHING = false;
     @Option(doc="The maximum number of SAM records in the queue before re-alignment", optional=true)
         public int MAX_QUEUE_SIZE = 65536;
     @Option(doc="Turn on/off aggressive graph pruning", optional=true)
         public boolean GRAPH_PRUNING = false;
     @Option(doc="The number of threads for parallel processing", optional=true)
         public int NUM_THREADS = 1;
+    @Option(doc="The file to which metrics are written as JSON lines", optional=true)
+        public File METRICS_FILE = null;
+    @Option(doc="The number of seconds between metrics snapshots", optional=true)
+        public int METRICS_INTERVAL = 10;
+    @Option(doc="The file to which the per-window re-alignment cost is written, most expensive first (BED-compatible)", optional=true)
+        public File SLOW_REGION_REPORT = null;
+    @Option(doc="The window size for SLOW_REGION_REPORT and BLACKLIST_OUTPUT", optional=true)
+        public int SLOW_REGION_BIN_SIZE = 1000;
+    @Option(doc="The file to which the most expensive windows are written in the RANGES format, for use with BLACKLIST", optional=true)
+        public File BLACKLIST_OUTPUT = null;
+    @Option(doc="The number of windows to write to BLACKLIST_OUTPUT", optional=true)
+        public int BLACKLIST_OUTPUT_SIZE = 100;
+    @Option(doc="The file containing ranges in which reads are not re-aligned", optional=true)
+        public File BLACKLIST = null;
+    @Option(doc="The fraction of reads within BLACKLIST to re-align anyway (chosen by read name)", optional=true)
+        public double BLACKLIST_FRACTION = 0.0;
+    @Option(doc="A file of input and output SAM/BAM files (tab-delimited, one pair per line) to re-align separately in one process; replaces INPUT and OUTPUT", optional=true)
+        public File MANIFEST = null;
+    @Option(doc="The number of MANIFEST entries to re-align concurrently; NUM_THREADS worker threads are shared between them", optional=true)
+        public int NUM_JOBS = 1;
+    @Option(doc="The number of contigs of the reference to keep in memory; 0 for one per concurrent MANIFEST entry (NUM_JOBS)", optional=true)
+        public int REFERENCE_CACHE_SIZE = 0;
+    @Option(doc="Apply the allele coverage filters within each sample, given by read group or by input file, rather than to the pooled reads", optional=true)
+        public Realigner.PartitionBy PARTITION_BY = Realigner.PartitionBy.NONE;
+    @Option(doc="The directory in which to keep checkpoints of the BAM output, so that an interrupted run can be resumed with RESUME", optional=true)
+        public File CHECKPOINT_DIRECTORY = null;
+    @Option(doc="The minimum number of seconds between checkpoints", optional=true)
+        public int CHECKPOINT_INTERVAL = 600;
+    @Option(doc="Resume from the last checkpoint in CHECKPOINT_DIRECTORY", optional=true)
+        public boolean RESUME = false;
+    @Option(doc="Write a BAM index (.bai) for each BAM output while the records are written", optional=true)
+        public boolean WRITE_INDEX = false;
+    @Option(doc="The samtools executable, used to read and write CRAM files", optional=true)
+        public String SAMTOOLS = "samtools";
 
     private long startTime;
     private long endTime;
 
-    private final static int SRMA_OUTPUT_CTR = 100;
-    private int maxOutputStringLength = 0;
-    private final static int SRMA_OFFSET_PROCESS = 100; // the number of extra offset bases until we should process the graph
-
-    ReferenceSequenceFile referenceSequenceFile = null; 
-    private ReferenceSequence referenceSequence = null;
+    private ReferenceProvider reference = null;
     private SAMSequenceDictionary referenceDictionary = null;
 
-    private ThreadPoolLinkedList toAddToGraphList = null;
-    private ThreadPoolLinkedList toAlignList = null;
-    private PriorityQueue<AlignRecord> toOutputQueue = null;
-
     private SAMRecordIO io = null;
+    private SRMAMetrics metrics = null;
+    private RegionCosts regionCosts = null;
+    private Blacklist blacklist = null;
+    private ExecutorService executor = null;
+    private ExecutorService sharedExecutor = null; // given to run, so not shut down
+    private Checkpoint checkpoint = null;
 
-    private Graph graph = null;
-    private AlleleCoverageCutoffs alleleCoverageCutoffs = null;
-    private int InsertSizeRangeLow, InsertSizeRangeHigh;
+    private Realigner realigner = null;
+    private Realigner.Session session = null;
 
     // for RANGES
     // for inputting within RANGES
@@ -91,8 +130,6 @@ public class SRMA extends CommandLineProgram {
     private Iterator<Range> inputRangesIterator = null;
     // for outputting within RANGES
     private Ranges outputRanges = null;
-    private Iterator<Range> outputRangesIterator = null;
-    private Range outputRange = null;
 
     public static void main(final String[] args) {
         new SRMA().instanceMain(args);
@@ -110,611 +147,455 @@ public class SRMA extends CommandLineProgram {
      * */
     protected int doWork() 
     {
-        int ctr=0;
-        AlignRecord rec = null;
-
         try { 
-            this.startTime = System.nanoTime();
-
-            if(1 < this.NUM_THREADS) {
-                System.err.println("** Warning: option NUM_THREADS currently may not increase performance significantly. **");
-                System.err.println("**  Try running multiple processes with RANGE if the speed does not increase.      **");
+            if(REFERENCE_CACHE_SIZE < 0) {
+                throw new Exception("REFERENCE_CACHE_SIZE must be non-negative.");
             }
+            this.run(new ReferenceProvider(REFERENCE, (0 == REFERENCE_CACHE_SIZE) ? Math.max(1, NUM_JOBS) : REFERENCE_CACHE_SIZE));
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("Please report bugs to srma-help@lists.sourceforge.net");
+            System.exit(1);
+        }
 
-            IoUtil.assertFileIsReadable(REFERENCE);
+        // this is annoying
+        QUIET = true;
 
-            if(0 == this.OUTPUT.size() && !QUIET) {
-                throw new Exception("Please use option 'QUIET' when outputting to stdout.");
-            }
+        return 0;
+    }
 
-            // Get references
-            this.referenceSequenceFile = new IndexedFastaSequenceFile(REFERENCE);
-            if(!this.referenceSequenceFile.isIndexed()) {
-                throw new Exception("Reference sequence file was not indexed.");
-            }
-            this.referenceDictionary = this.referenceSequenceFile.getSequenceDictionary();
-            if(null == this.referenceDictionary) {
-                throw new Exception("Could not find FASTA dictionary file.");
-            }
+    /*
+     * Runs SRMA against the given reference, which may be shared with other
+     * runs.  Errors are thrown rather than exiting.
+     * */
+    public void run(ReferenceProvider reference)
+        throws Exception
+    {
+        this.run(reference, null);
+    }
+
+    /*
+     * As above, running the re-alignment tasks on the given worker threads,
+     * which may be shared with other runs and are not shut down, or on its
+     * own threads if null.
+     * */
+    public void run(ReferenceProvider reference, ExecutorService executor)
+        throws Exception
+    {
+        this.executor = this.sharedExecutor = executor;
+        this.startTime = System.nanoTime();
+
+        if(1 < this.NUM_THREADS && null == MANIFEST) {
+            System.err.println("** Warning: option NUM_THREADS currently may not increase performance significantly. **");
+            System.err.println("**  Try running multiple processes with RANGE if the speed does not increase.      **");
+        }
 
-            // Get ranges
-            if(null != RANGES && null != RANGE) {
-                throw new Exception("RANGES and RANGE were both specified.\n");
+        // Get references
+        this.reference = reference;
+        this.referenceDictionary = this.reference.getSequenceDictionary();
+
+        try {
+            // init
+            if(null != METRICS_FILE) {
+                this.metrics = new SRMAMetrics();
+                this.metrics.start(METRICS_FILE, METRICS_INTERVAL);
             }
-            else if(null == RANGES && null == RANGE) {
-                this.inputRanges = new Ranges(this.referenceDictionary);
-                this.outputRanges = new Ranges(this.referenceDictionary);
-                this.io = new SAMRecordIO(INPUT, OUTPUT, PROGRAM_VERSION, false, this.referenceDictionary);
+            if(null != SLOW_REGION_REPORT || null != BLACKLIST_OUTPUT) {
+                this.regionCosts = new RegionCosts(this.referenceDictionary, SLOW_REGION_BIN_SIZE);
             }
-            else {
-                if(null != RANGES) {
-                    IoUtil.assertFileIsReadable(RANGES);
-                    this.inputRanges = new Ranges(RANGES, this.referenceDictionary, OFFSET);
-                    this.outputRanges = new Ranges(RANGES, this.referenceDictionary, 0);
-                }
-                else {
-                    this.inputRanges = new Ranges(RANGE, this.referenceDictionary, OFFSET);
-                    this.outputRanges = new Ranges(RANGE, this.referenceDictionary, 0);
-                }
-                this.io = new SAMRecordIO(INPUT, OUTPUT, PROGRAM_VERSION, true, this.referenceDictionary);
+            if(null != BLACKLIST) {
+                IoUtil.assertFileIsReadable(BLACKLIST);
+                this.blacklist = new Blacklist(BLACKLIST, this.referenceDictionary, BLACKLIST_FRACTION);
             }
 
-            this.inputRangesIterator = this.inputRanges.iterator();
-            this.outputRangesIterator = this.outputRanges.iterator();
-            if(!this.inputRangesIterator.hasNext()) {
-                return 0;
+            if(null != MANIFEST) {
+                this.processManifest();
             }
-            this.outputRange = this.outputRangesIterator.next();
-
-            // init
-            this.alleleCoverageCutoffs = new AlleleCoverageCutoffs(MINIMUM_ALLELE_COVERAGE, MINIMUM_ALLELE_PROBABILITY, QUIET_STDERR);
-            this.toOutputQueue = new PriorityQueue<AlignRecord>(40, new AlignRecordComparator()); 
-            this.InsertSizeRangeSet();
-
-            while(this.inputRangesIterator.hasNext()) {
-                Range inputRange = this.inputRangesIterator.next();
-
-                int prevReferenceIndex=-1;
-                int prevAlignmentStart=-1;
-
-                this.toAddToGraphList = new ThreadPoolLinkedList();
-                this.toAlignList = new ThreadPoolLinkedList();
-                this.graph = new Graph();
-                this.io.query(this.referenceDictionary.getSequence(inputRange.referenceIndex).getSequenceName(),
-                        inputRange.startPosition, 
-                        inputRange.endPosition);
-
-                // Get first record
-                if(null == rec) {
-                    rec = this.getNextAlignRecord();
+            else {
+                try {
+                    this.process();
+                } finally {
+                    this.closeIO();
                 }
-
-                // skip this range
-                if(null != rec 
-                        && !rec.record.getReadUnmappedFlag() // not unmapped
-                        && rec.record.getReferenceIndex() != inputRange.referenceIndex) {
-                    continue;
+                if(null != this.checkpoint) {
+                    this.checkpoint.finish();
                 }
+            }
 
-                // TODO: could retrieve just the specified bases
-                if(null == this.referenceSequence || inputRange.referenceIndex != this.referenceSequence.getContigIndex()) {
-                    this.referenceSequence = this.referenceSequenceFile.getSequence(this.referenceDictionary.getSequence(inputRange.referenceIndex).getSequenceName());
-                    if(null == this.referenceSequence) {
-                        throw new Exception("Premature EOF in the reference sequence");
-                    }
-                    else if(this.referenceSequence.getContigIndex() != inputRange.referenceIndex) {
-                        throw new Exception("Could not find the reference sequence");
-                    }
+            if(null != this.regionCosts) {
+                if(null != SLOW_REGION_REPORT) {
+                    this.regionCosts.writeReport(SLOW_REGION_REPORT);
                 }
-               
-                if(null != rec) {
-                    // do an initial prune
-                    this.graph.prune(rec.record.getReferenceIndex(), rec.record.getAlignmentStart(), 0, this.GRAPH_PRUNING);
+                if(null != BLACKLIST_OUTPUT) {
+                    this.regionCosts.writeBlacklist(BLACKLIST_OUTPUT, BLACKLIST_OUTPUT_SIZE);
                 }
-
-                while(null != rec) {
-                    if(rec.record.getReadUnmappedFlag() || rec.record.getNotPrimaryAlignmentFlag()) { 
-                        // TODO
-                        // Print this out somehow in some order somewhere
-                    }
-                    else if(rec.record.getMappingQuality() < MIN_MAPQ) {
-                        // TODO
-                        // Print this out somehow in some order somewhere
-                    }
-                    else {
-                        int curReferenceIndex = rec.record.getReferenceIndex();
-                        int curAlignmentStart = rec.record.getAlignmentStart();
-
-                        // Make sure that it is sorted
-                        if(rec.record.getReferenceIndex() < prevReferenceIndex 
-                                || (rec.record.getReferenceIndex() == prevReferenceIndex 
-                                    && rec.record.getAlignmentStart() < prevAlignmentStart)) 
-                        {
-                            throw new Exception("SAM/BAM file is not co-ordinate sorted.");
-                        }
-
-                        // check if we should flush the previous records
-                        if(prevReferenceIndex != curReferenceIndex
-                                || prevAlignmentStart + this.OFFSET + this.SRMA_OFFSET_PROCESS < curAlignmentStart) 
-                        {
-                            // process graph 
-                            this.processToAddToGraphList();
-
-                            // process the current queue
-                            ctr = this.processToAlignList(ctr, true);
-
-                            // prune the graph
-                            this.graph.prune(curReferenceIndex,
-                                    curAlignmentStart,
-                                    this.OFFSET,
-                                    this.GRAPH_PRUNING);
-                        }
-
-                        prevReferenceIndex = curReferenceIndex;
-                        prevAlignmentStart = curAlignmentStart;
-                        
-                        // Add the current record to the graph list
-                        this.toAddToGraphList.add(rec);
-
-                        // process graph 
-                        if(this.MAX_QUEUE_SIZE <= this.toAddToGraphList.size()) {
-                            this.processToAddToGraphList();
-                        }
-
-                        // align
-                        if(this.MAX_QUEUE_SIZE <= this.toAlignList.size()) {
-                            ctr = this.processToAlignList(ctr, false);
-                        }
-                    }
-
-                    // get new record
-                    rec = this.getNextAlignRecord();
-                }
-                // process graph 
-                this.processToAddToGraphList();
-                // align
-                ctr = this.processToAlignList(ctr, true);
-                // nullify
-                this.toAddToGraphList = null;
-                this.toAlignList = null;
-                this.graph = null;
             }
+        } finally {
+            this.close();
+        }
 
-            // Output any alignments left in the queue 
-            while(0 < this.toOutputQueue.size()) {
-                rec = this.toOutputQueue.poll();
-                this.io.output(rec);
+        this.endTime = System.nanoTime();
+
+        // to end it all
+        if(!QUIET_STDERR) {
+            System.err.println("");
+            System.err.println("SRMA complete");
+            // Memory
+            double totalMemory = (double)Runtime.getRuntime().totalMemory();
+            double totalMemoryLog2 = Math.log(totalMemory) / Math.log(2.0);
+            if(totalMemoryLog2 < 10) {
+                System.err.println("Total memory usage: " + (int)totalMemory + "B");
+            } 
+            else if(totalMemoryLog2 < 20) {
+                System.err.println("Total memory usage: " + (Math.round(100 * totalMemory / Math.pow(2, 10)) / 100) + "KB");
             }
-            // Close input/output files
-            this.io.closeAll();
-
-            this.endTime = System.nanoTime();
-
-            // to end it all
-            if(!QUIET_STDERR) {
-                System.err.println("");
-                System.err.println("SRMA complete");
-                // Memory
-                double totalMemory = (double)Runtime.getRuntime().totalMemory();
-                double totalMemoryLog2 = Math.log(totalMemory) / Math.log(2.0);
-                if(totalMemoryLog2 < 10) {
-                    System.err.println("Total memory usage: " + (int)totalMemory + "B");
-                } 
-                else if(totalMemoryLog2 < 20) {
-                    System.err.println("Total memory usage: " + (Math.round(100 * totalMemory / Math.pow(2, 10)) / 100) + "KB");
-                }
-                else {
-                    System.err.println("Total memory usage: " + (Math.round(100 * totalMemory / Math.pow(2, 20)) / 100) + "MB");
-                }
-                // Run time
-                long seconds = (this.endTime - this.startTime) / 1000000000;
-                long hours = seconds / 3600; seconds -= hours * 3600; 
-                long minutes = seconds / 60; seconds -= minutes* 60; 
-                System.err.println("Total execution time: " + hours + "h : " + minutes + "m : " + seconds + "s");
+            else {
+                System.err.println("Total memory usage: " + (Math.round(100 * totalMemory / Math.pow(2, 20)) / 100) + "MB");
             }
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.err.println("Please report bugs to srma-help@lists.sourceforge.net");
-            System.exit(1);
+            // Run time
+            long seconds = (this.endTime - this.startTime) / 1000000000;
+            long hours = seconds / 3600; seconds -= hours * 3600; 
+            long minutes = seconds / 60; seconds -= minutes* 60; 
+            System.err.println("Total execution time: " + hours + "h : " + minutes + "m : " + seconds + "s");
         }
-
-        // this is annoying
-        QUIET = true;
-
-        return 0;
     }
 
-    private AlignRecord getNextAlignRecord()
+    /*
+     * Re-aligns INPUT to OUTPUT.
+     * */
+    private void process()
         throws Exception
     {
-        if(this.io.hasNextAlignRecord()) {
-            // TODO if we have only a subsequence of a contig, we need to check bounds
-            return this.io.getNextAlignRecord();
+        AlignRecord rec = null;
+        List<File> outputs = OUTPUT;
+
+        if(0 == this.OUTPUT.size() && !QUIET) {
+            throw new Exception("Please use option 'QUIET' when outputting to stdout.");
         }
-        else {
-            return null;
+
+        if(null != CHECKPOINT_DIRECTORY) {
+            this.checkpoint = new Checkpoint(CHECKPOINT_DIRECTORY, OUTPUT, CHECKPOINT_INTERVAL, RESUME, WRITE_INDEX);
+            if(this.checkpoint.isComplete()) { // only the concatenation remains
+                return;
+            }
+            outputs = this.checkpoint.getSegmentOutputs();
+        }
+        else if(RESUME) {
+            throw new Exception("RESUME requires CHECKPOINT_DIRECTORY.");
         }
-    }
 
-    private void outputProgress(SAMRecord rec, int ctr)
-    {
-        if(QUIET_STDERR) {
-            return;
+        // Get ranges
+        if(null != RANGES && null != RANGE) {
+            throw new Exception("RANGES and RANGE were both specified.\n");
+        }
+        else if(null == RANGES && null == RANGE) {
+            this.inputRanges = new Ranges(this.referenceDictionary);
+            this.outputRanges = new Ranges(this.referenceDictionary);
+            this.io = new SAMRecordIO(INPUT, outputs, PROGRAM_VERSION, false, this.referenceDictionary, WRITE_INDEX, REFERENCE, SAMTOOLS);
         }
         else {
-            // TODO: enforce column width ?
-            int i;
-            String outputString = new String("Records processsed: " + ctr + " (last " + rec.getReferenceName() + ":" + rec.getAlignmentStart() + "-" + rec.getAlignmentEnd() + ")");
-            int outputStringLength = outputString.length();
-            if(this.maxOutputStringLength < outputStringLength) {
-                this.maxOutputStringLength = outputStringLength;
+            if(null != RANGES) {
+                IoUtil.assertFileIsReadable(RANGES);
+                this.inputRanges = new Ranges(RANGES, this.referenceDictionary, OFFSET);
+                this.outputRanges = new Ranges(RANGES, this.referenceDictionary, 0);
             }
-            System.err.print("\r" + outputString);
-            for(i=outputStringLength;i<this.maxOutputStringLength;i++) {
-                System.err.print(" ");
+            else {
+                this.inputRanges = new Ranges(RANGE, this.referenceDictionary, OFFSET);
+                this.outputRanges = new Ranges(RANGE, this.referenceDictionary, 0);
             }
+            this.io = new SAMRecordIO(INPUT, outputs, PROGRAM_VERSION, true, this.referenceDictionary, WRITE_INDEX, REFERENCE, SAMTOOLS);
         }
-    }
 
-    private void processToAddToGraphList()
-        throws Exception
-    {
-        // Process alignments
-        if(0 < this.toAddToGraphList.size()) { 
-
-            int i, size;
-            LinkedList<Thread> threads = null;
-            LinkedList<LinkedList<AlignRecord>> toAddToGraphThreadLists = null;
-            LinkedList<LinkedList<AlignRecord>> toAlignThreadLists = null;
-
-
-            if(0 == this.toAlignList.size() 
-                    && this.graph.contig != this.toAddToGraphList.getFirst().record.getReferenceIndex()+1) 
-            {
-                // Move to a new contig
-                this.graph.prune(this.toAddToGraphList.getFirst().record.getReferenceIndex(),
-                        this.toAddToGraphList.getFirst().record.getAlignmentStart(),
-                        0,
-                        this.GRAPH_PRUNING);
-            }
+        this.inputRangesIterator = this.inputRanges.iterator();
+        if(!this.inputRangesIterator.hasNext()) {
+            return;
+        }
 
-            // Get the records for the threads 
-            toAddToGraphThreadLists = toAddToGraphList.getThreadLists(this.NUM_THREADS, this.graph.contig);
-
-            // Create threads
-            threads = new LinkedList<Thread>();
-            toAlignThreadLists = new LinkedList<LinkedList<AlignRecord>>();
-            for(i=0;i<this.NUM_THREADS;i++) {
-                toAlignThreadLists.add(new LinkedList<AlignRecord>());
-                threads.add(new GraphThread(i, 
-                            toAddToGraphThreadLists.get(i).listIterator(),
-                            toAlignThreadLists.get(i)));
+        this.realigner = new Realigner.Builder()
+            .offset(OFFSET)
+            .minMapq(MIN_MAPQ)
+            .minimumAlleleProbability(MINIMUM_ALLELE_PROBABILITY)
+            .minimumAlleleCoverage(MINIMUM_ALLELE_COVERAGE)
+            .maximumTotalCoverage(MAXIMUM_TOTAL_COVERAGE)
+            .correctBases(CORRECT_BASES)
+            .useSequenceQualities(USE_SEQUENCE_QUALITIES)
+            .insertSizeRange(INSERT_SIZE_RANGE)
+            .maxHeapSize(MAX_HEAP_SIZE)
+            .alignmentEngine(ALIGNMENT_ENGINE)
+            .beamWidth(BEAM_WIDTH)
+            .seedLength(SEED_KMER_LENGTH)
+            .skipNonBranching(SKIP_NON_BRANCHING)
+            .maxQueueSize(MAX_QUEUE_SIZE)
+            .graphPruning(GRAPH_PRUNING)
+            .numThreads(NUM_THREADS)
+            .quiet(QUIET_STDERR)
+            .programRecord(this.io.programRecord)
+            .metrics(this.metrics)
+            .regionCosts(this.regionCosts)
+            .blacklist(this.blacklist)
+            .executor(this.executor)
+            .partitionBy(PARTITION_BY)
+            .build();
+        this.session = this.realigner.newSession(this.reference, this.outputRanges);
+
+        while(this.inputRangesIterator.hasNext()) {
+            Range inputRange = this.inputRangesIterator.next();
+            int startPosition = inputRange.startPosition;
+
+            if(null != this.checkpoint) {
+                // skip what was written before the checkpoint
+                if(this.checkpoint.isBeforeResume(inputRange.referenceIndex, inputRange.endPosition)) {
+                    continue;
+                }
+                else if(this.checkpoint.isBeforeResume(inputRange.referenceIndex, startPosition)) {
+                    startPosition = this.checkpoint.getResumePosition();
+                }
             }
 
-            // Start
-            for(i=0;i<this.NUM_THREADS;i++) {
-                threads.get(i).start();
-            }
+            this.io.query(this.referenceDictionary.getSequence(inputRange.referenceIndex).getSequenceName(),
+                    startPosition, 
+                    inputRange.endPosition);
 
-            // Join
-            for(i=0;i<this.NUM_THREADS;i++) {
-                threads.get(i).join();
+            // Get first record
+            if(null == rec) {
+                rec = this.getNextAlignRecord();
             }
 
-            // Copy records to be re-aligned
-            List<ListIterator<AlignRecord>> iters = new LinkedList<ListIterator<AlignRecord>>();
-            for(i=size=0;i<this.NUM_THREADS;i++) {
-                size += toAlignThreadLists.get(i).size();
-                iters.add(toAlignThreadLists.get(i).listIterator());
+            // skip this range
+            if(null != rec 
+                    && !rec.record.getReadUnmappedFlag() // not unmapped
+                    && rec.record.getReferenceIndex() != inputRange.referenceIndex) {
+                continue;
             }
 
-            for(i=0;0<size;i++) {
-                if(this.NUM_THREADS <= i) {
-                    i=0;
-                }
-                if(iters.get(i).hasNext()) {
-                    AlignRecord rec = iters.get(i).next();
-
-                    if(null != rec.node 
-                            && this.graph.contig == rec.record.getReferenceIndex()+1
-                            && this.recordAlignmentStartContained(rec.record))
-                    {
-                        if(this.withinInsertSizeRange(rec.record)) {
-                            // align then output
-                            this.toAlignList.add(rec);
-                        }
-                        else {
-                            // just otuput
-                            this.toOutputQueue.add(rec);
-                        }
-                    }
-                    size--;
+            while(null != rec) {
+                if(null != this.checkpoint 
+                        && this.checkpoint.isDue() 
+                        && this.session.isWindowBoundary(rec.record)) {
+                    this.writeCheckpoint(rec.record);
                 }
+                this.session.add(rec);
+                this.output();
+
+                // get new record
+                rec = this.getNextAlignRecord();
             }
+            this.session.flush();
+            this.output();
         }
+
+        // Output any alignments left in the queue 
+        this.session.finish();
+        this.output();
     }
 
-    private int processToAlignList(int ctr, boolean flush)
+    /*
+     * Re-aligns each MANIFEST entry with its own graph, running NUM_JOBS
+     * entries at a time, largest first.  The reference, worker threads,
+     * metrics and blacklist are shared.
+     * */
+    private void processManifest()
         throws Exception
     {
-        SAMRecord lastSAMRecord = null;
-
-        // Process available alignments
-        if(0 < this.toAlignList.size()) { 
-
-            // Check if we are in bounds 
-            if(flush || 
-                    this.toAlignList.getFirst().record.getAlignmentEnd() + OFFSET < this.toAlignList.getLast().record.getAlignmentStart()) 
-            { 
-                int i, size;
-                LinkedList<Thread> threads = null;
-                LinkedList<LinkedList<AlignRecord>> toAlignThreadLists = null;
-
-                // HERE
-                /*
-                   for(i=this.graph.position_start;i<=this.graph.position_end;i++) {
-                   System.err.println(i + "\t"
-                   + this.graph.getCoverage(i));
-                   }
-                   */
-
-                // Get thread data
-                if(flush) {
-                    toAlignThreadLists = this.toAlignList.getThreadLists(this.NUM_THREADS, this.graph.contig);
-                }
-                else {
-                    toAlignThreadLists = this.toAlignList.getAlignRecordThreadLists(this.NUM_THREADS, 
-                            this.graph.contig,
-                            this.toAlignList.getLast().record.getAlignmentStart() - this.OFFSET);
-                }
-
-                // Create threads
-                threads = new LinkedList<Thread>();
-                for(i=0;i<this.NUM_THREADS;i++) {
-                    threads.add(new AlignThread(i, 
-                                this.io.programRecord, 
-                                toAlignThreadLists.get(i).listIterator()));
-                }
-
-                // Start
-                for(i=0;i<this.NUM_THREADS;i++) {
-                    threads.get(i).start();
-                }
+        List<File[]> entries = new ArrayList<File[]>();
+        final Map<File[], Long> sizes = new HashMap<File[], Long>();
+        Set<Integer> referenceIndices = null;
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        List<Future<Object>> futures = null;
+        ExecutorService jobs = null;
+        BufferedReader br = null;
+        String line = null;
+        Exception exception = null;
+        int i;
+
+        if(0 < INPUT.size() || 0 < OUTPUT.size()) {
+            throw new Exception("INPUT and OUTPUT cannot be used with MANIFEST.");
+        }
+        else if(null != CHECKPOINT_DIRECTORY) {
+            throw new Exception("CHECKPOINT_DIRECTORY cannot be used with MANIFEST.");
+        }
+        else if(NUM_JOBS <= 0) {
+            throw new Exception("NUM_JOBS must be greater than zero.");
+        }
 
-                // Join
-                for(i=0;i<this.NUM_THREADS;i++) {
-                    threads.get(i).join();
-                }
+        // Read the manifest
+        IoUtil.assertFileIsReadable(MANIFEST);
+        br = new BufferedReader(new FileReader(MANIFEST));
+        while(null != (line = br.readLine())) {
+            String tokens[] = null;
+            line = line.trim();
+            if(0 == line.length() || line.startsWith("#")) {
+                continue;
+            }
+            tokens = line.split("\t");
+            if(2 != tokens.length) {
+                throw new Exception("Expected an input and output file on each line of MANIFEST: " + line);
+            }
+            entries.add(new File[]{new File(tokens[0]), new File(tokens[1])});
+        }
+        br.close();
+
+        // Estimate the size of each entry from its index
+        if(null != RANGES || null != RANGE) {
+            Ranges ranges = (null != RANGES) ? new Ranges(RANGES, this.referenceDictionary, 0) : new Ranges(RANGE, this.referenceDictionary, 0);
+            Iterator<Range> iter = ranges.iterator();
+            referenceIndices = new HashSet<Integer>();
+            while(iter.hasNext()) {
+                referenceIndices.add(iter.next().referenceIndex);
+            }
+        }
+        for(i=0;i<entries.size();i++) {
+            IoUtil.assertFileIsReadable(entries.get(i)[0]);
+            sizes.put(entries.get(i), BAMIndexSizeEstimator.estimate(entries.get(i)[0], referenceIndices));
+        }
+        // Largest first, so that a large entry does not start last
+        Collections.sort(entries, new Comparator<File[]>() {
+            public int compare(File[] a, File[] b) {
+                return sizes.get(b).compareTo(sizes.get(a));
+            }
+        });
 
-                // Output the alignments
-                List<ListIterator<AlignRecord>> iters = new LinkedList<ListIterator<AlignRecord>>();
-                for(i=size=0;i<this.NUM_THREADS;i++) {
-                    size += toAlignThreadLists.get(i).size();
-                    iters.add(toAlignThreadLists.get(i).listIterator());
-                }
-                for(i=0;0<size;i++) {
-                    if(this.NUM_THREADS <= i) {
-                        i=0;
+        if(1 < NUM_THREADS && null == this.executor) {
+            // work-stealing, so that idle threads take the chunks of other jobs
+            this.executor = Executors.newWorkStealingPool(NUM_THREADS);
+        }
+        for(i=0;i<entries.size();i++) {
+            final File entry[] = entries.get(i);
+            final SRMA job = this.copy(entry[0], entry[1]);
+            tasks.add(new Callable<Object>() {
+                public Object call() throws Exception {
+                    try {
+                        job.process();
+                    } finally {
+                        job.closeIO();
                     }
-                    if(iters.get(i).hasNext()) {
-                        AlignRecord rec = iters.get(i).next();
-                        lastSAMRecord = rec.record;
-                        this.toOutputQueue.add(rec);
-                        ctr++;
-
-                        size--;
+                    if(!QUIET_STDERR) {
+                        System.err.println("Finished " + entry[0].getPath());
                     }
+                    return null;
                 }
+            });
+        }
 
-                // Prune the graph
-                if(null != lastSAMRecord) {
-                    this.outputProgress(lastSAMRecord, ctr);
-                    if(0 < toAlignList.size()) {
-                        this.graph.prune(toAlignList.getFirst().record.getReferenceIndex(), toAlignList.getFirst().record.getAlignmentStart(), this.OFFSET, this.GRAPH_PRUNING);
-                    }
-                    else {
-                        this.graph.prune(lastSAMRecord.getReferenceIndex(), lastSAMRecord.getAlignmentStart(), this.OFFSET, this.GRAPH_PRUNING);
-                    }
+        // Run
+        jobs = Executors.newFixedThreadPool(NUM_JOBS);
+        try {
+            futures = jobs.invokeAll(tasks);
+        } finally {
+            jobs.shutdown();
+        }
+        for(i=0;i<futures.size();i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                System.err.println("Failed " + entries.get(i)[0].getPath() + ": " + e.getCause());
+                if(null == exception) {
+                    exception = (e.getCause() instanceof Exception) ? (Exception)e.getCause() : new Exception(e.getCause());
                 }
             }
         }
-        if(flush && null != lastSAMRecord) {
-            this.outputProgress(lastSAMRecord, ctr);
-        }
-        lastSAMRecord = null;
-
-        // Output alignments
-        while(0 < this.toOutputQueue.size()) {
-            AlignRecord rec = this.toOutputQueue.peek();
-            // alignment could have moved (+OFFSET), with another moving (-OFFSET) 
-            if(rec.record.getReferenceIndex() + 1 != graph.contig || // different contig
-                    rec.record.getAlignmentStart() + 2*OFFSET + 50 < graph.position_start) { // other alignments will not be less than, but add in 50bp just to be safe
-                this.io.output(this.toOutputQueue.poll());
-                    }
-            else { // other alignments could be less than
-                break;
-            }
+        if(null != exception) {
+            throw exception;
         }
-
-        return ctr;
     }
 
-    private boolean recordAlignmentStartContained(SAMRecord rec) 
+    /*
+     * Returns an SRMA with the same options, for the given input and output,
+     * sharing this SRMA's reference, worker threads, metrics and blacklist.
+     * */
+    private SRMA copy(File input, File output)
+        throws Exception
     {
-        int recReferenceIndex = -1; 
-        int recAlignmentStart = -1;
+        SRMA srma = new SRMA();
+        Field fields[] = SRMA.class.getFields();
+        int i;
 
-        if(null == this.outputRange) { // no more ranges
-            return false;
-        }
-
-        recReferenceIndex = rec.getReferenceIndex();
-        recAlignmentStart = rec.getAlignmentStart();
-        while(this.outputRange.referenceIndex < recReferenceIndex 
-                || (this.outputRange.referenceIndex == recReferenceIndex 
-                    && this.outputRange.endPosition < recAlignmentStart)) 
-        { // find a new range
-            if(!this.outputRangesIterator.hasNext()) { // no more ranges
-                this.outputRange = null;
-                return false;
+        for(i=0;i<fields.length;i++) {
+            if(fields[i].isAnnotationPresent(Option.class)) {
+                fields[i].set(srma, fields[i].get(this));
             }
-            this.outputRange = this.outputRangesIterator.next();
-        }
-        if(recReferenceIndex < this.outputRange.referenceIndex 
-                || (recReferenceIndex == this.outputRange.referenceIndex
-                    && recAlignmentStart < this.outputRange.startPosition)) { // before range
-            // not within range
-            return false;
-                    }
-        else {
-            // must be within range
-            return true;
         }
+        srma.INPUT = new ArrayList<File>(Arrays.asList(input));
+        srma.OUTPUT = new ArrayList<File>(Arrays.asList(output));
+        srma.MANIFEST = null;
+        srma.QUIET_STDERR = true; // progress from concurrent entries would be interleaved
+
+        srma.reference = this.reference;
+        srma.referenceDictionary = this.referenceDictionary;
+        srma.metrics = this.metrics;
+        srma.regionCosts = this.regionCosts;
+        srma.blacklist = this.blacklist;
+        srma.executor = this.executor;
+
+        return srma;
     }
 
-    private void InsertSizeRangeSet() 
+    private AlignRecord getNextAlignRecord()
         throws Exception
     {
-        String low, high;
-        int colon;
-
-        if(null == INSERT_SIZE_RANGE) {
-            InsertSizeRangeLow = Integer.MIN_VALUE;
-            InsertSizeRangeHigh = Integer.MAX_VALUE;
-            return;
-        }
-
-        colon = INSERT_SIZE_RANGE.indexOf(":");
-        if(colon < 0 || INSERT_SIZE_RANGE.length() <= colon) {
-            throw new Exception("INSERT_SIZE_RANGE was improperly specified");
+        while(this.io.hasNextAlignRecord()) {
+            // TODO if we have only a subsequence of a contig, we need to check bounds
+            AlignRecord rec = this.io.getNextAlignRecord();
+            if(null != this.checkpoint 
+                    && this.checkpoint.isBeforeResume(rec.record.getReferenceIndex(), rec.record.getAlignmentStart())) {
+                continue; // written before the checkpoint
+            }
+            return rec;
         }
+        return null;
+    }
 
-        InsertSizeRangeLow = Integer.parseInt(INSERT_SIZE_RANGE.substring(0, colon));
-        InsertSizeRangeHigh = Integer.parseInt(INSERT_SIZE_RANGE.substring(colon+1));
-
-        if(InsertSizeRangeHigh < InsertSizeRangeLow) {
-            throw new Exception("INSERT_SIZE_RANGE was improperly specified");
-        }
+    /*
+     * Writes all records before the given record, which must be at a window
+     * boundary, and starts a new checkpoint segment.
+     * */
+    private void writeCheckpoint(SAMRecord next)
+        throws Exception
+    {
+        this.session.checkpoint();
+        this.output();
+        this.io.closeWriters();
+        this.checkpoint.commit(next.getReferenceIndex(), next.getAlignmentStart());
+        this.io.openWriters(this.checkpoint.getSegmentOutputs());
     }
 
-    private boolean withinInsertSizeRange(SAMRecord rec)
+    // Closes the input/output files, if open
+    private void closeIO()
+        throws Exception
     {
-        int isize;
-        if(null == this.INSERT_SIZE_RANGE) {
-            return true;
-        }
-        if(!rec.getReadPairedFlag()
-                || rec.getMateUnmappedFlag()) {
-            // not paired
-            // or only one end maps
-            return true;
-                }
-        // assumes: paired and both mapped
-        isize = rec.getInferredInsertSize();
-        if(rec.getFirstOfPairFlag()) { // first record, 5'
-            if(InsertSizeRangeLow <= isize && isize <= InsertSizeRangeHigh) {
-                return true;
-            }
-            else {
-                return false;
-            }
-        } 
-        else { // second record, 3'
-            if(InsertSizeRangeLow <= -isize && -isize <= InsertSizeRangeHigh) {
-                return true;
-            }
-            else {
-                return false;
-            }
+        if(null != this.io) {
+            this.io.closeAll();
+            this.io = null;
         }
     }
 
-    private class AlignThread extends Thread {
-
-        private int threadID;
-        private SAMProgramRecord programRecord;
-        private ListIterator<AlignRecord> iter;
-
-        public AlignThread(int threadID,
-                SAMProgramRecord programRecord,
-                ListIterator<AlignRecord> iter)
-        {
-            this.threadID = threadID;
-            this.programRecord = programRecord;
-            this.iter = iter;
+    // Closes the metrics and worker threads, if open
+    private void close()
+    {
+        if(null != this.executor && this.executor != this.sharedExecutor) {
+            this.executor.shutdown();
         }
-
-        public void run() 
-        {
-            try {
-
-                // Align each record
-                while(iter.hasNext()) {
-                    AlignRecord curAlignRecord = iter.next();
-                    SAMRecord curSAMRecord = curAlignRecord.record;
-                    Node curNode = curAlignRecord.node;
-
-                    // Align - this will overwrite/change the alignment
-                    Align.align(graph,
-                            curSAMRecord,
-                            curNode,
-                            referenceSequence,
-                            this.programRecord,
-                            OFFSET,
-                            alleleCoverageCutoffs,
-                            CORRECT_BASES,
-                            USE_SEQUENCE_QUALITIES,
-                            MAXIMUM_TOTAL_COVERAGE,
-                            MAX_HEAP_SIZE);
-                }
-
-            } catch (Exception e) {
-                e.printStackTrace();
-                System.err.println("Please report bugs to srma-help@lists.sourceforge.net");
-                System.exit(1);
-            }
+        this.executor = this.sharedExecutor = null;
+        if(null != this.metrics) {
+            this.metrics.close();
+            this.metrics = null;
         }
     }
 
-    private class GraphThread extends Thread {
-        private int threadID;
-        private ListIterator<AlignRecord> iterAlignRecords;
-        List<AlignRecord> toAlignThreadList;
-
-        public GraphThread(int threadID,
-                ListIterator<AlignRecord> iterAlignRecords,
-                List<AlignRecord> toAlignThreadList)
-        {
-            this.threadID = threadID;
-            this.iterAlignRecords = iterAlignRecords;
-            this.toAlignThreadList = toAlignThreadList;
-        }
-
-        public void run()
-        {
-            while(this.iterAlignRecords.hasNext()) {
-                // Get record
-                AlignRecord rec = this.iterAlignRecords.next();
-
-                Node recNode = null;
-
-                if(graph.contig != rec.record.getReferenceIndex()+1) {
-                    break;
-                }
-
-                // Add to the graph 
-                try {
-                    recNode = graph.addSAMRecord(rec.record, referenceSequence);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    System.err.println("Please report bugs to srma-help@lists.sourceforge.net");
-                    System.exit(1);
-                }
+    // Writes the re-aligned records that are ready
+    private void output()
+        throws Exception
+    {
+        AlignRecord rec = null;
 
-                // Keep track of start node
-                rec.setNode(recNode);
-                toAlignThreadList.add(rec);
+        while(null != (rec = this.session.poll())) {
+            if(null == this.metrics) {
+                this.io.output(rec);
+            }
+            else {
+                long startTime = System.nanoTime();
+                this.io.output(rec);
+                this.metrics.addStage(SRMAMetrics.STAGE_OUTPUT, 1, System.nanoTime() - startTime);
             }
         }
     }
@@ -0,0 +1,241 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/*
+ * Low-overhead counters, gauges and histograms for the re-alignment stages.
+ * Counters are updated by the worker threads; gauges are set by the thread
+ * driving SRMA.  A snapshot is written as one JSON object per line every
+ * interval, and once more when closed.
+ * */
+public class SRMAMetrics {
+
+    public static final int STAGE_GRAPH     = 0; // processToAddToGraphList
+    public static final int STAGE_ALIGN     = 1; // processToAlignList
+    public static final int STAGE_OUTPUT    = 2; // io.output
+    public static final int NUM_STAGES      = 3;
+    private static final String STAGE_NAMES[] = {"graph", "align", "output"};
+
+    private AtomicLongArray stageRecords = new AtomicLongArray(NUM_STAGES);
+    private AtomicLongArray stageNanos = new AtomicLongArray(NUM_STAGES);
+    private AtomicLongArray outcomes = new AtomicLongArray(AlignStatistics.NUM_OUTCOMES);
+    private AtomicLong changed = new AtomicLong(0);
+    private AtomicLong certified = new AtomicLong(0);
+    private AtomicLong nonBranching = new AtomicLong(0);
+    private AtomicLong expansions = new AtomicLong(0);
+    private Histogram maxHeapSizes = new Histogram();
+    private Histogram graphNodes = new Histogram();
+    private Histogram graphWindowSizes = new Histogram();
+
+    // gauges
+    private volatile int graphWindowSize = 0;
+    private volatile int graphNumNodes = 0;
+    private volatile int outputQueueSize = 0;
+
+    private PrintStream out = null;
+    private Timer timer = null;
+    private long startTime;
+    private long lastTime;
+    private long lastStageRecords[] = new long[NUM_STAGES];
+
+    public SRMAMetrics()
+    {
+        this.startTime = this.lastTime = System.nanoTime();
+    }
+
+    /*
+     * Starts writing a snapshot to the given file every interval.
+     * @param file The output file.
+     * @param intervalSeconds The number of seconds between snapshots.
+     * */
+    public synchronized void start(File file, int intervalSeconds)
+        throws Exception
+    {
+        this.out = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)));
+        if(0 < intervalSeconds) {
+            this.timer = new Timer("srma-metrics", true);
+            this.timer.scheduleAtFixedRate(new TimerTask() {
+                public void run() {
+                    SRMAMetrics.this.dump();
+                }
+            }, 1000L * intervalSeconds, 1000L * intervalSeconds);
+        }
+    }
+
+    public synchronized void close()
+    {
+        if(null != this.timer) {
+            this.timer.cancel();
+            this.timer = null;
+        }
+        if(null != this.out) {
+            this.dump();
+            this.out.close();
+            this.out = null;
+        }
+    }
+
+    public void addStage(int stage, int numRecords, long nanos)
+    {
+        this.stageRecords.addAndGet(stage, numRecords);
+        this.stageNanos.addAndGet(stage, nanos);
+    }
+
+    public void addAlignment(AlignStatistics stats)
+    {
+        this.outcomes.incrementAndGet(stats.outcome);
+        this.expansions.addAndGet(stats.expansions);
+        this.maxHeapSizes.add(stats.maxHeapSize);
+        if(stats.changed) {
+            this.changed.incrementAndGet();
+        }
+        if(stats.certified) {
+            this.certified.incrementAndGet();
+        }
+    }
+
+    // Records kept where they are without a search, since the graph does not branch where they could move
+    public void addNonBranching(int numRecords)
+    {
+        this.nonBranching.addAndGet(numRecords);
+    }
+
+    public void setGraph(Graph graph)
+    {
+        this.graphWindowSize = graph.position_end - graph.position_start + 1;
+        this.graphNumNodes = graph.getNumNodes();
+        this.graphWindowSizes.add(this.graphWindowSize);
+        this.graphNodes.add(this.graphNumNodes);
+    }
+
+    public void setOutputQueueSize(int size)
+    {
+        this.outputQueueSize = size;
+    }
+
+    public long getOutcomeCount(int outcome)
+    {
+        return this.outcomes.get(outcome);
+    }
+
+    public long getChangedCount()
+    {
+        return this.changed.get();
+    }
+
+    // The number of reads whose original alignment was shown to be the best without a search
+    public long getCertifiedCount()
+    {
+        return this.certified.get();
+    }
+
+    public long getNonBranchingCount()
+    {
+        return this.nonBranching.get();
+    }
+
+    /*
+     * Writes a JSON snapshot.
+     * */
+    public synchronized void dump()
+    {
+        StringBuilder sb = new StringBuilder();
+        long now = System.nanoTime();
+        double elapsed = (now - this.startTime) / 1e9;
+        double interval = (now - this.lastTime) / 1e9;
+        int i;
+
+        if(null == this.out) {
+            return;
+        }
+
+        sb.append("{\"time_ms\":").append(System.currentTimeMillis());
+        sb.append(",\"elapsed_seconds\":").append(format(elapsed));
+        sb.append(",\"stages\":{");
+        for(i=0;i<NUM_STAGES;i++) {
+            long records = this.stageRecords.get(i);
+            if(0 < i) {
+                sb.append(",");
+            }
+            sb.append("\"").append(STAGE_NAMES[i]).append("\":{");
+            sb.append("\"records\":").append(records);
+            sb.append(",\"seconds\":").append(format(this.stageNanos.get(i) / 1e9));
+            sb.append(",\"records_per_second\":").append(format((0 < elapsed) ? (records / elapsed) : 0));
+            sb.append(",\"interval_records_per_second\":").append(format((0 < interval) ? ((records - this.lastStageRecords[i]) / interval) : 0));
+            sb.append("}");
+            this.lastStageRecords[i] = records;
+        }
+        sb.append("},\"outcomes\":{");
+        for(i=0;i<AlignStatistics.NUM_OUTCOMES;i++) {
+            if(0 < i) {
+                sb.append(",");
+            }
+            sb.append("\"").append(AlignStatistics.OUTCOME_NAMES[i]).append("\":").append(this.outcomes.get(i));
+        }
+        sb.append("},\"changed\":").append(this.changed.get());
+        sb.append(",\"certified\":").append(this.certified.get());
+        sb.append(",\"non_branching\":").append(this.nonBranching.get());
+        sb.append(",\"expansions\":").append(this.expansions.get());
+        sb.append(",\"graph_window_size\":").append(this.graphWindowSize);
+        sb.append(",\"graph_nodes\":").append(this.graphNumNodes);
+        sb.append(",\"output_queue_size\":").append(this.outputQueueSize);
+        sb.append(",\"max_heap_size_histogram\":");
+        this.maxHeapSizes.toJSON(sb);
+        sb.append(",\"graph_nodes_histogram\":");
+        this.graphNodes.toJSON(sb);
+        sb.append(",\"graph_window_size_histogram\":");
+        this.graphWindowSizes.toJSON(sb);
+        sb.append("}");
+
+        this.out.println(sb.toString());
+        this.out.flush();
+        this.lastTime = now;
+    }
+
+    private static String format(double d)
+    {
+        return String.format(Locale.ROOT, "%.3f", d);
+    }
+
+    /*
+     * A histogram with power-of-two buckets: bucket i counts values in [2^(i-1), 2^i).
+     * */
+    public static class Histogram {
+        private static final int NUM_BUCKETS = 33;
+        private AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+        private AtomicLong max = new AtomicLong(0);
+
+        public void add(int value)
+        {
+            long curMax;
+            this.buckets.incrementAndGet((value <= 0) ? 0 : (32 - Integer.numberOfLeadingZeros(value)));
+            while((curMax = this.max.get()) < value && !this.max.compareAndSet(curMax, value)) {
+                // retry
+            }
+        }
+
+        public void toJSON(StringBuilder sb)
+        {
+            int i;
+            boolean first = true;
+            sb.append("{\"max\":").append(this.max.get()).append(",\"buckets\":{");
+            for(i=0;i<NUM_BUCKETS;i++) {
+                long count = this.buckets.get(i);
+                if(0 < count) {
+                    if(!first) {
+                        sb.append(",");
+                    }
+                    // upper bound (exclusive) of the bucket
+                    sb.append("\"<").append((0 == i) ? 1 : (1L << i)).append("\":").append(count);
+                    first = false;
+                }
+            }
+            sb.append("}}");
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import net.sf.picard.cmdline.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Documentation:
+ * Runs SRMA jobs from a spool directory in one long-running JVM, so that the
+ * reference index and the compiled code are kept between jobs.  A job is a
+ * file named <name>.job holding SRMA options (KEY=VALUE, whitespace or line
+ * separated; lines starting with '#' are ignored).  REFERENCE defaults to
+ * the server's reference, and QUIET_STDERR to true.  While running, the job
+ * is renamed <name>.running; when finished it is renamed <name>.done or
+ * <name>.failed, with any messages in <name>.log.  Create the job file
+ * elsewhere and move it into the spool directory, so that it is never read
+ * half-written.  The re-alignment tasks of all jobs run on one pool of
+ * NUM_THREADS worker threads.  A job is only claimed when one of the
+ * NUM_WORKERS workers is free, so waiting jobs keep their .job name.  On
+ * start-up, jobs left .running by a server that stopped are run again, so
+ * only one server may use a spool directory.
+ * */
+
+public class SRMAServer extends CommandLineProgram {
+
+    public final String PROGRAM_VERSION="0.1.16";
+    @Usage (programVersion=PROGRAM_VERSION)
+        public final String USAGE = getStandardUsagePreamble() + "Runs SRMA jobs from a spool directory.";
+    @Option(doc="The spool directory.")
+        public File SPOOL_DIRECTORY=null;
+    @Option(shortName=StandardOptionDefinitions.REFERENCE_SHORT_NAME, doc="The reference FASTA file.")
+        public File REFERENCE=null;
+    @Option(doc="The number of jobs to run concurrently.", optional=true)
+        public int NUM_WORKERS=1;
+    @Option(doc="The number of re-alignment threads shared by all jobs; a job's NUM_THREADS is the number of its tasks per batch.", optional=true)
+        public int NUM_THREADS=Runtime.getRuntime().availableProcessors();
+    @Option(doc="The number of contigs to keep in memory.", optional=true)
+        public int REFERENCE_CACHE_SIZE=4;
+    @Option(doc="The number of milliseconds between scans of the spool directory.", optional=true)
+        public int POLL_INTERVAL=1000;
+
+    public static final String JOB_SUFFIX = ".job";
+    public static final String RUNNING_SUFFIX = ".running";
+    public static final String DONE_SUFFIX = ".done";
+    public static final String FAILED_SUFFIX = ".failed";
+    public static final String LOG_SUFFIX = ".log";
+
+    private ReferenceProvider reference = null;
+    private ExecutorService threads = null;
+    private Semaphore freeWorkers = null;
+
+    public static void main(final String[] args) {
+        new SRMAServer().instanceMain(args);
+    }
+
+    protected int doWork()
+    {
+        try {
+            ExecutorService workers = null;
+
+            if(!SPOOL_DIRECTORY.isDirectory()) {
+                throw new Exception("The spool directory does not exist: " + SPOOL_DIRECTORY.getPath());
+            }
+            if(NUM_WORKERS <= 0) {
+                throw new Exception("NUM_WORKERS must be greater than zero.");
+            }
+            else if(NUM_THREADS <= 0) {
+                throw new Exception("NUM_THREADS must be greater than zero.");
+            }
+            this.reference = new ReferenceProvider(REFERENCE, REFERENCE_CACHE_SIZE);
+            workers = Executors.newFixedThreadPool(NUM_WORKERS);
+            this.freeWorkers = new Semaphore(NUM_WORKERS);
+            // work-stealing, so that idle threads take the chunks of other jobs
+            this.threads = Executors.newWorkStealingPool(NUM_THREADS);
+
+            this.requeueRunningJobs();
+
+            if(!QUIET) {
+                System.err.println("Waiting for jobs in " + SPOOL_DIRECTORY.getPath());
+            }
+            while(true) {
+                File jobs[] = SPOOL_DIRECTORY.listFiles(new FilenameFilter() {
+                    public boolean accept(File dir, String name) {
+                        return name.endsWith(JOB_SUFFIX);
+                    }
+                });
+                int i;
+
+                if(null != jobs) {
+                    // oldest first, then by name
+                    Arrays.sort(jobs, new Comparator<File>() {
+                        public int compare(File a, File b) {
+                            int c = Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+                            return (0 != c) ? c : a.compareTo(b);
+                        }
+                    });
+                    for(i=0;i<jobs.length && this.freeWorkers.tryAcquire();i++) {
+                        File running = getJobFile(jobs[i], RUNNING_SUFFIX);
+                        // claim the job
+                        if(jobs[i].renameTo(running)) {
+                            workers.execute(new Job(running));
+                        }
+                        else {
+                            this.freeWorkers.release();
+                        }
+                    }
+                }
+                Thread.sleep(POLL_INTERVAL);
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("Please report bugs to srma-help@lists.sourceforge.net");
+            System.exit(1);
+        }
+
+        return 0;
+    }
+
+    /*
+     * Renames the jobs that were running when a previous server stopped
+     * back to .job, so that they are run again.
+     * */
+    private void requeueRunningJobs()
+        throws Exception
+    {
+        File running[] = SPOOL_DIRECTORY.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(RUNNING_SUFFIX);
+            }
+        });
+        int i;
+
+        if(null == running) {
+            return;
+        }
+        for(i=0;i<running.length;i++) {
+            if(!running[i].renameTo(getJobFile(running[i], JOB_SUFFIX))) {
+                throw new Exception("Could not re-queue the job file: " + running[i].getPath());
+            }
+            if(!QUIET) {
+                System.err.println("Re-queued " + running[i].getPath());
+            }
+        }
+    }
+
+    private static File getJobFile(File file, String suffix)
+    {
+        String name = file.getName();
+        return new File(file.getParentFile(), name.substring(0, name.lastIndexOf('.')) + suffix);
+    }
+
+    /*
+     * Reads the SRMA options from a job file.
+     * */
+    private static List<String> readJobArguments(File file)
+        throws Exception
+    {
+        List<String> args = new ArrayList<String>();
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        String line = null;
+
+        try {
+            while(null != (line = br.readLine())) {
+                StringTokenizer st = null;
+                line = line.trim();
+                if(0 == line.length() || line.startsWith("#")) {
+                    continue;
+                }
+                st = new StringTokenizer(line);
+                while(st.hasMoreTokens()) {
+                    args.add(st.nextToken());
+                }
+            }
+        } finally {
+            br.close();
+        }
+
+        return args;
+    }
+
+    private static boolean hasOption(List<String> args, String name)
+    {
+        ListIterator<String> iter = args.listIterator();
+        while(iter.hasNext()) {
+            String arg = iter.next();
+            if(arg.startsWith(name + "=")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private class Job implements Runnable {
+
+        private File file;
+
+        public Job(File file)
+        {
+            this.file = file;
+        }
+
+        public void run()
+        {
+            File log = getJobFile(this.file, LOG_SUFFIX);
+            PrintStream out = null;
+            boolean success = false;
+
+            try {
+                out = new PrintStream(new FileOutputStream(log));
+                List<String> args = readJobArguments(this.file);
+                SRMA srma = new SRMA();
+                String errors[] = null;
+
+                if(!hasOption(args, "REFERENCE") && !hasOption(args, StandardOptionDefinitions.REFERENCE_SHORT_NAME)) {
+                    args.add("REFERENCE=" + REFERENCE.getPath());
+                }
+                if(!hasOption(args, "QUIET_STDERR")) {
+                    args.add("QUIET_STDERR=true");
+                }
+                if(!new CommandLineParser(srma).parseOptions(out, args.toArray(new String[0]))) {
+                    throw new Exception("Could not parse the job options.");
+                }
+                errors = srma.customCommandLineValidation();
+                if(null != errors) {
+                    int i;
+                    for(i=0;i<errors.length;i++) {
+                        out.println(errors[i]);
+                    }
+                    throw new Exception("Invalid job options.");
+                }
+                if(!srma.REFERENCE.getCanonicalFile().equals(REFERENCE.getCanonicalFile())) {
+                    throw new Exception("The job reference must be the server reference: " + REFERENCE.getPath());
+                }
+
+                srma.run(reference, threads);
+                success = true;
+            } catch (Throwable t) {
+                if(null != out) {
+                    t.printStackTrace(out);
+                }
+                else {
+                    t.printStackTrace();
+                }
+            } finally {
+                if(null != out) {
+                    out.close();
+                }
+                if(!this.file.renameTo(getJobFile(this.file, (success) ? DONE_SUFFIX : FAILED_SUFFIX))) {
+                    System.err.println("Could not rename the job file: " + this.file.getPath());
+                }
+                if(!QUIET) {
+                    System.err.println(((success) ? "Finished " : "Failed ") + this.file.getPath());
+                }
+                freeWorkers.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import java.util.Arrays;
+
+/*
+ * Sparse per-sample coverage: only samples with at least one read are
+ * stored, in sample order, so a node costs memory in proportion to the
+ * samples that carry its allele rather than to the total number of samples.
+ * */
+public class SampleCoverage {
+
+    private int samples[] = null;
+    private int counts[] = null;
+    private int size = 0;
+
+    public SampleCoverage()
+    {
+        this.samples = new int[1];
+        this.counts = new int[1];
+        this.size = 0;
+    }
+
+    public SampleCoverage(SampleCoverage other)
+    {
+        this.samples = Arrays.copyOf(other.samples, Math.max(1, other.size));
+        this.counts = Arrays.copyOf(other.counts, Math.max(1, other.size));
+        this.size = other.size;
+    }
+
+    public void increment(int sample)
+    {
+        int index = this.indexOf(sample);
+        if(0 <= index) {
+            this.counts[index]++;
+        }
+        else {
+            index = -index - 1;
+            if(this.size == this.samples.length) {
+                int samples[] = new int[2*this.size];
+                int counts[] = new int[2*this.size];
+                System.arraycopy(this.samples, 0, samples, 0, this.size);
+                System.arraycopy(this.counts, 0, counts, 0, this.size);
+                this.samples = samples;
+                this.counts = counts;
+            }
+            System.arraycopy(this.samples, index, this.samples, index+1, this.size - index);
+            System.arraycopy(this.counts, index, this.counts, index+1, this.size - index);
+            this.samples[index] = sample;
+            this.counts[index] = 1;
+            this.size++;
+        }
+    }
+
+    public int get(int sample)
+    {
+        int index = this.indexOf(sample);
+        return (index < 0) ? 0 : this.counts[index];
+    }
+
+    // Returns the index of the sample, or (-(insertion point) - 1)
+    private int indexOf(int sample)
+    {
+        int low = 0, high = this.size - 1, mid;
+        while(low <= high) {
+            mid = (low + high) >>> 1;
+            if(this.samples[mid] < sample) {
+                low = mid + 1;
+            }
+            else if(sample < this.samples[mid]) {
+                high = mid - 1;
+            }
+            else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+}
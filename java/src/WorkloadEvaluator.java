@@ -0,0 +1,153 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import net.sf.samtools.*;
+import net.sf.picard.cmdline.*;
+import net.sf.picard.io.IoUtil;
+
+import java.io.*;
+import java.util.*;
+
+/* Documentation:
+ * Compares re-aligned SAM/BAM files against the truth file written by
+ * WorkloadGenerator.  A read is correct if both its alignment start and CIGAR
+ * match the truth.  If ORIGINAL is given, the reads fixed and broken by
+ * re-alignment are also counted.
+ * */
+
+public class WorkloadEvaluator extends CommandLineProgram {
+
+    public final String PROGRAM_VERSION="0.1.16";
+    @Usage (programVersion=PROGRAM_VERSION)
+        public final String USAGE = getStandardUsagePreamble() + "Evaluates re-alignment accuracy against a synthetic workload.";
+    @Option(shortName=StandardOptionDefinitions.INPUT_SHORT_NAME, doc="The re-aligned SAM or BAM file(s).")
+        public List<File> INPUT = new ArrayList<File>();
+    @Option(doc="The truth file from WorkloadGenerator.")
+        public File TRUTH=null;
+    @Option(doc="The SAM or BAM file(s) before re-alignment.", optional=true)
+        public List<File> ORIGINAL = new ArrayList<File>();
+    @Option(shortName=StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc="The output metrics file (default: stdout).", optional=true)
+        public File OUTPUT=null;
+
+    public static void main(final String[] args) {
+        new WorkloadEvaluator().instanceMain(args);
+    }
+
+    protected int doWork()
+    {
+        try {
+            Map<String, String> truth = new HashMap<String, String>();
+            Map<String, Boolean> original = null;
+            long total = 0, correct = 0, missing = 0;
+            long originalCorrect = 0, fixed = 0, broken = 0;
+            PrintStream out = null;
+            BufferedReader br = null;
+            String line = null;
+            ListIterator<File> iter = null;
+
+            // Read in the truth
+            IoUtil.assertFileIsReadable(TRUTH);
+            br = new BufferedReader(new FileReader(TRUTH));
+            while(null != (line = br.readLine())) {
+                if(line.startsWith("#")) {
+                    continue;
+                }
+                String tokens[] = line.split("\t");
+                if(tokens.length < 4) {
+                    throw new Exception("Malformed truth line: " + line);
+                }
+                truth.put(tokens[0], tokens[1] + ":" + tokens[2] + ":" + tokens[3]);
+            }
+            br.close();
+
+            // Read in the original alignments
+            if(0 < ORIGINAL.size()) {
+                original = new HashMap<String, Boolean>();
+                iter = ORIGINAL.listIterator();
+                while(iter.hasNext()) {
+                    SAMFileReader reader = new SAMFileReader(iter.next());
+                    for(SAMRecord rec : reader) {
+                        String expected = truth.get(getKey(rec));
+                        if(null != expected) {
+                            original.put(getKey(rec), expected.equals(getAlignment(rec)));
+                        }
+                    }
+                    reader.close();
+                }
+            }
+
+            // Compare
+            iter = INPUT.listIterator();
+            while(iter.hasNext()) {
+                File file = iter.next();
+                IoUtil.assertFileIsReadable(file);
+                SAMFileReader reader = new SAMFileReader(file);
+                for(SAMRecord rec : reader) {
+                    String key = getKey(rec);
+                    String expected = truth.get(key);
+                    boolean isCorrect;
+
+                    if(null == expected) {
+                        missing++;
+                        continue;
+                    }
+                    total++;
+                    isCorrect = expected.equals(getAlignment(rec));
+                    if(isCorrect) {
+                        correct++;
+                    }
+                    if(null != original && original.containsKey(key)) {
+                        boolean wasCorrect = original.get(key);
+                        if(wasCorrect) {
+                            originalCorrect++;
+                        }
+                        if(!wasCorrect && isCorrect) {
+                            fixed++;
+                        }
+                        else if(wasCorrect && !isCorrect) {
+                            broken++;
+                        }
+                    }
+                }
+                reader.close();
+            }
+
+            out = (null == OUTPUT) ? System.out : new PrintStream(new FileOutputStream(OUTPUT));
+            out.println("READS\t" + total);
+            out.println("READS_NOT_IN_TRUTH\t" + missing);
+            out.println("CORRECT\t" + correct);
+            out.println("ACCURACY\t" + ((0 == total) ? 0.0 : ((double)correct / total)));
+            if(null != original) {
+                out.println("ORIGINAL_CORRECT\t" + originalCorrect);
+                out.println("ORIGINAL_ACCURACY\t" + ((0 == total) ? 0.0 : ((double)originalCorrect / total)));
+                out.println("FIXED\t" + fixed);
+                out.println("BROKEN\t" + broken);
+            }
+            if(null != OUTPUT) {
+                out.close();
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("Please report bugs to srma-help@lists.sourceforge.net");
+            System.exit(1);
+        }
+
+        return 0;
+    }
+
+    private static String getKey(SAMRecord rec)
+    {
+        if(rec.getReadPairedFlag()) {
+            return rec.getReadName() + ((rec.getFirstOfPairFlag()) ? "/1" : "/2");
+        }
+        return rec.getReadName();
+    }
+
+    private static String getAlignment(SAMRecord rec)
+    {
+        return rec.getReferenceName() + ":" + rec.getAlignmentStart() + ":" + rec.getCigarString();
+    }
+}
@@ -0,0 +1,555 @@
+/*
+ * LICENSE to be determined
+ */
+package srma;
+
+import net.sf.samtools.*;
+import net.sf.picard.cmdline.*;
+import net.sf.picard.io.IoUtil;
+import net.sf.picard.sam.BuildBamIndex;
+
+import java.io.*;
+import java.util.*;
+
+/* Documentation:
+ * Generates a reproducible re-alignment workload: a random reference (with
+ * .fai and .dict), co-ordinate sorted and indexed BAM files sampled from a
+ * donor genome carrying SNPs and indels, and the true alignment of every read.
+ * Reads overlapping an indel can be reported without the indel to simulate
+ * aligner errors.  The same SEED and options always give the same output.
+ * */
+
+public class WorkloadGenerator extends CommandLineProgram {
+
+    public final String PROGRAM_VERSION="0.1.16";
+    @Usage (programVersion=PROGRAM_VERSION)
+        public final String USAGE = getStandardUsagePreamble() + "Synthetic workload generator for SRMA.";
+    @Option(shortName=StandardOptionDefinitions.OUTPUT_SHORT_NAME, doc="The output prefix (PREFIX.fa, PREFIX.fa.fai, PREFIX.dict, PREFIX.bam or PREFIX.N.bam, PREFIX.truth.txt).")
+        public File OUTPUT_PREFIX=null;
+    @Option(doc="The seed for the random number generator.", optional=true)
+        public long SEED=1;
+    @Option(doc="The number of contigs.", optional=true)
+        public int NUM_CONTIGS=1;
+    @Option(doc="The length of each contig.", optional=true)
+        public int CONTIG_LENGTH=1000000;
+    @Option(doc="The average read depth.", optional=true)
+        public double DEPTH=30;
+    @Option(doc="The read length.", optional=true)
+        public int READ_LENGTH=100;
+    @Option(doc="The rate of SNPs in the donor genome (per base).", optional=true)
+        public double SNP_RATE=0.001;
+    @Option(doc="The rate of indels in the donor genome (per base).", optional=true)
+        public double INDEL_RATE=0.0002;
+    @Option(doc="The mean indel length (geometric).", optional=true)
+        public double INDEL_LENGTH_MEAN=2.0;
+    @Option(doc="The maximum indel length.", optional=true)
+        public int MAX_INDEL_LENGTH=20;
+    @Option(doc="The fraction of reads overlapping an indel that are reported without the indel.", optional=true)
+        public double MISALIGNED_INDEL_FRACTION=0.5;
+    @Option(doc="The fraction of reads with a soft-clipped end (ignored for color space).", optional=true)
+        public double SOFT_CLIP_FRACTION=0.02;
+    @Option(doc="The maximum soft-clip length.", optional=true)
+        public int MAX_SOFT_CLIP_LENGTH=10;
+    @Option(doc="The per-base sequencing error rate.", optional=true)
+        public double BASE_ERROR_RATE=0.005;
+    @Option(doc="Generate read pairs.", optional=true)
+        public boolean PAIRED=false;
+    @Option(doc="The mean insert size of read pairs.", optional=true)
+        public int INSERT_SIZE_MEAN=300;
+    @Option(doc="The standard deviation of the insert size of read pairs.", optional=true)
+        public int INSERT_SIZE_STDEV=30;
+    @Option(doc="Add color space reads (CS/CQ tags).", optional=true)
+        public boolean COLOR_SPACE=false;
+    @Option(doc="The number of BAM files (one sample/read group each) to distribute the reads across.", optional=true)
+        public int NUM_BAMS=1;
+
+    private static final int FASTA_LINE_LENGTH = 60;
+    private static final char COLORSPACE_PRIMER = 'T';
+
+    private Random random = null;
+    private SAMFileHeader header = null;
+    private List<SAMFileWriter> writers = null;
+    private List<File> bamFiles = null;
+    private PrintStream truth = null;
+    private int fragmentIndex = 0;
+
+    // the donor genome for the current contig
+    private byte donorBases[] = null;
+    private int donorReferenceIndex[] = null; // zero-based reference index, -1 for inserted bases
+    private int donorLength = 0;
+
+    public static void main(final String[] args) {
+        new WorkloadGenerator().instanceMain(args);
+    }
+
+    protected String[] customCommandLineValidation()
+    {
+        List<String> errors = new ArrayList<String>();
+        if(READ_LENGTH <= 0 || CONTIG_LENGTH <= 4 * READ_LENGTH) {
+            errors.add("CONTIG_LENGTH must be greater than four times READ_LENGTH");
+        }
+        if(PAIRED && INSERT_SIZE_MEAN < READ_LENGTH) {
+            errors.add("INSERT_SIZE_MEAN must be at least READ_LENGTH");
+        }
+        if(NUM_CONTIGS <= 0 || NUM_BAMS <= 0) {
+            errors.add("NUM_CONTIGS and NUM_BAMS must be positive");
+        }
+        if(MAX_INDEL_LENGTH <= 0 || MAX_SOFT_CLIP_LENGTH <= 0) {
+            errors.add("MAX_INDEL_LENGTH and MAX_SOFT_CLIP_LENGTH must be positive");
+        }
+        if(0 < errors.size()) {
+            return errors.toArray(new String[0]);
+        }
+        return super.customCommandLineValidation();
+    }
+
+    protected int doWork()
+    {
+        int i;
+
+        try {
+            List<byte[]> references = new ArrayList<byte[]>();
+            SAMSequenceDictionary dictionary = new SAMSequenceDictionary();
+
+            this.random = new Random(SEED);
+
+            // Reference
+            for(i=0;i<NUM_CONTIGS;i++) {
+                byte bases[] = new byte[CONTIG_LENGTH];
+                int j;
+                for(j=0;j<CONTIG_LENGTH;j++) {
+                    bases[j] = (byte)SRMAUtil.DNA[this.random.nextInt(4)];
+                }
+                references.add(bases);
+                dictionary.addSequence(new SAMSequenceRecord("chr" + (i+1), CONTIG_LENGTH));
+            }
+            this.writeReference(references, dictionary);
+
+            // Header, one read group per BAM
+            this.header = new SAMFileHeader();
+            this.header.setSequenceDictionary(dictionary);
+            this.header.setSortOrder(SAMFileHeader.SortOrder.coordinate);
+            for(i=0;i<NUM_BAMS;i++) {
+                SAMReadGroupRecord readGroup = new SAMReadGroupRecord("rg" + i);
+                readGroup.setSample("sample" + i);
+                readGroup.setLibrary("library" + i);
+                readGroup.setPlatform((COLOR_SPACE) ? "SOLID" : "ILLUMINA");
+                this.header.addReadGroup(readGroup);
+            }
+
+            // Outputs
+            this.writers = new ArrayList<SAMFileWriter>();
+            this.bamFiles = new ArrayList<File>();
+            for(i=0;i<NUM_BAMS;i++) {
+                File file = new File(OUTPUT_PREFIX.getPath() + ((1 == NUM_BAMS) ? "" : ("." + i)) + ".bam");
+                IoUtil.assertFileIsWritable(file);
+                this.bamFiles.add(file);
+                this.writers.add(new SAMFileWriterFactory().makeBAMWriter(this.header, true, file));
+            }
+            this.truth = new PrintStream(new BufferedOutputStream(new FileOutputStream(OUTPUT_PREFIX.getPath() + ".truth.txt")));
+            this.truth.println("#READ\tCONTIG\tSTART\tCIGAR\tREPORTED_START\tREPORTED_CIGAR");
+
+            // Reads, one contig at a time
+            for(i=0;i<NUM_CONTIGS;i++) {
+                this.createDonor(references.get(i));
+                this.writeReads(i, references.get(i));
+            }
+
+            this.truth.close();
+            for(i=0;i<NUM_BAMS;i++) {
+                this.writers.get(i).close();
+                new BuildBamIndex().instanceMain(new String[]{"INPUT=" + this.bamFiles.get(i).getPath(),
+                    "OUTPUT=" + this.bamFiles.get(i).getPath() + ".bai",
+                    "QUIET=true",
+                    "VERBOSITY=ERROR"});
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("Please report bugs to srma-help@lists.sourceforge.net");
+            System.exit(1);
+        }
+
+        return 0;
+    }
+
+    private void writeReference(List<byte[]> references, SAMSequenceDictionary dictionary)
+        throws Exception
+    {
+        PrintStream fasta = new PrintStream(new BufferedOutputStream(new FileOutputStream(OUTPUT_PREFIX.getPath() + ".fa")));
+        PrintStream fai = new PrintStream(new BufferedOutputStream(new FileOutputStream(OUTPUT_PREFIX.getPath() + ".fa.fai")));
+        PrintStream dict = new PrintStream(new BufferedOutputStream(new FileOutputStream(OUTPUT_PREFIX.getPath() + ".dict")));
+        long offset = 0;
+        int i, j;
+
+        dict.println("@HD\tVN:1.0\tSO:unsorted");
+        for(i=0;i<references.size();i++) {
+            byte bases[] = references.get(i);
+            String name = dictionary.getSequence(i).getSequenceName();
+            String line = ">" + name;
+
+            fasta.println(line);
+            offset += line.length() + 1;
+            fai.println(name + "\t" + bases.length + "\t" + offset + "\t" + FASTA_LINE_LENGTH + "\t" + (FASTA_LINE_LENGTH + 1));
+            dict.println("@SQ\tSN:" + name + "\tLN:" + bases.length);
+            for(j=0;j<bases.length;j+=FASTA_LINE_LENGTH) {
+                int length = Math.min(FASTA_LINE_LENGTH, bases.length - j);
+                fasta.write(bases, j, length);
+                fasta.println();
+                offset += length + 1;
+            }
+        }
+        fasta.close();
+        fai.close();
+        dict.close();
+    }
+
+    private int getIndelLength()
+    {
+        // geometric, at least one base
+        int length = 1;
+        double p = 1.0 / INDEL_LENGTH_MEAN;
+        while(length < MAX_INDEL_LENGTH && p < this.random.nextDouble()) {
+            length++;
+        }
+        return length;
+    }
+
+    private void addDonorBase(byte base, int referenceIndex)
+    {
+        if(this.donorBases.length <= this.donorLength) {
+            this.donorBases = Arrays.copyOf(this.donorBases, 2 * this.donorBases.length);
+            this.donorReferenceIndex = Arrays.copyOf(this.donorReferenceIndex, 2 * this.donorReferenceIndex.length);
+        }
+        this.donorBases[this.donorLength] = base;
+        this.donorReferenceIndex[this.donorLength] = referenceIndex;
+        this.donorLength++;
+    }
+
+    /*
+     * Creates a donor genome from the reference.  Indels are never placed at
+     * the start of the contig and are always followed by a reference base.
+     * */
+    private void createDonor(byte reference[])
+    {
+        int i, j;
+
+        this.donorBases = new byte[reference.length + reference.length / 8];
+        this.donorReferenceIndex = new int[this.donorBases.length];
+        this.donorLength = 0;
+
+        i = 0;
+        while(i < reference.length) {
+            byte base = reference[i];
+            if(0 < i && this.random.nextDouble() < INDEL_RATE) {
+                int length = this.getIndelLength();
+                if(this.random.nextBoolean()) { // insertion before reference base i
+                    for(j=0;j<length;j++) {
+                        this.addDonorBase((byte)SRMAUtil.DNA[this.random.nextInt(4)], -1);
+                    }
+                }
+                else if(i + length < reference.length) { // deletion of reference bases i to i+length-1
+                    i += length;
+                    base = reference[i];
+                }
+            }
+            if(this.random.nextDouble() < SNP_RATE) {
+                byte snp = base;
+                while(snp == base) {
+                    snp = (byte)SRMAUtil.DNA[this.random.nextInt(4)];
+                }
+                base = snp;
+            }
+            this.addDonorBase(base, i);
+            i++;
+        }
+    }
+
+    private void writeReads(int referenceIndex, byte reference[])
+        throws Exception
+    {
+        List<List<SAMRecord>> records = new ArrayList<List<SAMRecord>>();
+        SAMRecordCoordinateComparator comparator = new SAMRecordCoordinateComparator();
+        long numFragments;
+        long i;
+        int j;
+
+        for(j=0;j<NUM_BAMS;j++) {
+            records.add(new ArrayList<SAMRecord>());
+        }
+
+        numFragments = (long)(DEPTH * this.donorLength / ((PAIRED) ? (2 * READ_LENGTH) : READ_LENGTH));
+        for(i=0;i<numFragments;i++) {
+            List<SAMRecord> bam = records.get(this.fragmentIndex % NUM_BAMS);
+            String readName = "read" + this.fragmentIndex;
+            String readGroup = "rg" + (this.fragmentIndex % NUM_BAMS);
+
+            this.fragmentIndex++;
+
+            if(PAIRED) {
+                int fragmentLength, start;
+                SAMRecord first, second;
+                boolean swap = this.random.nextBoolean();
+                do {
+                    fragmentLength = (int)Math.round(INSERT_SIZE_MEAN + INSERT_SIZE_STDEV * this.random.nextGaussian());
+                    if(fragmentLength < READ_LENGTH) {
+                        fragmentLength = READ_LENGTH;
+                    }
+                    start = this.random.nextInt(this.donorLength - fragmentLength);
+                } while(!this.isAligned(start, start + READ_LENGTH)
+                        || !this.isAligned(start + fragmentLength - READ_LENGTH, start + fragmentLength));
+
+                first = this.createRecord(readName, readGroup, referenceIndex, reference, start, false, !swap);
+                second = this.createRecord(readName, readGroup, referenceIndex, reference, start + fragmentLength - READ_LENGTH, true, swap);
+                this.setMateInfo(first, second);
+                this.setMateInfo(second, first);
+                bam.add(first);
+                bam.add(second);
+            }
+            else {
+                int start;
+                do {
+                    start = this.random.nextInt(this.donorLength - READ_LENGTH);
+                } while(!this.isAligned(start, start + READ_LENGTH));
+                bam.add(this.createRecord(readName, readGroup, referenceIndex, reference, start, this.random.nextBoolean(), false));
+            }
+        }
+
+        for(j=0;j<NUM_BAMS;j++) {
+            Collections.sort(records.get(j), comparator);
+            ListIterator<SAMRecord> iter = records.get(j).listIterator();
+            while(iter.hasNext()) {
+                this.writers.get(j).addAlignment(iter.next());
+            }
+        }
+    }
+
+    // A donor segment must start and end on a reference base
+    private boolean isAligned(int start, int end)
+    {
+        return (0 <= this.donorReferenceIndex[start] && 0 <= this.donorReferenceIndex[end-1]);
+    }
+
+    /*
+     * Creates a read from the donor segment [start, start+READ_LENGTH).  The
+     * truth is written to the truth file.
+     * */
+    private SAMRecord createRecord(String readName, String readGroup, int referenceIndex, byte reference[], int start, boolean negative, boolean firstOfPair)
+        throws Exception
+    {
+        SAMRecord rec = new SAMRecord(this.header);
+        byte readBases[] = Arrays.copyOfRange(this.donorBases, start, start + READ_LENGTH);
+        byte qualities[] = new byte[READ_LENGTH];
+        byte alignmentRead[] = null, alignmentReference[] = null;
+        int alignmentLength = 0;
+        int truthStart, reportedStart;
+        int clipStart = 0, clipEnd = 0;
+        String truthCigar, reportedCigar;
+        boolean hasIndel = false;
+        int i, prev;
+
+        // Alignment of the segment against the reference
+        alignmentRead = new byte[2 * READ_LENGTH + MAX_INDEL_LENGTH];
+        alignmentReference = new byte[alignmentRead.length];
+        truthStart = this.donorReferenceIndex[start] + 1;
+        for(i=start,prev=-1;i<start+READ_LENGTH;i++) {
+            int r = this.donorReferenceIndex[i];
+            if(r < 0) { // insertion
+                alignmentRead[alignmentLength] = this.donorBases[i];
+                alignmentReference[alignmentLength] = Alignment.GAP;
+                alignmentLength++;
+                continue;
+            }
+            if(0 <= prev) {
+                while(prev + 1 < r) { // deletion
+                    prev++;
+                    alignmentRead[alignmentLength] = Alignment.GAP;
+                    alignmentReference[alignmentLength] = reference[prev];
+                    alignmentLength++;
+                }
+            }
+            alignmentRead[alignmentLength] = this.donorBases[i];
+            alignmentReference[alignmentLength] = reference[r];
+            alignmentLength++;
+            prev = r;
+        }
+        Alignment.leftJustify(alignmentRead, alignmentReference, alignmentLength);
+        // An indel justified to the start of the read is reported as soft-clipped
+        while(Alignment.GAP == alignmentRead[0] || Alignment.GAP == alignmentReference[0]) {
+            if(Alignment.GAP == alignmentRead[0]) {
+                truthStart++;
+            }
+            else {
+                clipStart++;
+            }
+            alignmentRead = Arrays.copyOfRange(alignmentRead, 1, alignmentRead.length);
+            alignmentReference = Arrays.copyOfRange(alignmentReference, 1, alignmentReference.length);
+            alignmentLength--;
+        }
+
+        // Soft clipping
+        if(!COLOR_SPACE && this.random.nextDouble() < SOFT_CLIP_FRACTION) {
+            int length = 1 + this.random.nextInt(Math.min(MAX_SOFT_CLIP_LENGTH, READ_LENGTH / 4));
+            boolean atStart = this.random.nextBoolean();
+            while(0 < length) {
+                if(atStart) {
+                    if(Alignment.GAP != alignmentReference[0]) {
+                        truthStart++;
+                    }
+                    if(Alignment.GAP != alignmentRead[0]) {
+                        readBases[clipStart] = (byte)SRMAUtil.DNA[this.random.nextInt(4)];
+                        clipStart++;
+                        length--;
+                    }
+                    alignmentRead = Arrays.copyOfRange(alignmentRead, 1, alignmentRead.length);
+                    alignmentReference = Arrays.copyOfRange(alignmentReference, 1, alignmentReference.length);
+                }
+                else {
+                    if(Alignment.GAP != alignmentRead[alignmentLength-1]) {
+                        readBases[READ_LENGTH - clipEnd - 1] = (byte)SRMAUtil.DNA[this.random.nextInt(4)];
+                        clipEnd++;
+                        length--;
+                    }
+                }
+                alignmentLength--;
+            }
+            // do not start or end on a deletion
+            while(Alignment.GAP == alignmentRead[0]) {
+                truthStart++;
+                alignmentRead = Arrays.copyOfRange(alignmentRead, 1, alignmentRead.length);
+                alignmentReference = Arrays.copyOfRange(alignmentReference, 1, alignmentReference.length);
+                alignmentLength--;
+            }
+            while(Alignment.GAP == alignmentRead[alignmentLength-1]) {
+                alignmentLength--;
+            }
+        }
+        truthCigar = this.getCigarString(alignmentRead, alignmentReference, alignmentLength, clipStart, clipEnd);
+        for(i=0;i<alignmentLength;i++) {
+            if(Alignment.GAP == alignmentRead[i] || Alignment.GAP == alignmentReference[i]) {
+                hasIndel = true;
+            }
+        }
+
+        // Simulate an aligner that missed the indel
+        reportedStart = truthStart;
+        reportedCigar = truthCigar;
+        if(hasIndel && this.random.nextDouble() < MISALIGNED_INDEL_FRACTION) {
+            int alignedLength = READ_LENGTH - clipStart - clipEnd;
+            if(truthStart + alignedLength - 1 <= reference.length) {
+                reportedCigar = ((0 < clipStart) ? (clipStart + "S") : "")
+                    + alignedLength + "M"
+                    + ((0 < clipEnd) ? (clipEnd + "S") : "");
+            }
+        }
+
+        // Sequencing errors and qualities
+        for(i=0;i<READ_LENGTH;i++) {
+            if(this.random.nextDouble() < BASE_ERROR_RATE) {
+                readBases[i] = (byte)SRMAUtil.DNA[this.random.nextInt(4)];
+            }
+            qualities[i] = (byte)(20 + this.random.nextInt(21));
+        }
+
+        rec.setReadName(readName);
+        rec.setReferenceIndex(referenceIndex);
+        rec.setAlignmentStart(reportedStart);
+        rec.setCigarString(reportedCigar);
+        rec.setMappingQuality(60);
+        rec.setReadNegativeStrandFlag(negative);
+        rec.setReadBases(readBases);
+        rec.setBaseQualities(qualities);
+        rec.setAttribute("RG", readGroup);
+        if(PAIRED) {
+            rec.setReadPairedFlag(true);
+            rec.setFirstOfPairFlag(firstOfPair);
+            rec.setSecondOfPairFlag(!firstOfPair);
+        }
+        if(COLOR_SPACE) {
+            this.setColorSpace(rec, readBases, negative);
+        }
+
+        this.truth.println(readName + ((PAIRED) ? ((firstOfPair) ? "/1" : "/2") : "")
+                + "\t" + this.header.getSequenceDictionary().getSequence(referenceIndex).getSequenceName()
+                + "\t" + truthStart
+                + "\t" + truthCigar
+                + "\t" + reportedStart
+                + "\t" + reportedCigar);
+
+        return rec;
+    }
+
+    private String getCigarString(byte read[], byte reference[], int length, int clipStart, int clipEnd)
+    {
+        StringBuilder sb = new StringBuilder();
+        char prevOperator = 0;
+        int prevLength = 0;
+        int i;
+
+        if(0 < clipStart) {
+            sb.append(clipStart).append('S');
+        }
+        for(i=0;i<length;i++) {
+            char operator = 'M';
+            if(Alignment.GAP == read[i]) {
+                operator = 'D';
+            }
+            else if(Alignment.GAP == reference[i]) {
+                operator = 'I';
+            }
+            if(operator != prevOperator && 0 < prevLength) {
+                sb.append(prevLength).append(prevOperator);
+                prevLength = 0;
+            }
+            prevOperator = operator;
+            prevLength++;
+        }
+        if(0 < prevLength) {
+            sb.append(prevLength).append(prevOperator);
+        }
+        if(0 < clipEnd) {
+            sb.append(clipEnd).append('S');
+        }
+
+        return sb.toString();
+    }
+
+    // CS/CQ are given in sequencing order
+    private void setColorSpace(SAMRecord rec, byte readBases[], boolean negative)
+        throws Exception
+    {
+        StringBuilder colors = new StringBuilder();
+        StringBuilder colorQualities = new StringBuilder();
+        char prev = COLORSPACE_PRIMER;
+        int i;
+
+        colors.append(prev);
+        for(i=0;i<readBases.length;i++) {
+            char base = (negative) ? SRMAUtil.getCompliment((char)readBases[readBases.length-i-1]) : (char)readBases[i];
+            colors.append(SRMAUtil.colorSpaceEncode(prev, base));
+            colorQualities.append(SRMAUtil.QUAL2CHAR(20 + this.random.nextInt(21)));
+            prev = base;
+        }
+        rec.setAttribute("CS", colors.toString());
+        rec.setAttribute("CQ", colorQualities.toString());
+    }
+
+    private void setMateInfo(SAMRecord rec, SAMRecord mate)
+    {
+        int insertSize;
+
+        rec.setProperPairFlag(true);
+        rec.setMateUnmappedFlag(false);
+        rec.setMateNegativeStrandFlag(mate.getReadNegativeStrandFlag());
+        rec.setMateReferenceIndex(mate.getReferenceIndex());
+        rec.setMateAlignmentStart(mate.getAlignmentStart());
+
+        if(rec.getAlignmentStart() <= mate.getAlignmentStart()) {
+            insertSize = mate.getAlignmentEnd() - rec.getAlignmentStart() + 1;
+        }
+        else {
+            insertSize = -(rec.getAlignmentEnd() - mate.getAlignmentStart() + 1);
+        }
+        rec.setInferredInsertSize(insertSize);
+    }
+}